@@ -0,0 +1,151 @@
+//
+// Created by zzr on 2018/01/08.
+//
+// Mirrored ring for CircularEncoderBuffer.
+// The same physical pages (a memfd) are mapped twice, back to back, so a write or a
+// read that runs off the end of the first mapping lands at the start of the ring.
+// Every packet is therefore one contiguous region, however it straddles the end.
+//
+#include <jni.h>
+#include <android/log.h>
+
+#include <errno.h>
+#include <fcntl.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include <sys/mman.h>
+#include <sys/syscall.h>
+
+#define  LOG_TAG    "MirrorRing"
+#define  LOG_D(...)  __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
+#define  LOG_E(...)  __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
+
+#ifndef __NR_memfd_create
+#if defined(__aarch64__)
+#define __NR_memfd_create 279
+#elif defined(__arm__)
+#define __NR_memfd_create 385
+#elif defined(__x86_64__)
+#define __NR_memfd_create 319
+#elif defined(__i386__)
+#define __NR_memfd_create 356
+#endif
+#endif
+
+struct MirrorRing {
+    int fd;
+    size_t size;        // size of one copy, page aligned
+    uint8_t * base;     // start of the 2 * size reservation
+};
+
+static int createMemFd(const char * name) {
+#ifdef __NR_memfd_create
+    return (int) syscall(__NR_memfd_create, name, 0);
+#else
+    errno = ENOSYS;
+    return -1;
+#endif
+}
+
+static void destroyRing(MirrorRing * ring) {
+    if (ring->base != NULL && ring->base != MAP_FAILED) {
+        munmap(ring->base, ring->size * 2);
+    }
+    if (ring->fd >= 0) {
+        close(ring->fd);
+    }
+    free(ring);
+}
+
+extern "C"
+{
+    JNIEXPORT jint JNICALL Java_org_learn_test_grafika_component_MirroredRingBuffer_nativePageSize(JNIEnv * env, jclass type);
+    JNIEXPORT jlong JNICALL Java_org_learn_test_grafika_component_MirroredRingBuffer_nativeCreate(JNIEnv * env, jclass type, jint size);
+    JNIEXPORT jobject JNICALL Java_org_learn_test_grafika_component_MirroredRingBuffer_nativeGetBuffer(JNIEnv * env, jclass type, jlong handle);
+    JNIEXPORT void JNICALL Java_org_learn_test_grafika_component_MirroredRingBuffer_nativeRelease(JNIEnv * env, jclass type, jlong handle);
+};
+
+JNIEXPORT jint JNICALL
+Java_org_learn_test_grafika_component_MirroredRingBuffer_nativePageSize(JNIEnv *env, jclass type)
+{
+    return (jint) sysconf(_SC_PAGESIZE);
+}
+
+/**
+ * Creates the ring.  "size" must be a multiple of the page size.
+ * Returns 0 on failure, so the caller can fall back to a heap buffer.
+ */
+JNIEXPORT jlong JNICALL
+Java_org_learn_test_grafika_component_MirroredRingBuffer_nativeCreate(JNIEnv *env, jclass type, jint size)
+{
+    long pageSize = sysconf(_SC_PAGESIZE);
+    if (size <= 0 || (size % pageSize) != 0) {
+        LOG_E("bad ring size %d (page size %ld)", size, pageSize);
+        return 0;
+    }
+
+    MirrorRing * ring = (MirrorRing *) calloc(1, sizeof(MirrorRing));
+    if (ring == NULL) {
+        return 0;
+    }
+    ring->fd = -1;
+    ring->size = (size_t) size;
+    ring->base = (uint8_t *) MAP_FAILED;
+
+    ring->fd = createMemFd("CircularEncoderBuffer");
+    if (ring->fd < 0) {
+        LOG_E("memfd_create failed: %s", strerror(errno));
+        destroyRing(ring);
+        return 0;
+    }
+    if (ftruncate(ring->fd, ring->size) != 0) {
+        LOG_E("ftruncate(%d) failed: %s", size, strerror(errno));
+        destroyRing(ring);
+        return 0;
+    }
+
+    // Reserve address space for both copies, then map the file over each half.
+    ring->base = (uint8_t *) mmap(NULL, ring->size * 2, PROT_NONE,
+                                  MAP_PRIVATE | MAP_ANONYMOUS, -1, 0);
+    if (ring->base == MAP_FAILED) {
+        LOG_E("reserve mmap failed: %s", strerror(errno));
+        destroyRing(ring);
+        return 0;
+    }
+    void * first = mmap(ring->base, ring->size, PROT_READ | PROT_WRITE,
+                        MAP_SHARED | MAP_FIXED, ring->fd, 0);
+    void * second = mmap(ring->base + ring->size, ring->size, PROT_READ | PROT_WRITE,
+                         MAP_SHARED | MAP_FIXED, ring->fd, 0);
+    if (first != ring->base || second != ring->base + ring->size) {
+        LOG_E("mirror mmap failed: %s", strerror(errno));
+        destroyRing(ring);
+        return 0;
+    }
+
+    LOG_D("created mirrored ring size=%d at %p", size, ring->base);
+    return (jlong) (intptr_t) ring;
+}
+
+/**
+ * Returns a direct ByteBuffer covering both copies (capacity is 2 * size).
+ */
+JNIEXPORT jobject JNICALL
+Java_org_learn_test_grafika_component_MirroredRingBuffer_nativeGetBuffer(JNIEnv *env, jclass type, jlong handle)
+{
+    MirrorRing * ring = (MirrorRing *) (intptr_t) handle;
+    if (ring == NULL) {
+        return NULL;
+    }
+    return env->NewDirectByteBuffer(ring->base, (jlong) (ring->size * 2));
+}
+
+JNIEXPORT void JNICALL
+Java_org_learn_test_grafika_component_MirroredRingBuffer_nativeRelease(JNIEnv *env, jclass type, jlong handle)
+{
+    MirrorRing * ring = (MirrorRing *) (intptr_t) handle;
+    if (ring != NULL) {
+        destroyRing(ring);
+    }
+}
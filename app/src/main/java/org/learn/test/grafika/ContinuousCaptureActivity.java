@@ -346,6 +346,14 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
+        try {
+            mCircEncoder.startAudio();
+        } catch (IOException ioe) {
+            // Still useful without sound.
+            Log.w(TAG, "audio capture unavailable, saving video only", ioe);
+        } catch (RuntimeException re) {
+            Log.w(TAG, "audio capture unavailable, saving video only", re);
+        }
         mEncoderSurface = new WindowSurface(mEglCore, mCircEncoder.getInputSurface(), true);
         updateControls();
     }
@@ -394,16 +402,15 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         //drawExtra(mFrameNum, viewWidth, viewHeight);
         mDisplaySurface.swapBuffers();
 
-        // Send it to the video encoder.
-        if (!mFileSaveInProgress) {
-            mEncoderSurface.makeCurrent();
-            GLES20.glViewport(0, 0, VIDEO_WIDTH, VIDEO_HEIGHT);
-            mFullFrameBlit.drawFrame(mTextureId, mTmpMatrix);
-            drawExtra(mFrameNum, VIDEO_WIDTH, VIDEO_HEIGHT);
-            mEncoderSurface.setPresentationTime(mCameraTexture.getTimestamp());
-            mCircEncoder.frameAvailableSoon();
-            mEncoderSurface.swapBuffers();
-        }
+        // Send it to the video encoder.  We keep doing this during a file save; the save
+        // works from a snapshot of the buffer on its own thread.
+        mEncoderSurface.makeCurrent();
+        GLES20.glViewport(0, 0, VIDEO_WIDTH, VIDEO_HEIGHT);
+        mFullFrameBlit.drawFrame(mTextureId, mTmpMatrix);
+        drawExtra(mFrameNum, VIDEO_WIDTH, VIDEO_HEIGHT);
+        mEncoderSurface.setPresentationTime(mCameraTexture.getTimestamp());
+        mCircEncoder.frameAvailableSoon();
+        mEncoderSurface.swapBuffers();
 
         mFrameNum++;
     }
@@ -8,6 +8,7 @@ import android.view.Surface;
 import android.view.TextureView;
 
 import org.learn.test.R;
+import org.learn.test.grafika.component.DecoderPool;
 import org.learn.test.grafika.component.MoviePlayer;
 import org.learn.test.grafika.component.SpeedControlCallback;
 import org.learn.test.grafika.util.ContentManager;
@@ -57,6 +58,9 @@ public class DoubleDecodeActivity extends Activity {
             //sBlob[i] = null;
         }
         sVideoRunning = !finishing;
+        if (finishing) {
+            DecoderPool.getDefault().clear();
+        }
         Log.d(TAG, "onPause complete");
     }
 
@@ -172,6 +176,10 @@ public class DoubleDecodeActivity extends Activity {
      * Currently loops until told to stop.
      */
     private static class PlayMovieThread extends Thread {
+        // Enough for MovieEightRects (about 10MB of frames), which then loops without a
+        // decoder.  MovieSliders is far bigger and decodes as usual.
+        private static final long LOOP_CACHE_BUDGET = 16L * 1024 * 1024;
+
         private final File mFile;
         private final Surface mSurface;
         private final SpeedControlCallback mCallback;
@@ -212,6 +220,8 @@ public class DoubleDecodeActivity extends Activity {
             try {
                 mMoviePlayer = new MoviePlayer(mFile, mSurface, mCallback);
                 mMoviePlayer.setLoopMode(true);
+                mMoviePlayer.setDecoderPool(DecoderPool.getDefault());
+                mMoviePlayer.setLoopCacheBudget(LOOP_CACHE_BUDGET);
                 mMoviePlayer.play();
             } catch (IOException ioe) {
                 Log.e(TAG, "movie playback failed", ioe);
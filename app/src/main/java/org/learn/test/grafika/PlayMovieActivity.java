@@ -15,7 +15,11 @@ import android.widget.CheckBox;
 import android.widget.Spinner;
 
 import org.learn.test.R;
+import org.learn.test.grafika.component.DecoderPool;
+import org.learn.test.grafika.component.MediaIndexCache;
 import org.learn.test.grafika.component.MoviePlayer;
+import org.learn.test.grafika.component.PlaybackMetrics;
+import org.learn.test.grafika.component.PrefetchingExtractor;
 import org.learn.test.grafika.component.SpeedControlCallback;
 import org.learn.test.grafika.util.MiscUtils;
 
@@ -38,6 +42,8 @@ public class PlayMovieActivity extends Activity implements TextureView.SurfaceTe
     private boolean mSurfaceTextureReady = false;
 
     private MoviePlayer.PlayTask mPlayTask;
+    private MoviePlayer mPlayer;
+    private PlaybackMetrics mMetrics;
     private final Object mStopper = new Object();   // used to signal stop
 
     @Override
@@ -79,6 +85,8 @@ public class PlayMovieActivity extends Activity implements TextureView.SurfaceTe
             stopPlayback();
             mPlayTask.waitForStop();
         }
+        // Keep decoders warm while we're switching clips, but not while we're in the background.
+        DecoderPool.getDefault().clear();
     }
 
     /**
@@ -155,18 +163,26 @@ public class PlayMovieActivity extends Activity implements TextureView.SurfaceTe
                 // TODO: consider changing this to be "free running" mode
                 callback.setFixedPlaybackRate(60);
             }
+            PlaybackMetrics metrics = new PlaybackMetrics();
+            callback.setMetrics(metrics);
             SurfaceTexture st = mTextureView.getSurfaceTexture();
             Surface surface = new Surface(st);
             MoviePlayer player = null;
             try {
                 player = new MoviePlayer(
-                        new File(getFilesDir(), mMovieFiles[mSelectedMovie]), surface, callback);
+                        new File(getFilesDir(), mMovieFiles[mSelectedMovie]), surface, callback,
+                        new MediaIndexCache(new File(getCacheDir(), "movie-index")));
             } catch (IOException ioe) {
                 Log.e(TAG, "Unable to play movie", ioe);
                 surface.release();
                 return;
             }
             adjustAspectRatio(player.getVideoWidth(), player.getVideoHeight());
+            player.setDecoderPool(DecoderPool.getDefault());
+            player.setReadAheadBudget(PrefetchingExtractor.DEFAULT_BUDGET_BYTES);
+            player.setMetrics(metrics);
+            mPlayer = player;
+            mMetrics = metrics;
 
             mPlayTask = new MoviePlayer.PlayTask(player, this);
             if (((CheckBox) findViewById(R.id.loopPlayback_checkbox)).isChecked()) {
@@ -191,6 +207,27 @@ public class PlayMovieActivity extends Activity implements TextureView.SurfaceTe
     @Override // MoviePlayer.PlayerFeedback
     public void playbackStopped() {
         Log.d(TAG, "playback stopped");
+        PrefetchingExtractor readAhead = (mPlayer != null) ? mPlayer.getReadAhead() : null;
+        if (readAhead != null && readAhead.isReadingAhead()) {
+            Log.d(TAG, "read-ahead: " + readAhead.getSamplesTaken() + " samples, " +
+                    readAhead.getUnderrunCount() + " underruns (p99 stall " +
+                    readAhead.getStallHistogram().getPercentileUsec(99) + " us), min depth " +
+                    readAhead.getMinDepthBytes() + " bytes");
+        }
+        if (mMetrics != null) {
+            PlaybackMetrics.Snapshot snapshot = mMetrics.snapshot(false);
+            Log.d(TAG, "playback: " + snapshot.rendered + " rendered, " + snapshot.skipped +
+                    " skipped, decode p99 " + snapshot.decodeLatency.getPercentileUsec(99) +
+                    " us, late p99 " + snapshot.lateness.getPercentileUsec(99) + " us");
+            File file = new File(getCacheDir(), "playback-metrics.txt");
+            try {
+                snapshot.appendTo(file);
+            } catch (IOException ioe) {
+                Log.w(TAG, "Unable to write " + file, ioe);
+            }
+        }
+        mPlayer = null;
+        mMetrics = null;
         mShowStopLabel = false;
         mPlayTask = null;
         updateControls();
@@ -0,0 +1,162 @@
+package org.learn.test.grafika.component;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaRecorder;
+import android.util.Log;
+
+import org.learn.test.grafika.GrafikaMainActivity;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Created by zzr on 2018/01/22.
+ * <p>
+ * Records from the microphone, encodes to AAC, and adds the packets to a
+ * CircularEncoderBuffer as {@link CircularEncoderBuffer#TRACK_AUDIO}, next to the video
+ * the EncoderThread is adding.  The buffer interleaves the two tracks by pts.
+ * <p>
+ * Timestamps come from System.nanoTime(), the same clock as the camera's SurfaceTexture
+ * timestamps, so the audio lines up with the video without any extra bookkeeping.  A
+ * chunk's pts is the time it was read, minus the duration of the samples in it.
+ */
+public class AudioEncoderThread extends Thread {
+    private static final String TAG = GrafikaMainActivity.TAG+"-AudioEncoder";
+    private static final boolean VERBOSE = false;
+
+    private static final String AUDIO_MIME_TYPE = "audio/mp4a-latm";
+    private static final int SAMPLE_RATE = 48000;   //音频采样率
+    private static final int AUDIO_RATE = 128000;   //音频编码的密钥比特率
+    private static final int CHANNEL_COUNT = 2;     //音频编码通道数
+    private static final int CHANNEL_CONFIG = AudioFormat.CHANNEL_IN_STEREO;
+    private static final int AUDIO_FORMAT = AudioFormat.ENCODING_PCM_16BIT;
+    private static final int BYTES_PER_FRAME = CHANNEL_COUNT * 2;
+    private static final int TIMEOUT_USEC = 10000;
+
+    private final CircularEncoderBuffer mEncBuffer;
+    private AudioRecord mAudioRecorder;
+    private MediaCodec mAudioEncoder;
+    private MediaCodec.BufferInfo mBufferInfo;
+    private int mReadSize;
+    private volatile boolean mStopRequested;
+
+    /**
+     * Creates the recorder and the encoder.  Call start() to begin recording.
+     */
+    public AudioEncoderThread(CircularEncoderBuffer encBuffer) throws IOException {
+        super("CircularEncoder-audio");
+        mEncBuffer = encBuffer;
+        mBufferInfo = new MediaCodec.BufferInfo();
+
+        mReadSize = AudioRecord.getMinBufferSize(SAMPLE_RATE, CHANNEL_CONFIG, AUDIO_FORMAT);
+        mAudioRecorder = new AudioRecord(MediaRecorder.AudioSource.MIC, SAMPLE_RATE,
+                CHANNEL_CONFIG, AUDIO_FORMAT, mReadSize * 2);
+        if (mAudioRecorder.getState() != AudioRecord.STATE_INITIALIZED) {
+            mAudioRecorder.release();
+            mAudioRecorder = null;
+            throw new IOException("AudioRecord init failed");
+        }
+
+        MediaFormat format = MediaFormat.createAudioFormat(AUDIO_MIME_TYPE, SAMPLE_RATE,
+                CHANNEL_COUNT);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE,
+                MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, AUDIO_RATE);
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, mReadSize);
+        mAudioEncoder = MediaCodec.createEncoderByType(AUDIO_MIME_TYPE);
+        mAudioEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mAudioEncoder.start();
+    }
+
+    /**
+     * Asks the thread to stop.  Use join() to wait for it.
+     */
+    public void requestStop() {
+        mStopRequested = true;
+    }
+
+    @Override
+    public void run() {
+        try {
+            mAudioRecorder.startRecording();
+            while (!mStopRequested) {
+                feedEncoder();
+                drainEncoder();
+            }
+            mAudioRecorder.stop();
+        } catch (RuntimeException re) {
+            Log.e(TAG, "audio capture failed", re);
+        } finally {
+            mAudioEncoder.stop();
+            mAudioEncoder.release();
+            mAudioEncoder = null;
+            mAudioRecorder.release();
+            mAudioRecorder = null;
+        }
+        Log.d(TAG, "audio thread exiting");
+    }
+
+    /**
+     * Reads one chunk of PCM into the encoder, if it has an input buffer free.
+     */
+    private void feedEncoder() {
+        int inputIndex = mAudioEncoder.dequeueInputBuffer(TIMEOUT_USEC);
+        if (inputIndex < 0) {
+            if (VERBOSE) Log.d(TAG, "no audio input buffer available");
+            return;
+        }
+        ByteBuffer inputBuf = mAudioEncoder.getInputBuffers()[inputIndex];
+        inputBuf.clear();
+        int length = mAudioRecorder.read(inputBuf, Math.min(mReadSize, inputBuf.remaining()));
+        if (length <= 0) {
+            Log.w(TAG, "AudioRecord read returned " + length);
+            mAudioEncoder.queueInputBuffer(inputIndex, 0, 0, 0, 0);
+            return;
+        }
+        long durationUsec = (long) (length / BYTES_PER_FRAME) * 1000000L / SAMPLE_RATE;
+        long ptsUsec = System.nanoTime() / 1000 - durationUsec;
+        mAudioEncoder.queueInputBuffer(inputIndex, 0, length, ptsUsec, 0);
+    }
+
+    /**
+     * Moves everything the encoder has produced into the circular buffer.
+     */
+    private void drainEncoder() {
+        ByteBuffer[] outputBuffers = mAudioEncoder.getOutputBuffers();
+        while (true) {
+            int status = mAudioEncoder.dequeueOutputBuffer(mBufferInfo, 0);
+            if (status == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                break;
+            } else if (status == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                outputBuffers = mAudioEncoder.getOutputBuffers();
+            } else if (status == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                MediaFormat format = mAudioEncoder.getOutputFormat();
+                Log.d(TAG, "audio encoder output format changed: " + format);
+                mEncBuffer.setTrackFormat(CircularEncoderBuffer.TRACK_AUDIO, format);
+            } else if (status < 0) {
+                Log.w(TAG, "unexpected result from audio dequeueOutputBuffer: " + status);
+            } else {
+                ByteBuffer encodedData = outputBuffers[status];
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    // Already in the output format as csd-0.
+                    mBufferInfo.size = 0;
+                }
+                if (mBufferInfo.size != 0) {
+                    encodedData.position(mBufferInfo.offset);
+                    encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
+                    mEncBuffer.add(encodedData, mBufferInfo.flags,
+                            mBufferInfo.presentationTimeUs, CircularEncoderBuffer.TRACK_AUDIO);
+                    if (VERBOSE) {
+                        Log.d(TAG, "audio sent " + mBufferInfo.size + " bytes, ts=" +
+                                mBufferInfo.presentationTimeUs);
+                    }
+                }
+                mAudioEncoder.releaseOutputBuffer(status, false);
+            }
+        }
+    }
+}
@@ -3,6 +3,7 @@ package org.learn.test.grafika.component;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
+import android.os.Build;
 import android.os.Handler;
 import android.util.Log;
 import android.view.Surface;
@@ -20,7 +21,7 @@ public class CircularEncoder {
     private static final String TAG = GrafikaMainActivity.TAG;
     private static final boolean DEBUG = true;
 
-    private static final String MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
+    static final String MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
     private static final int IFRAME_INTERVAL = 1;           // sync frame every second
 
     /**
@@ -35,7 +36,8 @@ public class CircularEncoder {
         void fileSaveComplete(int status);
 
         /**
-         * Called occasionally.
+         * Called occasionally (a few times a second, while frames are arriving).  For
+         * more detail, poll {@link CircularEncoder#getMetrics()}.
          * @param totalTimeMsec Total length, in milliseconds, of buffered video.
          */
         void bufferStatus(long totalTimeMsec);
@@ -43,8 +45,12 @@ public class CircularEncoder {
 
 
     private EncoderThread mEncoderThread;
+    private AudioEncoderThread mAudioThread;
     private Surface mInputSurface;
     private MediaCodec mEncoder;
+    private CircularEncoderBuffer mEncBuffer;
+    private int mDesiredSpanSec;
+    private final EncoderMetrics mMetrics = new EncoderMetrics();
 
     /**
      * Configures encoder, and prepares the input Surface.
@@ -57,6 +63,30 @@ public class CircularEncoder {
      */
     public CircularEncoder(int width, int height, int bitRate, int frameRate,
                            int desiredSpanSec, Callback cb) throws IOException {
+        this(width, height, bitRate, frameRate, desiredSpanSec, null, cb);
+    }
+
+    /**
+     * Configures encoder, and prepares the input Surface.  If backingFile is non-null the
+     * buffer lives in that memory-mapped file instead of memory, which allows long spans
+     * and survives a crash (see {@link #saveRecoveredVideo(File, File)}).  The file is
+     * overwritten.
+     */
+    public CircularEncoder(int width, int height, int bitRate, int frameRate,
+                           int desiredSpanSec, File backingFile, Callback cb) throws IOException {
+        this(width, height, bitRate, frameRate, desiredSpanSec, backingFile, false, cb);
+    }
+
+    /**
+     * Like the other constructors.  If asyncOutput is set (and the device is API 23+), the
+     * codec pushes each output buffer to the encoder thread as soon as it's ready, through
+     * MediaCodec.setCallback(), instead of the encoder thread polling for output when
+     * frameAvailableSoon() is called.  Compare the two with
+     * {@link EncoderMetrics#getDrainLatency()}.
+     */
+    public CircularEncoder(int width, int height, int bitRate, int frameRate,
+                           int desiredSpanSec, File backingFile, boolean asyncOutput,
+                           Callback cb) throws IOException {
         // The goal is to size the buffer so that we can accumulate N seconds worth of video,
         // where N is passed in as "desiredSpanSec".  If the codec generates data at roughly
         // the requested bit rate, we can compute it(total) as time * bitRate / bitsPerByte.
@@ -70,7 +100,19 @@ public class CircularEncoder {
             throw new RuntimeException("Requested time span is too short: " + desiredSpanSec +
                     " vs. " + (IFRAME_INTERVAL * 2));
         }
-        CircularEncoderBuffer encBuffer = new CircularEncoderBuffer(bitRate, frameRate, desiredSpanSec);
+        CircularEncoderBuffer encBuffer;
+        if (backingFile != null) {
+            encBuffer = new CircularEncoderBuffer(bitRate, frameRate, desiredSpanSec,
+                    backingFile);
+        } else {
+            // Keep the encoded data off the Java heap when we can.  With the mirrored ring every
+            // packet is a contiguous slice of a direct buffer, so saves neither allocate nor copy.
+            encBuffer = new CircularEncoderBuffer(bitRate, frameRate, desiredSpanSec, true);
+        }
+        mEncBuffer = encBuffer;
+        mDesiredSpanSec = desiredSpanSec;
+        mMetrics.setTargetBitRate(bitRate);
+        encBuffer.setMetrics(mMetrics);
 
         // Set some properties.  Failing to specify some of these can cause
         // the MediaCodec configure() call to throw an unhelpful exception.
@@ -85,15 +127,28 @@ public class CircularEncoder {
         // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
         // we can use for input and wrap it with a class that handles the EGL work.
         mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
+        if (asyncOutput && Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            Log.w(TAG, "async output needs API 23, polling instead");
+            asyncOutput = false;
+        }
+        if (asyncOutput) {
+            // The callback has to be registered before configure(), and it runs on the
+            // encoder thread, so in this mode the thread starts first.
+            mEncoderThread = new EncoderThread(mEncoder, encBuffer, cb, mMetrics, true);
+            mEncoderThread.start();
+            mEncoderThread.waitUntilReady();
+        }
         mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mInputSurface = mEncoder.createInputSurface();
         mEncoder.start();
 
-        // Start the encoder thread last.
-        // That way we're sure it can see all of the state we've initialized.
-        mEncoderThread = new EncoderThread(mEncoder, encBuffer, cb);
-        mEncoderThread.start();
-        mEncoderThread.waitUntilReady();
+        if (!asyncOutput) {
+            // Start the encoder thread last.
+            // That way we're sure it can see all of the state we've initialized.
+            mEncoderThread = new EncoderThread(mEncoder, encBuffer, cb, mMetrics, false);
+            mEncoderThread.start();
+            mEncoderThread.waitUntilReady();
+        }
     }
 
     /**
@@ -108,21 +163,109 @@ public class CircularEncoder {
      * The data will be written as a .mp4 file.  The call returns immediately.
      * When the file save completes, the callback will be notified.
 
-     * The file generation is performed on the encoder thread, which means we won't be
-     * draining the output buffers while this runs.  It would be wise to stop submitting
-     * frames during this time.
+     * The file generation is performed on a separate mux thread from a pinned snapshot of
+     * the buffer, so the encoder keeps being drained and frames can keep coming in.
      */
     public boolean saveVideo(File outputFile) {
+        return saveVideo(outputFile, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #saveVideo(File)}, but only saves [fromUsec, toUsec] (presentation time).
+     * The clip starts at the sync frame at or before fromUsec.
+     */
+    public boolean saveVideo(File outputFile, long fromUsec, long toUsec) {
+        return sendSaveRequest(new EncoderThread.SaveRequest(outputFile, fromUsec, toUsec, 0));
+    }
+
+    /**
+     * Like {@link #saveVideo(File)}, but only saves the most recent durationUsec of video,
+     * measured back from the newest buffered frame when the save starts.
+     */
+    public boolean saveLast(File outputFile, long durationUsec) {
+        return sendSaveRequest(new EncoderThread.SaveRequest(outputFile, 0, 0, durationUsec));
+    }
+
+    private boolean sendSaveRequest(EncoderThread.SaveRequest request) {
         Handler handler = mEncoderThread.getHandler();
         if(handler!=null){
             handler.sendMessage(handler.obtainMessage(
-                    EncoderThread.EncoderHandler.MSG_SAVE_VIDEO, outputFile));
+                    EncoderThread.EncoderHandler.MSG_SAVE_VIDEO, request));
             return true;
         } else {
             return false;
         }
     }
 
+    /**
+     * Sizes the buffer from the bit rate and frame rate the codec actually produces, so
+     * that it keeps holding desiredSpanSec of video, within the given memory limits.
+     * Not available with a backing file.
+     */
+    public void setAdaptiveSizing(long minMemoryBytes, long maxMemoryBytes) {
+        mEncBuffer.setAdaptiveSizing(mDesiredSpanSec, minMemoryBytes, maxMemoryBytes);
+    }
+
+    /**
+     * Returns the live counters for this encoder.  Safe to poll from any thread.
+     */
+    public EncoderMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Turns pre-muxing on or off (off by default).  With it on, each GOP is turned into an
+     * fMP4 fragment as soon as it closes, and saves write fragmented .mp4 files almost
+     * instantly, at the cost of a second copy of the encoded data: a fragment pool a bit bigger
+     * than the buffer, allocated here, and counted against the limits given to
+     * {@link #setAdaptiveSizing}.  With it off, saves run every packet through MediaMuxer.
+     * Not available with a backing file.
+     */
+    public void setPremuxedSaves(boolean enabled) {
+        mEncoderThread.setPremuxEnabled(enabled);
+    }
+
+    /**
+     * Starts recording microphone audio into the buffer next to the video, so saved files
+     * get an AAC track.  Needs the RECORD_AUDIO permission.  Audio is not kept across a
+     * crash: {@link #saveRecoveredVideo(File, File)} only restores the video track.
+     */
+    public void startAudio() throws IOException {
+        if (mAudioThread != null) {
+            return;
+        }
+        mAudioThread = new AudioEncoderThread(mEncBuffer);
+        mAudioThread.start();
+    }
+
+    /**
+     * Saves the contents of a file-backed ring left behind by an earlier run (e.g. one that
+     * crashed) to an .mp4 file.  Runs synchronously on the calling thread.  Must not be
+     * used on a file that a live CircularEncoder is writing.
+     *
+     * @return zero on success, nonzero on failure (same codes as fileSaveComplete()).
+     */
+    public static int saveRecoveredVideo(File backingFile, File outputFile) throws IOException {
+        CircularEncoderBuffer encBuffer = CircularEncoderBuffer.recover(backingFile);
+        if (encBuffer == null) {
+            return 4;
+        }
+        try {
+            CircularEncoderBuffer.Snapshot snapshot = encBuffer.acquireSnapshot();
+            if (snapshot == null) {
+                Log.w(TAG, "nothing recoverable in " + backingFile);
+                return 1;
+            }
+            try {
+                return EncoderThread.writeSnapshot(snapshot, outputFile);
+            } finally {
+                snapshot.release();
+            }
+        } finally {
+            encBuffer.release();
+        }
+    }
+
     /**
      * Notifies the encoder thread that a new frame will shortly be provided to the encoder.
      * <p>
@@ -140,8 +283,10 @@ public class CircularEncoder {
     public void frameAvailableSoon() {
         Handler handler = mEncoderThread.getHandler();
         if(handler!=null){
+            long now = System.nanoTime();
             handler.sendMessage(handler.obtainMessage(
-                    EncoderThread.EncoderHandler.MSG_FRAME_AVAILABLE_SOON));
+                    EncoderThread.EncoderHandler.MSG_FRAME_AVAILABLE_SOON,
+                    (int) (now >> 32), (int) now));
         }
     }
 
@@ -151,6 +296,15 @@ public class CircularEncoder {
      */
     public void shutdown() {
         if (DEBUG) Log.d(TAG, "releasing encoder objects");
+        if (mAudioThread != null) {
+            mAudioThread.requestStop();
+            try {
+                mAudioThread.join();
+            } catch (InterruptedException ie) {
+                Log.w(TAG, "Audio thread join() was interrupted", ie);
+            }
+            mAudioThread = null;
+        }
         Handler handler = mEncoderThread.getHandler();
         if(handler!=null){
             handler.sendMessage(handler.obtainMessage(EncoderThread.EncoderHandler.MSG_SHUTDOWN));
@@ -165,6 +319,10 @@ public class CircularEncoder {
             mEncoder.release();
             mEncoder = null;
         }
+        if (mEncBuffer != null) {
+            mEncBuffer.release();
+            mEncBuffer = null;
+        }
     }
 
 
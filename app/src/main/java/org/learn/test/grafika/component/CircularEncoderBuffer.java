@@ -1,11 +1,24 @@
 package org.learn.test.grafika.component;
 
 import android.media.MediaCodec;
+import android.media.MediaFormat;
 import android.util.Log;
 
 import org.learn.test.grafika.GrafikaMainActivity;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import static android.util.Log.VERBOSE;
 
@@ -14,9 +27,53 @@ import static android.util.Log.VERBOSE;
  */
 
 public class CircularEncoderBuffer {
+    // Track ids.  Packets from all tracks share one ring, in arrival order, so eviction is
+    // the same for every track.  Sync frames (and so GOP eviction) come from the video track.
+    public static final int TRACK_VIDEO = 0;
+    public static final int TRACK_AUDIO = 1;
+    public static final int MAX_TRACKS = 4;
+
     private static final String TAG = GrafikaMainActivity.TAG;
     private static final boolean EXTRA_DEBUG = true;
     private static final boolean DEBUG = true;
+
+    // Layout of the backing file in file-backed mode.  Everything lives in the mapping,
+    // so after a crash the file alone is enough to rebuild the ring:
+    //
+    //   [0, HEADER_SIZE)   fixed header (fields below) + encoder format (csd-0, csd-1)
+    //   metadata           int flags[metaLen], long pts[metaLen], int start[metaLen],
+    //                      int length[metaLen], int track[metaLen], int next[metaLen]
+    //   data               dataLen bytes of encoded packets, page aligned
+    private static final int FILE_MAGIC = 0x43454246;   // "CEBF"
+    private static final int FILE_VERSION = 2;
+    private static final int HDR_MAGIC = 0;
+    private static final int HDR_VERSION = 4;
+    private static final int HDR_DATA_LEN = 8;
+    private static final int HDR_META_LEN = 12;
+    private static final int HDR_HEAD = 16;
+    private static final int HDR_TAIL = 20;
+    private static final int HDR_WIDTH = 24;
+    private static final int HDR_HEIGHT = 28;
+    private static final int HDR_CSD0_LEN = 32;
+    private static final int HDR_CSD1_LEN = 36;
+    private static final int HDR_CSD = 64;
+    private static final int MAX_CSD_SIZE = (4096 - HDR_CSD) / 2;
+    private static final int HEADER_SIZE = 4096;
+    private static final int PAGE_SIZE = 4096;
+
+    // Adaptive sizing.  Rates are averaged per GOP with weight ADAPT_ALPHA, and we only act
+    // once ADAPT_MIN_GOPS have been seen and the ideal size is more than ADAPT_HYSTERESIS
+    // away from the current one.  META_ENTRY_BYTES is the heap cost of one meta-data slot
+    // (flags, pts, start, length, plus the key frame index).
+    private static final double ADAPT_ALPHA = 0.25;
+    private static final int ADAPT_MIN_GOPS = 2;
+    private static final double ADAPT_HYSTERESIS = 0.25;
+    private static final double ADAPT_DATA_HEADROOM = 1.25;
+    private static final double ADAPT_META_HEADROOM = 1.5;
+    // Fragments run a little bigger than the packets they hold (moof boxes, NAL lengths),
+    // and the pool wastes some space when it wraps.
+    private static final double FRAGMENT_POOL_HEADROOM = 1.125;
+    private static final int META_ENTRY_BYTES = 4 + 8 + 4 + 4 + 4 + 4 + 4 + 8;
     // Raw data (e.g. AVC NAL units) held here.
     //
     // The MediaMuxer writeSampleData() function takes a ByteBuffer.  If it's a "direct"
@@ -28,85 +85,523 @@ public class CircularEncoderBuffer {
     // as needed.  This is a bit awkward when we hit the edge of the buffer, but for that
     // we can just do an allocation and data copy (we know it happens at most once per file
     // save operation).
+    //
+    // When the off-heap ring is available, mDataBuffer is null and mDataBufferWrapper is
+    // a direct buffer whose second half mirrors the first (see MirroredRingBuffer).  A
+    // packet that runs off the end simply continues into the mirror, so it is always one
+    // contiguous slice and we never split or copy.  In file-backed mode, mDataBuffer is
+    // null and mDataBufferWrapper is a slice of the file mapping.
     private ByteBuffer mDataBufferWrapper;
     private byte[] mDataBuffer;
+    private MirroredRingBuffer mMirroredRing;
+    private int mDataLen;
+    // Writer-private view, so the writer's position/limit never disturb a reader.
+    private ByteBuffer mWriteView;
+
+    // File-backed mode only.  The header mapping also holds the metadata and the data.
+    private RandomAccessFile mBackingFile;
+    private MappedByteBuffer mHeader;
 
-    private int[] mPacketFlags;
-    private long[] mPacketPtsUsec;
-    private int[] mPacketStart;
-    private int[] mPacketLength;
+    // Packet meta-data.  Plain heap buffers, or views into the mapped header.
+    private int mMetaLen;
+    private IntBuffer mPacketFlags;
+    private LongBuffer mPacketPtsUsec;
+    private IntBuffer mPacketStart;
+    private IntBuffer mPacketLength;
+    // Track of each packet, and the index of the next packet of the same track (or -1).
+    // The links let a save walk each track and merge them by pts without rescanning.
+    private IntBuffer mPacketTrack;
+    private IntBuffer mPacketNext;
+    // Newest packet of each track, or -1.  Only meaningful while it's still in the ring.
+    private final int[] mTrackLast = new int[MAX_TRACKS];
+    private final MediaFormat[] mTrackFormats = new MediaFormat[MAX_TRACKS];
     // Data is added at head and removed from tail.  Head points to an empty node, so if
     // head==tail the list is empty.
     private int mMetaHead;
     private int mMetaTail;
 
+    // Sync frame index: meta-data index and pts of each key frame in the buffer, oldest at
+    // mKeyTail.  Maintained by add() and removeTail(), so finding the GOP to start a save
+    // from is a binary search instead of a walk over every packet.  Kept on the heap even
+    // in file-backed mode; recover() rebuilds it.
+    private int[] mKeyIndex;
+    private long[] mKeyPtsUsec;
+    private int mKeyHead;
+    private int mKeyTail;
+
+    // Adaptive sizing state (in-memory modes only; see setAdaptiveSizing()).
+    private boolean mAdaptive;
+    private int mAdaptiveSpanSec;
+    private long mMinMemoryBytes;
+    private long mMaxMemoryBytes;
+    private double mAvgBytesPerSec;
+    private double mAvgPacketsPerSec;
+    private int mGopsMeasured;
+    private long mGopStartPtsUsec = -1;
+    private long mGopBytes;
+    private int mGopPackets;
+    // Resize being built on its own thread, or null.  Guarded by "this".
+    private ResizeJob mResize;
+
+    // Saves in progress.  Each one pins the packets it hasn't read yet; evicting a pinned
+    // packet overruns its snapshot.  Guarded by "this", like the head and tail.
+    private final ArrayList<Snapshot> mSnapshots = new ArrayList<Snapshot>();
+    // Snapshots not yet released, including ones dropped for being too slow, whose readers
+    // may still be looking at the ring.  A resize isn't swapped in until this reaches zero.
+    private int mOpenSnapshots;
+    // Bytes of packet data in the ring, and where to report it.
+    private long mUsedBytes;
+    private EncoderMetrics mMetrics;
+    // Pre-muxed fMP4 fragments, one per closed GOP, oldest first, stored back to back in a
+    // pool allocated once (see setFragmentPool()).  Dropped with their GOP, or to make
+    // room for a newer one, unless a save is still writing them out.
+    private final ArrayDeque<Fragment> mFragments = new ArrayDeque<Fragment>();
+    private ByteBuffer mFragmentPool;
+    private ByteBuffer mReservedFragment;   // handed out by reserveFragment(), not attached
+    private int mReservedOffset;
+
 
     // Allocates the circular buffers we use for encoded data and meta-data.
     public CircularEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec) {
+        this(bitRate, frameRate, desiredSpanSec, false);
+    }
+
+    /**
+     * Allocates the circular buffers.  If offHeap is set we try to put the encoded data in
+     * a mirrored off-heap ring, and fall back to a heap byte[] if that isn't possible.
+     */
+    public CircularEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec,
+                                 boolean offHeap) {
         // For the encoded data, we assume the encoded bit rate is close to what we request.
         //
         // There would be a minor performance advantage to using a power of two here, because
         // not all ARM CPUs support integer modulus.
         int dataBufferSize = bitRate * desiredSpanSec / 8;
-        mDataBuffer = new byte[dataBufferSize];
-        mDataBufferWrapper = ByteBuffer.wrap(mDataBuffer);
 
         // Meta-data is smaller than encoded data for non-trivial frames, so we over-allocate a bit.
         // This should ensure that we drop packets because we ran out of (expensive)
         // data storage rather than (inexpensive) metadata storage.
         int metaBufferCount = frameRate * desiredSpanSec * 2;
-        mPacketFlags = new int[metaBufferCount];
-        mPacketPtsUsec = new long[metaBufferCount];
-        mPacketStart = new int[metaBufferCount];
-        mPacketLength = new int[metaBufferCount];
+        install(Storage.allocate(dataBufferSize, metaBufferCount, offHeap));
+        dataBufferSize = mDataLen;
 
         if (DEBUG) {
             Log.d(TAG, "CBE: bitRate=" + bitRate + " frameRate=" + frameRate +
                     " desiredSpan=" + desiredSpanSec +"\n"+ " dataBufferSize=" + dataBufferSize +
+                    " metaBufferCount=" + metaBufferCount + " offHeap=" + (mMirroredRing != null));
+        }
+    }
+
+    /**
+     * Allocates the circular buffers in a preallocated, memory-mapped file.  The Java heap
+     * only holds a few small objects, so this is the way to get spans of several minutes.
+     * The file survives a crash; see {@link #recover(File)}.
+     */
+    public CircularEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec,
+                                 File backingFile) throws IOException {
+        long dataLen = (long) bitRate * desiredSpanSec / 8;
+        dataLen = (dataLen + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+        int metaBufferCount = frameRate * desiredSpanSec * 2;
+        long dataOffset = getDataOffset(metaBufferCount);
+        if (dataOffset + dataLen > Integer.MAX_VALUE) {
+            throw new RuntimeException("Backing file too large: " + (dataOffset + dataLen));
+        }
+
+        mBackingFile = new RandomAccessFile(backingFile, "rw");
+        mBackingFile.setLength(dataOffset + dataLen);
+        mapBackingFile((int) dataLen, metaBufferCount);
+
+        mHeader.putInt(HDR_VERSION, FILE_VERSION);
+        mHeader.putInt(HDR_DATA_LEN, (int) dataLen);
+        mHeader.putInt(HDR_META_LEN, metaBufferCount);
+        mHeader.putInt(HDR_CSD0_LEN, 0);
+        mHeader.putInt(HDR_CSD1_LEN, 0);
+        persistHeadTail();
+        // Write the magic last, so a half-initialized file is never taken for a valid one.
+        mHeader.putInt(HDR_MAGIC, FILE_MAGIC);
+
+        if (DEBUG) {
+            Log.d(TAG, "CBE: file=" + backingFile + " dataBufferSize=" + dataLen +
                     " metaBufferCount=" + metaBufferCount);
         }
     }
 
+    private CircularEncoderBuffer() {
+    }
+
     /**
-     * Computes the amount of time spanned by the buffered data,
-     * based on the presentation time stamps.
+     * Switches to freshly allocated in-memory storage, empty.  Doesn't allocate, so a
+     * resize can call it on the encoder thread.
      */
-    public long computeTimeSpanUsec() {
-        final int metaLen = mPacketStart.length;
-        if (mMetaHead == mMetaTail) {
-            // empty list
+    private void install(Storage storage) {
+        mMirroredRing = storage.mRing;
+        mDataBuffer = storage.mHeap;
+        mDataBufferWrapper = storage.mData;
+        mDataLen = storage.mDataLen;
+        mWriteView = mDataBufferWrapper.duplicate();
+
+        mMetaLen = storage.mMetaLen;
+        mPacketFlags = storage.mFlags;
+        mPacketPtsUsec = storage.mPts;
+        mPacketStart = storage.mStart;
+        mPacketLength = storage.mLength;
+        mPacketTrack = storage.mTrack;
+        mPacketNext = storage.mNext;
+        mKeyIndex = storage.mKeyIndex;
+        mKeyPtsUsec = storage.mKeyPtsUsec;
+        mKeyHead = mKeyTail = 0;
+        mMetaHead = mMetaTail = 0;
+        Arrays.fill(mTrackLast, -1);
+    }
+
+    /**
+     * Rebuilds a file-backed ring after a crash (or a normal shutdown).  The packets and
+     * the encoder format are read back from the file, so the result can be handed to a
+     * save straight away.  The ring can also keep being appended to.
+     *
+     * @return the recovered buffer, or null if the file isn't a valid ring.
+     */
+    public static CircularEncoderBuffer recover(File backingFile) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(backingFile, "rw");
+        boolean ok = false;
+        try {
+            if (raf.length() < HEADER_SIZE) {
+                Log.w(TAG, "recover: file too short: " + backingFile);
+                return null;
+            }
+            MappedByteBuffer header = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    0, HEADER_SIZE);
+            header.order(ByteOrder.nativeOrder());
+            int dataLen = header.getInt(HDR_DATA_LEN);
+            int metaLen = header.getInt(HDR_META_LEN);
+            if (header.getInt(HDR_MAGIC) != FILE_MAGIC
+                    || header.getInt(HDR_VERSION) != FILE_VERSION
+                    || dataLen <= 0 || metaLen <= 0
+                    || raf.length() < getDataOffset(metaLen) + dataLen) {
+                Log.w(TAG, "recover: bad header in " + backingFile);
+                return null;
+            }
+
+            CircularEncoderBuffer buffer = new CircularEncoderBuffer();
+            buffer.mBackingFile = raf;
+            buffer.mapBackingFile(dataLen, metaLen);
+            int head = buffer.mHeader.getInt(HDR_HEAD);
+            int tail = buffer.mHeader.getInt(HDR_TAIL);
+            if (head < 0 || head >= metaLen || tail < 0 || tail >= metaLen) {
+                Log.w(TAG, "recover: bad head/tail " + head + "/" + tail);
+                return null;
+            }
+            buffer.mMetaHead = head;
+            buffer.mMetaTail = tail;
+            buffer.rebuildIndexes();
+            buffer.mTrackFormats[TRACK_VIDEO] = buffer.getSavedFormat();
+            if (DEBUG) {
+                Log.d(TAG, "recovered " + backingFile + " head=" + head + " tail=" + tail +
+                        " span=" + buffer.computeTimeSpanUsec() + "us");
+            }
+            ok = true;
+            return buffer;
+        } finally {
+            if (!ok) {
+                raf.close();
+            }
+        }
+    }
+
+    // The key frame index can never hold more entries than there are packets.
+    private void allocKeyIndex(int metaLen) {
+        mKeyIndex = new int[metaLen];
+        mKeyPtsUsec = new long[metaLen];
+        mKeyHead = mKeyTail = 0;
+        Arrays.fill(mTrackLast, -1);
+    }
+
+    // Rebuilds the key frame index and the per-track links with a single walk over the packets.
+    private void rebuildIndexes() {
+        mKeyHead = mKeyTail = 0;
+        mUsedBytes = 0;
+        Arrays.fill(mTrackLast, -1);
+        for (int index = mMetaTail; index != mMetaHead; index = (index + 1) % mMetaLen) {
+            mUsedBytes += mPacketLength.get(index);
+            int track = mPacketTrack.get(index);
+            if (track == TRACK_VIDEO
+                    && (mPacketFlags.get(index) & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                addKeyFrame(index, mPacketPtsUsec.get(index));
+            }
+            linkPacket(index, track);
+        }
+    }
+
+    // Appends the packet at "index" to its track's chain.
+    private void linkPacket(int index, int track) {
+        int prev = mTrackLast[track];
+        if (prev >= 0) {
+            mPacketNext.put(prev, index);
+        }
+        mPacketNext.put(index, -1);
+        mTrackLast[track] = index;
+    }
+
+    private void addKeyFrame(int index, long ptsUsec) {
+        mKeyIndex[mKeyHead] = index;
+        mKeyPtsUsec[mKeyHead] = ptsUsec;
+        mKeyHead = (mKeyHead + 1) % mKeyIndex.length;
+    }
+
+    private static long getDataOffset(int metaLen) {
+        long metaBytes = (long) metaLen * (4 + 8 + 4 + 4 + 4 + 4);
+        return (HEADER_SIZE + metaBytes + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+    }
+
+    /**
+     * Maps the whole backing file and carves the header, metadata and data out of it.
+     */
+    private void mapBackingFile(int dataLen, int metaLen) throws IOException {
+        long dataOffset = getDataOffset(metaLen);
+        mHeader = mBackingFile.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                0, dataOffset + dataLen);
+        mHeader.order(ByteOrder.nativeOrder());
+
+        int offset = HEADER_SIZE;
+        mPacketFlags = sliceAt(offset, metaLen * 4).asIntBuffer();
+        offset += metaLen * 4;
+        mPacketPtsUsec = sliceAt(offset, metaLen * 8).asLongBuffer();
+        offset += metaLen * 8;
+        mPacketStart = sliceAt(offset, metaLen * 4).asIntBuffer();
+        offset += metaLen * 4;
+        mPacketLength = sliceAt(offset, metaLen * 4).asIntBuffer();
+        offset += metaLen * 4;
+        mPacketTrack = sliceAt(offset, metaLen * 4).asIntBuffer();
+        offset += metaLen * 4;
+        mPacketNext = sliceAt(offset, metaLen * 4).asIntBuffer();
+        mMetaLen = metaLen;
+        allocKeyIndex(metaLen);
+
+        mDataBufferWrapper = sliceAt((int) dataOffset, dataLen);
+        mDataLen = dataLen;
+        mWriteView = mDataBufferWrapper.duplicate();
+    }
+
+    private ByteBuffer sliceAt(int offset, int length) {
+        ByteBuffer dup = mHeader.duplicate();
+        dup.position(offset);
+        dup.limit(offset + length);
+        return dup.slice().order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Writes head and tail to the file header.  Called after the packet data and metadata
+     * are in place, so a crash at any point leaves a consistent (if slightly stale) ring.
+     */
+    private void persistHeadTail() {
+        if (mHeader != null) {
+            mHeader.putInt(HDR_TAIL, mMetaTail);
+            mHeader.putInt(HDR_HEAD, mMetaHead);
+        }
+    }
+
+    /**
+     * Records the encoder output format of a track.  Saves pick it up from here.  For the
+     * video track in file-backed mode the size and codec-specific data are also written to
+     * the header, so a recovered ring can still be muxed.  (Other tracks aren't persisted;
+     * a recovered ring is video-only.)
+     */
+    public synchronized void setTrackFormat(int track, MediaFormat format) {
+        mTrackFormats[track] = format;
+        if (mHeader == null || track != TRACK_VIDEO) {
+            return;
+        }
+        ByteBuffer csd0 = format.getByteBuffer("csd-0");
+        ByteBuffer csd1 = format.getByteBuffer("csd-1");
+        if (csd0 == null || csd1 == null
+                || csd0.remaining() > MAX_CSD_SIZE || csd1.remaining() > MAX_CSD_SIZE) {
+            Log.w(TAG, "setFormat: missing or oversized csd, recovery won't be possible");
+            return;
+        }
+        mHeader.putInt(HDR_WIDTH, format.getInteger(MediaFormat.KEY_WIDTH));
+        mHeader.putInt(HDR_HEIGHT, format.getInteger(MediaFormat.KEY_HEIGHT));
+        ByteBuffer dst = sliceAt(HDR_CSD, MAX_CSD_SIZE * 2);
+        dst.put(csd0.duplicate());
+        dst.put(csd1.duplicate());
+        mHeader.putInt(HDR_CSD0_LEN, csd0.remaining());
+        mHeader.putInt(HDR_CSD1_LEN, csd1.remaining());
+    }
+
+    /**
+     * Returns the video format saved in the header of a file-backed ring.
+     *
+     * @return the format, or null if none was saved or this isn't a file-backed ring.
+     */
+    public synchronized MediaFormat getSavedFormat() {
+        if (mHeader == null) {
+            return null;
+        }
+        int csd0Len = mHeader.getInt(HDR_CSD0_LEN);
+        int csd1Len = mHeader.getInt(HDR_CSD1_LEN);
+        if (csd0Len <= 0 || csd1Len <= 0) {
+            return null;
+        }
+        MediaFormat format = MediaFormat.createVideoFormat(CircularEncoder.MIME_TYPE,
+                mHeader.getInt(HDR_WIDTH), mHeader.getInt(HDR_HEIGHT));
+        format.setByteBuffer("csd-0", copyOf(sliceAt(HDR_CSD, csd0Len)));
+        format.setByteBuffer("csd-1", copyOf(sliceAt(HDR_CSD + csd0Len, csd1Len)));
+        return format;
+    }
+
+    /**
+     * Reports occupancy and evictions to "metrics" from now on.
+     */
+    public synchronized void setMetrics(EncoderMetrics metrics) {
+        mMetrics = metrics;
+        publishOccupancy();
+    }
+
+    private void publishOccupancy() {
+        if (mMetrics != null) {
+            mMetrics.setOccupancy(mUsedBytes, (mMetaHead - mMetaTail + mMetaLen) % mMetaLen,
+                    computeTimeSpanUsec(), mDataLen);
+        }
+    }
+
+    /**
+     * Returns the current format of "track", or null if the encoder hasn't reported one.
+     */
+    public synchronized MediaFormat getTrackFormat(int track) {
+        return mTrackFormats[track];
+    }
+
+    private static ByteBuffer copyOf(ByteBuffer src) {
+        ByteBuffer copy = ByteBuffer.allocateDirect(src.remaining());
+        copy.put(src);
+        copy.flip();
+        return copy;
+    }
+
+    /**
+     * Returns true if the encoded data lives in the mirrored off-heap ring.
+     */
+    public boolean isOffHeap() {
+        return mMirroredRing != null;
+    }
+
+    /**
+     * Returns true if the buffer lives in a memory-mapped file.
+     */
+    public boolean isFileBacked() {
+        return mHeader != null;
+    }
+
+    /**
+     * Frees the off-heap ring, if any, and flushes and closes the backing file, if any.
+     * The buffer must not be used afterward.
+     */
+    public void release() {
+        ResizeJob resize;
+        synchronized (this) {
+            mFragments.clear();
+            mFragmentPool = null;
+            mReservedFragment = null;
+            resize = mResize;
+            abortResize();
+        }
+        if (resize != null) {
+            // It may still be copying out of the ring.
+            try {
+                resize.mThread.join();
+            } catch (InterruptedException ie) {
+                Log.w(TAG, "resize thread join() was interrupted", ie);
+            }
+        }
+        if (mMirroredRing != null) {
+            mMirroredRing.release();
+            mMirroredRing = null;
+            mDataBufferWrapper = null;
+            mWriteView = null;
+        }
+        if (mBackingFile != null) {
+            mHeader.force();
+            try {
+                mBackingFile.close();
+            } catch (IOException ioe) {
+                Log.w(TAG, "failed closing backing file", ioe);
+            }
+            mBackingFile = null;
+        }
+    }
+
+    /**
+     * Computes the amount of usable time in the buffer, i.e. from the oldest sync frame
+     * to the newest packet, based on the presentation time stamps.
+     */
+    public synchronized long computeTimeSpanUsec() {
+        final int metaLen = mMetaLen;
+        if (mMetaHead == mMetaTail || mKeyHead == mKeyTail) {
+            // empty list, or nothing we could decode
             return 0;
         }
         // head points to the next available node, so grab the previous one
         int beforeHead = (mMetaHead + metaLen - 1) % metaLen;
-        return mPacketPtsUsec[beforeHead] - mPacketPtsUsec[mMetaTail];
+        return mPacketPtsUsec.get(beforeHead) - mKeyPtsUsec[mKeyTail];
     }
 
     /**
      * Returns the index of the oldest sync frame.  Valid until the next add().
-     * When sending output to a MediaMuxer, start here.
+     * When sending output to a MediaMuxer, start here.  Since add() evicts whole GOPs,
+     * this is normally the tail packet.
+     * <p>
+     * Only safe on the thread that calls add(); other threads should use a {@link Snapshot}.
      */
-    public int getFirstIndex() {
-        final int metaLen = mPacketStart.length;
-        int index = mMetaTail;
-        while (index != mMetaHead) {
-            if ((mPacketFlags[index] & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
-                break;
-            }
-            index = (index + 1) % metaLen;
-        }
-        if (index == mMetaHead) {
+    public synchronized int getFirstIndex() {
+        if (mKeyHead == mKeyTail) {
             Log.w(TAG, "HEY: could not find sync frame in buffer");
-            index = -1;
+            return -1;
+        }
+        return mKeyIndex[mKeyTail];
+    }
+
+    /**
+     * Returns the presentation time of the newest packet, or -1 if the buffer is empty.
+     */
+    public synchronized long getNewestPtsUsec() {
+        if (mMetaHead == mMetaTail) {
+            return -1;
         }
-        return index;
+        return mPacketPtsUsec.get((mMetaHead + mMetaLen - 1) % mMetaLen);
+    }
+
+    /**
+     * Finds the sync frame that starts the GOP containing "timeUsec": the newest key frame
+     * at or before it, or the oldest key frame if timeUsec is older than everything.
+     *
+     * @return the meta-data index, or -1 if there are no sync frames.
+     */
+    private int findKeyFrameIndex(long timeUsec) {
+        final int keyLen = mKeyIndex.length;
+        int count = (mKeyHead - mKeyTail + keyLen) % keyLen;
+        if (count == 0) {
+            return -1;
+        }
+        // Binary search for the last entry with pts <= timeUsec.
+        int lo = 0;
+        int hi = count - 1;
+        int found = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mKeyPtsUsec[(mKeyTail + mid) % keyLen] <= timeUsec) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return mKeyIndex[(mKeyTail + found) % keyLen];
     }
 
     /**
      * Returns the index of the next packet, or -1 if we've reached the end.
      */
-    public int getNextIndex(int index) {
-        final int metaLen = mPacketStart.length;
+    public synchronized int getNextIndex(int index) {
+        final int metaLen = mMetaLen;
         int next = (index + 1) % metaLen;
         if (next == mMetaHead) {
             next = -1;
@@ -115,31 +610,36 @@ public class CircularEncoderBuffer {
     }
 
 
-    /**
-     * Returns a reference to a "direct" ByteBuffer with the data, and fills in the BufferInfo..
+    // Fills in the BufferInfo for a packet and returns the buffer to read it from: "view"
+    // itself, unless the packet wraps around the end of a heap ring.
+    private ByteBuffer getChunk(int index, MediaCodec.BufferInfo info, ByteBuffer view) {
+        final int dataLen = mDataLen;
+        int packetStart;
+        int packetLength;
+        synchronized (this) {
+            packetStart = mPacketStart.get(index);
+            packetLength = mPacketLength.get(index);
 
-     * The caller must not modify the contents of the returned ByteBuffer.
-     * Altering the position and limit is allowed.
-     */
-    public ByteBuffer getChunk(int index, MediaCodec.BufferInfo info) {
-        final int dataLen = mDataBuffer.length;
-        int packetStart = mPacketStart[index];
-        int packetLength = mPacketLength[index];
-
-        info.flags = mPacketFlags[index];
-        info.offset = packetStart;
-        info.presentationTimeUs = mPacketPtsUsec[index];
-        info.size = packetLength;
+            info.flags = mPacketFlags.get(index);
+            info.offset = packetStart;
+            info.presentationTimeUs = mPacketPtsUsec.get(index);
+            info.size = packetLength;
+        }
 
-        if (packetStart + packetLength <= dataLen) {
-            // one chunk; return full buffer to avoid copying data
-            return mDataBufferWrapper;
+        if (mMirroredRing != null || packetStart + packetLength <= dataLen) {
+            // one chunk (always the case with the mirrored ring, where a packet that
+            // wraps continues into the mirror); return full buffer to avoid copying data
+            return view;
         } else {
             // two chunks
             ByteBuffer tempBuf = ByteBuffer.allocateDirect(packetLength);
-            int firstSize = dataLen - packetStart;
-            tempBuf.put(mDataBuffer, packetStart, firstSize);
-            tempBuf.put(mDataBuffer, 0, packetLength - firstSize);
+            ByteBuffer src = view.duplicate();
+            src.limit(dataLen);
+            src.position(packetStart);
+            tempBuf.put(src);
+            src.limit(packetLength - (dataLen - packetStart));
+            src.position(0);
+            tempBuf.put(src);
             info.offset = 0;
             return tempBuf;
         }
@@ -157,41 +657,501 @@ public class CircularEncoderBuffer {
      * @param ptsUsec Presentation time stamp, in microseconds.
      */
     public void add(ByteBuffer buf, int flags, long ptsUsec) {
+        add(buf, flags, ptsUsec, TRACK_VIDEO);
+    }
+
+    /**
+     * Adds a new encoded data packet for the given track.  Each track's pts must increase,
+     * and packets should be added roughly as they come out of the encoders.
+     */
+    public synchronized void add(ByteBuffer buf, int flags, long ptsUsec, int track) {
         int size = buf.limit() - buf.position();
         if (DEBUG) {
-            Log.d(TAG, "add size=" + size + " flags=0x" + Integer.toHexString(flags) + " pts=" + ptsUsec);
+            Log.d(TAG, "add size=" + size + " flags=0x" + Integer.toHexString(flags) + " pts=" + ptsUsec +
+                    " track=" + track);
+        }
+        final boolean isSyncFrame = (track == TRACK_VIDEO)
+                && (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (mResize != null) {
+            maybeSwapStorage();
         }
-        while (!canAdd(size)) {
+        if (mAdaptive) {
+            trackRate(size, isSyncFrame, ptsUsec);
+        }
+        // Evict a whole GOP at a time: packets before the next sync frame can't be decoded
+        // without the one we just dropped, so keep going until the tail is a sync frame.
+        while (!canAdd(size) || !isTailSyncFrame()) {
+            if (isPinned(mMetaTail)) {
+                overrunSnapshots(mMetaTail);
+            }
             removeTail();
         }
-        final int dataLen = mDataBuffer.length;
-        final int metaLen = mPacketStart.length;
+        final int dataLen = mDataLen;
+        final int metaLen = mMetaLen;
         int packetStart = getHeadStart();
 
-        mPacketFlags[mMetaHead] = flags;
-        mPacketPtsUsec[mMetaHead] = ptsUsec;
-        mPacketStart[mMetaHead] = packetStart;
-        mPacketLength[mMetaHead] = size;
+        mPacketFlags.put(mMetaHead, flags);
+        mPacketPtsUsec.put(mMetaHead, ptsUsec);
+        mPacketStart.put(mMetaHead, packetStart);
+        mPacketLength.put(mMetaHead, size);
+        mPacketTrack.put(mMetaHead, track);
+        linkPacket(mMetaHead, track);
+        if (isSyncFrame) {
+            addKeyFrame(mMetaHead, ptsUsec);
+        }
         // Copy the data in.  Take care if it gets split in half.
-        if (packetStart + size < dataLen) {
+        if (mMirroredRing != null) {
+            // one put; anything past dataLen lands in the mirror, i.e. at the start
+            mWriteView.limit(packetStart + size);
+            mWriteView.position(packetStart);
+            mWriteView.put(buf);
+        } else if (packetStart + size < dataLen) {
             // one chunk
-            buf.get(mDataBuffer, packetStart, size);
+            mWriteView.limit(packetStart + size);
+            mWriteView.position(packetStart);
+            mWriteView.put(buf);
         } else {
             // two chunks
             int firstSize = dataLen - packetStart;
             if (DEBUG) { Log.d(TAG, "split, firstsize=" + firstSize + " size=" + size); }
-            buf.get(mDataBuffer, packetStart, firstSize);
-            buf.get(mDataBuffer, 0, size - firstSize);
+            int bufLimit = buf.limit();
+            buf.limit(buf.position() + firstSize);
+            mWriteView.limit(dataLen);
+            mWriteView.position(packetStart);
+            mWriteView.put(buf);
+            buf.limit(bufLimit);
+            mWriteView.limit(size - firstSize);
+            mWriteView.position(0);
+            mWriteView.put(buf);
         }
 
         mMetaHead = (mMetaHead + 1) % metaLen;
 
         if (EXTRA_DEBUG) {
             // The head packet is the next-available spot.
-            mPacketFlags[mMetaHead] = 0x77aaccff;
-            mPacketPtsUsec[mMetaHead] = -1000000000L;
-            mPacketStart[mMetaHead] = -100000;
-            mPacketLength[mMetaHead] = Integer.MAX_VALUE;
+            mPacketFlags.put(mMetaHead, 0x77aaccff);
+            mPacketPtsUsec.put(mMetaHead, -1000000000L);
+            mPacketStart.put(mMetaHead, -100000);
+            mPacketLength.put(mMetaHead, Integer.MAX_VALUE);
+        }
+        persistHeadTail();
+
+        mUsedBytes += size;
+        if (mMetrics != null) {
+            mMetrics.onPacketAdded(size);
+            publishOccupancy();
+        }
+        if (mResize != null) {
+            notifyAll();    // more for the resize thread to copy
+        }
+    }
+
+    /**
+     * Pins everything from the oldest sync frame up to the current head, so it can be read
+     * from another thread while add() keeps appending.  The caller must release() it.
+     *
+     * @return the snapshot, or null if there is no sync frame in the buffer.
+     */
+    public Snapshot acquireSnapshot() {
+        return acquireSnapshot(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Pins the packets needed to play [fromUsec, toUsec]: from the start of the GOP that
+     * contains fromUsec through the last packet at or before toUsec.  If fromUsec is older
+     * than the buffer, the snapshot starts at the oldest sync frame.
+     *
+     * @return the snapshot, or null if there is no sync frame or nothing in range.
+     */
+    public synchronized Snapshot acquireSnapshot(long fromUsec, long toUsec) {
+        int first = findKeyFrameIndex(fromUsec);
+        if (first < 0) {
+            Log.w(TAG, "HEY: could not find sync frame in buffer");
+            return null;
+        }
+        if (mPacketPtsUsec.get(first) > toUsec) {
+            Log.w(TAG, "no packets in [" + fromUsec + ", " + toUsec + "]");
+            return null;
+        }
+        // Audio trails the video a little, so packets timed before toUsec can sit after
+        // later video packets.  Take everything up to the head; the snapshot stops each
+        // track at toUsec by itself.
+        Snapshot snapshot = new Snapshot(first, mMetaHead, toUsec);
+        mSnapshots.add(snapshot);
+        mOpenSnapshots++;
+        return snapshot;
+    }
+
+    /**
+     * Keeps a pre-muxed fMP4 fragment for the GOP that starts with the sync frame at
+     * startUsec and ends where the next one begins (endUsec), so saves can copy it instead
+     * of muxing the packets again.  Fragments must be attached oldest first.  The fragment
+     * is dropped when its GOP is evicted.
+     *
+     * @param lastUsec pts of the newest packet in the fragment.
+     * @param data the buffer reserveFragment() returned, with the fragment written from
+     *     position zero up to its current position.
+     */
+    public synchronized void attachFragment(long startUsec, long endUsec, long lastUsec,
+                                            ByteBuffer data) {
+        if (data != mReservedFragment) {
+            // The pool was reallocated or turned off since the space was reserved.
+            return;
+        }
+        mReservedFragment = null;
+        mFragments.addLast(new Fragment(startUsec, endUsec, lastUsec, mReservedOffset,
+                data.position()));
+        trimFragments();
+    }
+
+    /**
+     * Turns the fragment pool on or off.  The pool is a little bigger than the data region
+     * and is allocated here, once, rather than per fragment; in adaptive mode it counts against
+     * the memory limits, and is reallocated (empty) along with the data.  Turning it off
+     * drops all fragments.
+     * <p>
+     * Not available for file-backed buffers.
+     */
+    public synchronized void setFragmentPool(boolean enabled) {
+        if (mHeader != null) {
+            throw new IllegalStateException("fragment pool not supported for file-backed buffer");
+        }
+        // A resize in progress was sized with or without a pool; start over.
+        abortResize();
+        mFragments.clear();
+        mReservedFragment = null;
+        mFragmentPool = enabled ? ByteBuffer.allocateDirect(getFragmentPoolSize()) : null;
+    }
+
+    /**
+     * Finds room in the pool for a fragment of "size" bytes, dropping the oldest fragments
+     * if needed, but not ones a save is reading.  Write the fragment from position zero of
+     * the returned buffer, then hand it to attachFragment().  Only one fragment may be
+     * reserved at a time.
+     *
+     * @return a buffer of exactly "size" bytes, or null if there's no pool or no room.
+     */
+    public synchronized ByteBuffer reserveFragment(int size) {
+        mReservedFragment = null;
+        if (mFragmentPool == null) {
+            return null;
+        }
+        int offset;
+        while ((offset = findFragmentSpace(size)) < 0) {
+            Fragment oldest = mFragments.peekFirst();
+            if (oldest == null || oldest.mReaders > 0) {
+                return null;
+            }
+            mFragments.pollFirst();
+        }
+        ByteBuffer dup = mFragmentPool.duplicate();
+        dup.limit(offset + size);
+        dup.position(offset);
+        mReservedFragment = dup.slice();
+        mReservedOffset = offset;
+        return mReservedFragment;
+    }
+
+    // Returns a pool offset with "size" free bytes after it, or -1.  The pool is used as a
+    // ring: fragments go after the newest one, or back at the start if they don't fit there.
+    private int findFragmentSpace(int size) {
+        final int capacity = mFragmentPool.capacity();
+        if (size > capacity) {
+            return -1;
+        }
+        if (mFragments.isEmpty()) {
+            return 0;
+        }
+        int tail = mFragments.peekFirst().mOffset;
+        int head = mFragments.peekLast().mOffset + mFragments.peekLast().mLength;
+        if (head > tail) {
+            if (capacity - head >= size) {
+                return head;
+            }
+            return (tail >= size) ? 0 : -1;
+        }
+        return (tail - head >= size) ? head : -1;
+    }
+
+    /**
+     * Collects the fragments covering the start of [fromUsec, toUsec]: a run of
+     * back-to-back GOPs beginning with the one that contains fromUsec, stopping at the
+     * first GOP that has no fragment or that runs past toUsec.
+     *
+     * The fragments stay in the pool until {@link #releaseFragments} is called for them.
+     *
+     * @param out receives read-only views of the fragment data, in order.
+     * @return the pts of the sync frame where the uncovered packets begin, or
+     *     Long.MIN_VALUE if no fragment applies.
+     */
+    public synchronized long collectFragments(long fromUsec, long toUsec, List<ByteBuffer> out) {
+        long nextUsec = getSyncFramePtsUsec(fromUsec);
+        if (nextUsec == Long.MIN_VALUE) {
+            return Long.MIN_VALUE;
+        }
+        boolean found = false;
+        for (Fragment fragment : mFragments) {
+            if (fragment.mStartUsec < nextUsec) {
+                continue;
+            }
+            if (fragment.mStartUsec != nextUsec || fragment.mLastUsec > toUsec) {
+                break;
+            }
+            out.add(fragment.getData(mFragmentPool));
+            fragment.mReaders++;
+            nextUsec = fragment.mEndUsec;
+            found = true;
+        }
+        return found ? nextUsec : Long.MIN_VALUE;
+    }
+
+    /**
+     * Returns the pts of the sync frame a save of [fromUsec, ...] would start at, or
+     * Long.MIN_VALUE if there are no sync frames.
+     */
+    public synchronized long getSyncFramePtsUsec(long fromUsec) {
+        int first = findKeyFrameIndex(fromUsec);
+        return (first < 0) ? Long.MIN_VALUE : mPacketPtsUsec.get(first);
+    }
+
+    /**
+     * Lets the pool reuse the fragments collectFragments() handed out.
+     *
+     * @param startUsec pts of the first one, i.e. getSyncFramePtsUsec(fromUsec) at the time.
+     * @param endUsec the value collectFragments() returned.
+     */
+    public synchronized void releaseFragments(long startUsec, long endUsec) {
+        for (Fragment fragment : mFragments) {
+            if (fragment.mReaders > 0 && fragment.mStartUsec >= startUsec
+                    && fragment.mStartUsec < endUsec) {
+                fragment.mReaders--;
+            }
+        }
+        trimFragments();
+    }
+
+    // Drops fragments whose sync frame is no longer in the buffer, stopping at one that a
+    // save is still reading.
+    private void trimFragments() {
+        long oldestUsec = (mKeyHead == mKeyTail) ? Long.MAX_VALUE : mKeyPtsUsec[mKeyTail];
+        while (!mFragments.isEmpty() && mFragments.peekFirst().mStartUsec < oldestUsec
+                && mFragments.peekFirst().mReaders == 0) {
+            mFragments.pollFirst();
+        }
+    }
+
+    /**
+     * Returns true if some snapshot still needs the packet at "index".
+     */
+    private boolean isPinned(int index) {
+        for (int i = 0; i < mSnapshots.size(); i++) {
+            if (mSnapshots.get(i).mPin == index) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gives up on the snapshots still needing the packet at "index", which is about to be
+     * evicted.  The encoder never waits for a save; a reader too slow to stay ahead of
+     * eviction sees isOverrun() and that save reports failure.
+     */
+    private void overrunSnapshots(int index) {
+        for (int i = mSnapshots.size() - 1; i >= 0; i--) {
+            Snapshot snapshot = mSnapshots.get(i);
+            if (snapshot.mPin == index) {
+                Log.w(TAG, "snapshot reader too slow, dropping it");
+                snapshot.mOverrun = true;
+                mSnapshots.remove(i);
+            }
+        }
+    }
+
+    /**
+     * A pinned [sync frame, end) range of the buffer.
+     * <p>
+     * Packets come out merged across tracks in pts order, starting at the video sync frame;
+     * other tracks start at their first packet at or after it.  Each track is walked
+     * through its own links, so the merge costs one comparison per track per packet.
+     * <p>
+     * Reads may happen on any one thread.  Each call to getNextIndex() unpins the packet
+     * that was just read, so eviction can follow the reader through the range.  If eviction
+     * catches up with the reader anyway, the snapshot is overrun: data read from the ring
+     * may already be overwritten, so check isOverrun() after reading a packet and before
+     * handing it on.
+     */
+    public class Snapshot {
+        private int mPin;               // oldest (in ring order) packet we still need
+        private final int mEnd;         // one past the last packet (exclusive)
+        private final long mToUsec;     // last pts wanted, for every track
+        private final int[] mCursor = new int[MAX_TRACKS];     // next unread, per track
+        private final boolean[] mHasTrack = new boolean[MAX_TRACKS];
+        private final MediaFormat[] mFormats;
+        private int mCurrent;           // packet most recently handed out
+        private boolean mOverrun;
+        private boolean mReleased;
+        private final ByteBuffer mReadView = mDataBufferWrapper.duplicate();
+
+        private Snapshot(int first, int end, long toUsec) {
+            mPin = first;
+            mEnd = end;
+            mToUsec = toUsec;
+            mFormats = mTrackFormats.clone();
+
+            // Find the first packet of each track, walking forward from the sync frame.
+            // Tracks interleave closely, so this stops after a handful of packets.
+            Arrays.fill(mCursor, -1);
+            int wanted = 0;
+            for (int t = 0; t < MAX_TRACKS; t++) {
+                if (mTrackLast[t] >= 0 && isInRange(mTrackLast[t], first, mMetaHead)) {
+                    wanted++;
+                }
+            }
+            final long startUsec = mPacketPtsUsec.get(first);
+            for (int i = first; i != end && wanted > 0; i = (i + 1) % mMetaLen) {
+                int track = mPacketTrack.get(i);
+                if (mCursor[track] == -1) {
+                    int cursor = i;
+                    // Drop anything timed before the sync frame; it would start the clip early.
+                    while (cursor >= 0 && mPacketPtsUsec.get(cursor) < startUsec) {
+                        cursor = nextInTrack(cursor);
+                    }
+                    // -2: nothing of this track in range; don't look for it again.
+                    mCursor[track] = (cursor >= 0) ? cursor : -2;
+                    wanted--;
+                }
+            }
+            for (int t = 0; t < MAX_TRACKS; t++) {
+                if (mCursor[t] == -2) {
+                    mCursor[t] = -1;
+                }
+                mHasTrack[t] = (mCursor[t] >= 0);
+            }
+            mCurrent = pickNext();
+        }
+
+        // True if "index" is in the ring range [from, to).
+        private boolean isInRange(int index, int from, int to) {
+            return (index - from + mMetaLen) % mMetaLen < (to - from + mMetaLen) % mMetaLen;
+        }
+
+        // The next packet of the same track still inside the snapshot, or -1.  Packets added
+        // after the snapshot sit in [mEnd, mPin), possibly in slots we've already read.
+        private int nextInTrack(int index) {
+            int next = mPacketNext.get(index);
+            if (next < 0 || !isInRange(next, mPin, mEnd)
+                    || mPacketPtsUsec.get(next) > mToUsec) {
+                return -1;
+            }
+            return next;
+        }
+
+        // Picks the cursor with the lowest pts (video wins ties), and moves the pin to the
+        // oldest unread packet.
+        private int pickNext() {
+            int best = -1;
+            long bestPts = Long.MAX_VALUE;
+            int oldest = -1;
+            for (int t = 0; t < MAX_TRACKS; t++) {
+                int cursor = mCursor[t];
+                if (cursor < 0) {
+                    continue;
+                }
+                long pts = mPacketPtsUsec.get(cursor);
+                if (best < 0 || pts < bestPts) {
+                    best = cursor;
+                    bestPts = pts;
+                }
+                if (oldest < 0 || (cursor - mPin + mMetaLen) % mMetaLen
+                        < (oldest - mPin + mMetaLen) % mMetaLen) {
+                    oldest = cursor;
+                }
+            }
+            mPin = oldest;
+            return best;
+        }
+
+        /**
+         * Returns the index of the first packet, a video sync frame.
+         */
+        public int getFirstIndex() {
+            synchronized (CircularEncoderBuffer.this) {
+                return mCurrent;
+            }
+        }
+
+        /**
+         * Releases the packet at "index" and returns the next one in pts order, or -1 at
+         * the end of the snapshot or if the snapshot was overrun.
+         */
+        public int getNextIndex(int index) {
+            synchronized (CircularEncoderBuffer.this) {
+                if (mOverrun || index != mCurrent || index < 0) {
+                    return -1;
+                }
+                int track = mPacketTrack.get(index);
+                mCursor[track] = nextInTrack(index);
+                mCurrent = pickNext();
+                return mCurrent;
+            }
+        }
+
+        /**
+         * Returns the track of a packet in the snapshot.
+         */
+        public int getTrack(int index) {
+            synchronized (CircularEncoderBuffer.this) {
+                return mPacketTrack.get(index);
+            }
+        }
+
+        /**
+         * Returns true if the snapshot has packets for "track".
+         */
+        public boolean hasTrack(int track) {
+            return mHasTrack[track];
+        }
+
+        /**
+         * Returns the format of "track" as of when the snapshot was taken, or null.
+         */
+        public MediaFormat getTrackFormat(int track) {
+            return mFormats[track];
+        }
+
+        /**
+         * Returns a view of the ring holding the packet's data, and fills in the BufferInfo.
+         * The caller must not modify the contents; altering the position and limit is
+         * allowed.  The data is only good until the next getNextIndex() or release(), and
+         * only if isOverrun() is still false once it has been read.
+         */
+        public ByteBuffer getChunk(int index, MediaCodec.BufferInfo info) {
+            return CircularEncoderBuffer.this.getChunk(index, info, mReadView);
+        }
+
+        /**
+         * Returns true if add() had to evict packets this snapshot had not read yet.
+         * Data read before this turned true is intact; anything since may be damaged.
+         */
+        public boolean isOverrun() {
+            synchronized (CircularEncoderBuffer.this) {
+                return mOverrun;
+            }
+        }
+
+        /**
+         * Unpins whatever is left.  Safe to call more than once.
+         */
+        public void release() {
+            synchronized (CircularEncoderBuffer.this) {
+                mSnapshots.remove(this);
+                mPin = -1;
+                if (!mReleased) {
+                    mReleased = true;
+                    mOpenSnapshots--;
+                }
+            }
         }
     }
 
@@ -201,8 +1161,8 @@ public class CircularEncoderBuffer {
      * @return True if there is enough space to add without removing anything.
      */
     private boolean canAdd(int size) {
-        final int dataLen = mDataBuffer.length;
-        final int metaLen = mPacketStart.length;
+        final int dataLen = mDataLen;
+        final int metaLen = mMetaLen;
 
         if (size > dataLen) {
             throw new RuntimeException("Enormous packet: " + size + " vs. buffer " + dataLen);
@@ -222,7 +1182,7 @@ public class CircularEncoderBuffer {
         // Need the byte offset of the start of the "tail" packet,
         // and the byte offset where "head" will store its data.
         int headStart = getHeadStart();
-        int tailStart = mPacketStart[mMetaTail];
+        int tailStart = mPacketStart.get(mMetaTail);
         int freeSpace = (tailStart + dataLen - headStart) % dataLen;
         if (size > freeSpace) {
             if (DEBUG) {
@@ -241,6 +1201,223 @@ public class CircularEncoderBuffer {
 
     }
 
+    /**
+     * Lets the buffer grow or shrink to hold desiredSpanSec of video at the bit rate and
+     * frame rate the codec is actually producing, instead of the requested ones.  Data,
+     * meta-data and the fragment pool (if any) together stay within
+     * [minMemoryBytes, maxMemoryBytes].  A resize is decided at a GOP boundary, built on
+     * a background thread, and swapped in between saves; it drops the pre-muxed fragments.
+     * <p>
+     * Not available for file-backed buffers.
+     */
+    public synchronized void setAdaptiveSizing(int desiredSpanSec, long minMemoryBytes,
+                                               long maxMemoryBytes) {
+        if (mHeader != null) {
+            throw new IllegalStateException("adaptive sizing not supported for file-backed buffer");
+        }
+        if (minMemoryBytes > maxMemoryBytes) {
+            throw new IllegalArgumentException("min " + minMemoryBytes + " > max " + maxMemoryBytes);
+        }
+        mAdaptive = true;
+        mAdaptiveSpanSec = desiredSpanSec;
+        mMinMemoryBytes = minMemoryBytes;
+        mMaxMemoryBytes = maxMemoryBytes;
+        mGopsMeasured = 0;
+        mGopStartPtsUsec = -1;
+    }
+
+    /**
+     * Returns the moving average of the encoded byte rate, or 0 if not measured yet.
+     * Only tracked in adaptive mode.
+     */
+    public synchronized double getObservedBytesPerSec() {
+        return mAvgBytesPerSec;
+    }
+
+    /**
+     * Returns the size of the data region, in bytes.
+     */
+    public synchronized int getDataCapacity() {
+        return mDataLen;
+    }
+
+    /**
+     * Returns the number of meta-data slots (one less than the max packet count).
+     */
+    public synchronized int getMetaCapacity() {
+        return mMetaLen;
+    }
+
+    /**
+     * Accumulates the current GOP, and at each sync frame folds the GOP that just closed
+     * into the moving averages and considers a resize.
+     */
+    private void trackRate(int size, boolean isSyncFrame, long ptsUsec) {
+        if (isSyncFrame) {
+            if (mGopStartPtsUsec >= 0 && ptsUsec > mGopStartPtsUsec) {
+                double durationSec = (ptsUsec - mGopStartPtsUsec) / 1000000.0;
+                double bytesPerSec = mGopBytes / durationSec;
+                double packetsPerSec = mGopPackets / durationSec;
+                if (mGopsMeasured == 0) {
+                    mAvgBytesPerSec = bytesPerSec;
+                    mAvgPacketsPerSec = packetsPerSec;
+                } else {
+                    mAvgBytesPerSec += ADAPT_ALPHA * (bytesPerSec - mAvgBytesPerSec);
+                    mAvgPacketsPerSec += ADAPT_ALPHA * (packetsPerSec - mAvgPacketsPerSec);
+                }
+                mGopsMeasured++;
+                if (mGopsMeasured >= ADAPT_MIN_GOPS) {
+                    maybeResize();
+                }
+            }
+            mGopStartPtsUsec = ptsUsec;
+            mGopBytes = 0;
+            mGopPackets = 0;
+        }
+        mGopBytes += size;
+        mGopPackets++;
+    }
+
+    /**
+     * Starts a resize if the ideal size has drifted far enough from the current one.
+     */
+    private void maybeResize() {
+        if (mResize != null) {
+            return;
+        }
+        long wantMeta = (long) (mAvgPacketsPerSec * mAdaptiveSpanSec * ADAPT_META_HEADROOM) + 2;
+        long wantData = (long) (mAvgBytesPerSec * mAdaptiveSpanSec * ADAPT_DATA_HEADROOM);
+        // Leave room for a couple of GOPs like the last one, unless the caps say otherwise.
+        wantData = Math.max(wantData, 2 * mGopBytes + 2 * mGopPackets);
+        long metaBytes = wantMeta * META_ENTRY_BYTES;
+        // The fragment pool, if there is one, grows and shrinks with the data region.
+        double copies = (mFragmentPool != null) ? 1 + FRAGMENT_POOL_HEADROOM : 1;
+        if (wantData * copies + metaBytes > mMaxMemoryBytes) {
+            wantData = (long) ((mMaxMemoryBytes - metaBytes) / copies);
+        } else if (wantData * copies + metaBytes < mMinMemoryBytes) {
+            wantData = (long) ((mMinMemoryBytes - metaBytes) / copies);
+        }
+        wantData = Math.max(wantData, mGopBytes + mGopPackets + 1);
+        wantData = Math.min(wantData, Integer.MAX_VALUE / 2);
+
+        if (Math.abs(wantData - mDataLen) <= mDataLen * ADAPT_HYSTERESIS
+                && Math.abs(wantMeta - mMetaLen) <= mMetaLen * ADAPT_HYSTERESIS) {
+            return;
+        }
+        if (DEBUG) {
+            Log.d(TAG, "adaptive resize: data " + mDataLen + " -> " + wantData + ", meta " +
+                    mMetaLen + " -> " + wantMeta + " (avg " + (long) mAvgBytesPerSec + " B/s, " +
+                    mAvgPacketsPerSec + " pkt/s)");
+        }
+        mResize = new ResizeJob((int) wantData, (int) wantMeta, mMirroredRing != null,
+                mFragmentPool != null);
+        mResize.mThread.start();
+    }
+
+    /**
+     * Swaps in the storage the resize thread built, if it has caught up with the head and
+     * nothing is reading the ring or the fragment pool.  Only pointer updates and the
+     * meta-data walk of rebuildIndexes() happen here.
+     */
+    private void maybeSwapStorage() {
+        final ResizeJob job = mResize;
+        if (!job.mPlanned || job.mAborted || job.mPin != mMetaHead
+                || mOpenSnapshots > 0 || isFragmentPoolPinned()) {
+            return;
+        }
+        final MirroredRingBuffer oldRing = mMirroredRing;
+        // Where the tail lands in the copy, if eviction has already moved it past the start.
+        int tail = (mMetaTail - job.mFirst + mMetaLen) % mMetaLen;
+        if (tail > job.mCount) {
+            // Packets older than the first one copied are dropped, a GOP at a time.
+            while (mMetaTail != job.mFirst) {
+                removeTail();
+            }
+            tail = 0;
+        }
+
+        install(job.mStorage);
+        mMetaTail = tail;
+        mMetaHead = job.mCount;
+        rebuildIndexes();
+        mFragments.clear();
+        mReservedFragment = null;
+        mFragmentPool = job.mPool;
+        publishOccupancy();
+
+        job.mDone = true;
+        mResize = null;
+        notifyAll();
+        if (oldRing != null) {
+            oldRing.release();
+        }
+    }
+
+    /**
+     * Abandons the resize in progress, if any.  Its thread frees what it allocated, and
+     * clears mResize on the way out.
+     */
+    private void abortResize() {
+        if (mResize != null) {
+            mResize.mAborted = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Picks the packet a resize starts copying from: the oldest sync frame from which the
+     * packets, packed, fill at most three quarters of the new storage.  The rest is room for
+     * what arrives before the swap.  Returns the head if nothing fits.
+     */
+    private int findResizeStart(int newDataLen, int newMetaLen) {
+        long needBytes = 0;
+        int count = 0;
+        for (int i = mMetaTail; i != mMetaHead; i = (i + 1) % mMetaLen) {
+            needBytes += mPacketLength.get(i) + 1;
+            count++;
+        }
+        int first = mMetaTail;
+        while (first != mMetaHead && (needBytes >= newDataLen / 4 * 3
+                || count >= newMetaLen / 4 * 3)) {
+            do {
+                needBytes -= mPacketLength.get(first) + 1;
+                count--;
+                first = (first + 1) % mMetaLen;
+            } while (first != mMetaHead && !isSyncFrame(first));
+        }
+        return first;
+    }
+
+    private boolean isSyncFrame(int index) {
+        return mPacketTrack.get(index) == TRACK_VIDEO
+                && (mPacketFlags.get(index) & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+    }
+
+    private int getFragmentPoolSize() {
+        return getFragmentPoolSize(mDataLen);
+    }
+
+    private static int getFragmentPoolSize(int dataLen) {
+        return (int) Math.min(Integer.MAX_VALUE, (long) (dataLen * FRAGMENT_POOL_HEADROOM));
+    }
+
+    private boolean isFragmentPoolPinned() {
+        for (Fragment fragment : mFragments) {
+            if (fragment.mReaders > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the buffer is empty or the tail packet is a sync frame.
+     */
+    private boolean isTailSyncFrame() {
+        return mMetaHead == mMetaTail
+                || (mKeyHead != mKeyTail && mKeyIndex[mKeyTail] == mMetaTail);
+    }
+
     /**
      * Removes the tail packet.
      */
@@ -248,8 +1425,31 @@ public class CircularEncoderBuffer {
         if (mMetaHead == mMetaTail) {
             throw new RuntimeException("Can't removeTail() in empty buffer");
         }
-        final int metaLen = mPacketStart.length;
+        final int metaLen = mMetaLen;
+        if (mKeyHead != mKeyTail && mKeyIndex[mKeyTail] == mMetaTail) {
+            mKeyTail = (mKeyTail + 1) % mKeyIndex.length;
+            trimFragments();
+        }
+        // A track that has gone quiet for longer than the ring holds would otherwise keep
+        // pointing at this slot after another track reuses it.
+        int track = mPacketTrack.get(mMetaTail);
+        if (mTrackLast[track] == mMetaTail) {
+            mTrackLast[track] = -1;
+        }
+        if (mResize != null && mResize.mPlanned && !mResize.mAborted
+                && mResize.mPin == mMetaTail) {
+            // The resize thread hasn't copied this one yet.  Rather than wait for it, give
+            // up; the next GOP will try again.
+            if (DEBUG) Log.d(TAG, "resize fell behind eviction, abandoning it");
+            abortResize();
+        }
+        int length = mPacketLength.get(mMetaTail);
+        mUsedBytes -= length;
+        if (mMetrics != null) {
+            mMetrics.onPacketEvicted(length);
+        }
         mMetaTail = (mMetaTail + 1) % metaLen;
+        persistHeadTail();
     }
 
     /**
@@ -262,10 +1462,248 @@ public class CircularEncoderBuffer {
             return 0;
         }
 
-        final int dataLen = mDataBuffer.length;
-        final int metaLen = mPacketStart.length;
+        final int dataLen = mDataLen;
+        final int metaLen = mMetaLen;
 
         int beforeHead = (mMetaHead + metaLen - 1) % metaLen;
-        return (mPacketStart[beforeHead] + mPacketLength[beforeHead] + 1) % dataLen;
+        return (mPacketStart.get(beforeHead) + mPacketLength.get(beforeHead) + 1) % dataLen;
+    }
+
+    /**
+     * Data and meta-data storage for the in-memory modes, allocated but not yet in use.
+     */
+    private static class Storage {
+        MirroredRingBuffer mRing;
+        byte[] mHeap;
+        ByteBuffer mData;
+        int mDataLen;
+        int mMetaLen;
+        IntBuffer mFlags;
+        LongBuffer mPts;
+        IntBuffer mStart;
+        IntBuffer mLength;
+        IntBuffer mTrack;
+        IntBuffer mNext;
+        int[] mKeyIndex;        // the key frame index can't hold more entries than packets
+        long[] mKeyPtsUsec;
+
+        /**
+         * Allocates the storage.  If offHeap is set we try to put the data in a mirrored
+         * off-heap ring, and fall back to a heap byte[] if that isn't possible.
+         */
+        static Storage allocate(int dataLen, int metaLen, boolean offHeap) {
+            Storage storage = new Storage();
+            if (offHeap) {
+                storage.mRing = MirroredRingBuffer.create(dataLen);
+                if (storage.mRing == null) {
+                    Log.w(TAG, "off-heap ring unavailable, using heap buffer");
+                }
+            }
+            if (storage.mRing != null) {
+                // Rounded up to a whole number of pages.
+                dataLen = storage.mRing.capacity();
+                storage.mData = storage.mRing.getBuffer();
+            } else {
+                storage.mHeap = new byte[dataLen];
+                storage.mData = ByteBuffer.wrap(storage.mHeap);
+            }
+            storage.mDataLen = dataLen;
+
+            storage.mMetaLen = metaLen;
+            storage.mFlags = IntBuffer.allocate(metaLen);
+            storage.mPts = LongBuffer.allocate(metaLen);
+            storage.mStart = IntBuffer.allocate(metaLen);
+            storage.mLength = IntBuffer.allocate(metaLen);
+            storage.mTrack = IntBuffer.allocate(metaLen);
+            storage.mNext = IntBuffer.allocate(metaLen);
+            storage.mKeyIndex = new int[metaLen];
+            storage.mKeyPtsUsec = new long[metaLen];
+            return storage;
+        }
+
+        void release() {
+            if (mRing != null) {
+                mRing.release();
+                mRing = null;
+            }
+        }
+    }
+
+    /**
+     * Builds resized storage on its own thread, so add() never pays for the allocation or
+     * the bulk copy.  Packets are copied oldest first, starting at a sync frame, while add()
+     * keeps appending; the job pins the next packet it will copy, and if add() needs to
+     * evict that one the job is abandoned instead of making add() wait.  Once the copy has
+     * caught up with the head, add() swaps the new storage in (see maybeSwapStorage()).
+     * <p>
+     * Snapshots don't hold the job up, only the swap, so premuxing (which holds one
+     * snapshot per GOP, briefly) can't keep the buffer from being resized.
+     */
+    private class ResizeJob implements Runnable {
+        final int mNewDataLen;
+        final int mNewMetaLen;
+        final boolean mOffHeap;
+        final boolean mWithPool;
+        final Thread mThread;
+
+        // Guarded by the buffer.  mPin and friends are valid once mPlanned is set.
+        Storage mStorage;
+        ByteBuffer mPool;
+        boolean mPlanned;
+        int mFirst;             // old index of the first packet copied
+        int mPin;               // old index of the next packet to copy
+        int mCount;             // packets copied
+        int mOffset;            // where the next one goes in the new data region
+        boolean mAborted;
+        boolean mDone;          // swapped in
+
+        ResizeJob(int newDataLen, int newMetaLen, boolean offHeap, boolean withPool) {
+            mNewDataLen = newDataLen;
+            mNewMetaLen = newMetaLen;
+            mOffHeap = offHeap;
+            mWithPool = withPool;
+            mThread = new Thread(this, "CircularEncoder-resize");
+        }
+
+        @Override
+        public void run() {
+            Storage storage = null;
+            ByteBuffer pool = null;
+            try {
+                storage = Storage.allocate(mNewDataLen, mNewMetaLen, mOffHeap);
+                if (mWithPool) {
+                    pool = ByteBuffer.allocateDirect(getFragmentPoolSize(storage.mDataLen));
+                }
+            } catch (OutOfMemoryError oom) {
+                Log.w(TAG, "resize to " + mNewDataLen + " bytes failed", oom);
+            }
+            boolean swapped = false;
+            try {
+                if (storage != null) {
+                    swapped = copyPackets(storage, pool);
+                }
+            } finally {
+                if (!swapped) {
+                    if (storage != null) {
+                        storage.release();
+                    }
+                    synchronized (CircularEncoderBuffer.this) {
+                        if (mResize == this) {
+                            mResize = null;
+                        }
+                    }
+                }
+            }
+        }
+
+        // Copies packets into "storage" until the job is swapped in (returns true) or
+        // abandoned (false).  The data is copied without holding the lock.
+        private boolean copyPackets(Storage storage, ByteBuffer pool) {
+            final CircularEncoderBuffer buffer = CircularEncoderBuffer.this;
+            final ByteBuffer newView = storage.mData.duplicate();
+            final ByteBuffer oldView;
+            final int oldDataLen;
+            final boolean oldMirrored;
+            synchronized (buffer) {
+                if (mAborted) {
+                    return false;
+                }
+                mStorage = storage;
+                mPool = pool;
+                mFirst = mPin = findResizeStart(storage.mDataLen, storage.mMetaLen);
+                mPlanned = true;
+                // The old storage stays installed, and mapped, until this job swaps it out
+                // or release() joins us.
+                oldView = mDataBufferWrapper.duplicate();
+                oldDataLen = mDataLen;
+                oldMirrored = (mMirroredRing != null);
+            }
+            while (true) {
+                int start;
+                int length;
+                synchronized (buffer) {
+                    while (mPin == mMetaHead && !mAborted && !mDone) {
+                        try {
+                            buffer.wait();
+                        } catch (InterruptedException ie) { /* not expected */ }
+                    }
+                    if (mDone) {
+                        return true;
+                    }
+                    if (mAborted) {
+                        return false;
+                    }
+                    start = mPacketStart.get(mPin);
+                    length = mPacketLength.get(mPin);
+                    if (mCount + 1 >= storage.mMetaLen
+                            || mOffset + length >= storage.mDataLen) {
+                        // Filled up waiting for the saves to let go; the next GOP will
+                        // try again.
+                        Log.w(TAG, "resize filled up before it could be swapped in");
+                        mAborted = true;
+                        return false;
+                    }
+                }
+
+                newView.limit(mOffset + length);
+                newView.position(mOffset);
+                if (oldMirrored || start + length <= oldDataLen) {
+                    oldView.limit(start + length);
+                    oldView.position(start);
+                    newView.put(oldView);
+                } else {
+                    int firstSize = oldDataLen - start;
+                    oldView.limit(oldDataLen);
+                    oldView.position(start);
+                    newView.put(oldView);
+                    oldView.limit(length - firstSize);
+                    oldView.position(0);
+                    newView.put(oldView);
+                }
+
+                synchronized (buffer) {
+                    if (mAborted) {
+                        // Possibly evicted while we copied it, so the data may be torn.
+                        return false;
+                    }
+                    storage.mFlags.put(mCount, mPacketFlags.get(mPin));
+                    storage.mPts.put(mCount, mPacketPtsUsec.get(mPin));
+                    storage.mStart.put(mCount, mOffset);
+                    storage.mLength.put(mCount, length);
+                    storage.mTrack.put(mCount, mPacketTrack.get(mPin));
+                    mCount++;
+                    mOffset += length + 1;
+                    mPin = (mPin + 1) % mMetaLen;
+                }
+            }
+        }
+    }
+
+    /**
+     * One GOP, muxed ahead of time by the encoder thread, at [mOffset, mOffset + mLength)
+     * of the fragment pool.
+     */
+    private static class Fragment {
+        final long mStartUsec;
+        final long mEndUsec;
+        final long mLastUsec;
+        final int mOffset;
+        final int mLength;
+        int mReaders;           // saves writing it out; guarded by the buffer
+
+        Fragment(long startUsec, long endUsec, long lastUsec, int offset, int length) {
+            mStartUsec = startUsec;
+            mEndUsec = endUsec;
+            mLastUsec = lastUsec;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        ByteBuffer getData(ByteBuffer pool) {
+            ByteBuffer data = pool.asReadOnlyBuffer();
+            data.limit(mOffset + mLength);
+            data.position(mOffset);
+            return data.slice();
+        }
     }
 }
@@ -0,0 +1,96 @@
+package org.learn.test.grafika.component;
+
+import android.graphics.SurfaceTexture;
+import android.util.Log;
+import android.view.Surface;
+
+import org.learn.test.grafika.GrafikaMainActivity;
+import org.learn.test.grafika.gles.FullFrameRect;
+
+/**
+ * Created by zzr on 2018/02/14.
+ * <p>
+ * A Surface for a decoder to render into, backed by a SurfaceTexture on an external GL
+ * texture.  After each releaseOutputBuffer(index, true), call {@link #awaitFrame()} to
+ * latch the frame into the texture.
+ * <p>
+ * Create, use and release on the thread with the EGL context current.  The frame-available
+ * callback comes in on another thread (the main Looper, if the creating thread has none).
+ */
+class CodecOutputTexture implements SurfaceTexture.OnFrameAvailableListener {
+    private static final String TAG = GrafikaMainActivity.TAG;
+
+    private static final int FRAME_TIMEOUT_MSEC = 500;
+
+    private final int mTextureId;
+    private final SurfaceTexture mSurfaceTexture;
+    private final Surface mSurface;
+    private final float[] mTexMatrix = new float[16];
+    private final Object mFrameLock = new Object();
+    private boolean mFrameAvailable;
+
+    /**
+     * @param extRect Drawer with a TEXTURE_EXT program, used to create the texture.
+     */
+    CodecOutputTexture(FullFrameRect extRect) {
+        mTextureId = extRect.createTextureObject();
+        mSurfaceTexture = new SurfaceTexture(mTextureId);
+        mSurfaceTexture.setOnFrameAvailableListener(this);
+        mSurface = new Surface(mSurfaceTexture);
+    }
+
+    Surface getSurface() {
+        return mSurface;
+    }
+
+    int getTextureId() {
+        return mTextureId;
+    }
+
+    /**
+     * The transform for the latest frame, for FullFrameRect.drawFrame().
+     */
+    float[] getTransformMatrix() {
+        return mTexMatrix;
+    }
+
+    @Override
+    public void onFrameAvailable(SurfaceTexture st) {
+        synchronized (mFrameLock) {
+            mFrameAvailable = true;
+            mFrameLock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits for the frame just rendered by the decoder and latches it into the texture.
+     *
+     * @return false if it didn't show up in time (logged), or we were interrupted.
+     */
+    boolean awaitFrame() {
+        long deadlineMsec = System.currentTimeMillis() + FRAME_TIMEOUT_MSEC;
+        synchronized (mFrameLock) {
+            while (!mFrameAvailable) {
+                long waitMsec = deadlineMsec - System.currentTimeMillis();
+                if (waitMsec <= 0) {
+                    Log.w(TAG, "frame wait timed out");
+                    return false;
+                }
+                try {
+                    mFrameLock.wait(waitMsec);
+                } catch (InterruptedException ie) {
+                    return false;
+                }
+            }
+            mFrameAvailable = false;
+        }
+        mSurfaceTexture.updateTexImage();
+        mSurfaceTexture.getTransformMatrix(mTexMatrix);
+        return true;
+    }
+
+    void release() {
+        mSurface.release();
+        mSurfaceTexture.release();
+    }
+}
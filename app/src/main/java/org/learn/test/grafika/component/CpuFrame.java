@@ -0,0 +1,182 @@
+package org.learn.test.grafika.component;
+
+import android.graphics.Rect;
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Created by zzr on 2018/02/17.
+ * <p>
+ * A decoded frame handed to a {@link MoviePlayer.FrameConsumer}: the decoder's own YUV 4:2:0
+ * output buffer, seen through read-only views of its Y, U and V planes.  Nothing is copied;
+ * the planes go back to the decoder when the consumer returns, so don't keep the frame or
+ * its buffers past onFrame().
+ * <p>
+ * Planes follow android.media.Image's YUV_420_888 rules: the chroma planes are subsampled
+ * 2x2, and a plane's bytes are addressed as row * rowStride + column * pixelStride.  Only the
+ * crop rectangle is picture; decoders often pad the rest.
+ * <p>
+ * For code that wants RGB, {@link #getArgb()} converts the crop rectangle into an int[]
+ * from a shared pool, so steady-state analysis allocates nothing.  Needs API 21.
+ * <p>
+ * ParallelSegmentDecoder's reorder buffer keeps frames that arrive early as copies, in
+ * buffers the frame owns and reuses; to the consumer they look the same.
+ */
+public class CpuFrame {
+    private final YuvConverter mConverter;
+
+    // Set by ImageFramePlayer for each frame.
+    Image mImage;
+    int mBufferIndex;
+    private long mPtsUsec;
+    private int mCropLeft;
+    private int mCropTop;
+    private int mWidth;
+    private int mHeight;
+    private final ByteBuffer[] mBuffers = new ByteBuffer[3];
+    private final int[] mRowStride = new int[3];
+    private final int[] mPixelStride = new int[3];
+    private final ByteBuffer[] mReadOnly = new ByteBuffer[3];
+    // Only for copies.
+    private ByteBuffer[] mStorage;
+    private int[] mArgb;
+
+    CpuFrame(YuvConverter converter) {
+        mConverter = converter;
+    }
+
+    /**
+     * Attaches the frame to a decoder output image.
+     */
+    void set(Image image, int bufferIndex, long ptsUsec) {
+        mImage = image;
+        mBufferIndex = bufferIndex;
+        mPtsUsec = ptsUsec;
+        Rect crop = image.getCropRect();
+        if (crop != null && crop.width() > 0 && crop.height() > 0) {
+            mCropLeft = crop.left;
+            mCropTop = crop.top;
+            mWidth = crop.width();
+            mHeight = crop.height();
+        } else {
+            mCropLeft = mCropTop = 0;
+            mWidth = image.getWidth();
+            mHeight = image.getHeight();
+        }
+        Image.Plane[] planes = image.getPlanes();
+        for (int i = 0; i < 3; i++) {
+            mBuffers[i] = planes[i].getBuffer();
+            mRowStride[i] = planes[i].getRowStride();
+            mPixelStride[i] = planes[i].getPixelStride();
+            mReadOnly[i] = null;
+        }
+    }
+
+    /**
+     * Makes this frame a copy of another, which can then be released.  The planes are
+     * copied whole, strides and padding included, into buffers that are kept for the next
+     * copy.
+     */
+    void copyFrom(CpuFrame src) {
+        if (mStorage == null) {
+            mStorage = new ByteBuffer[3];
+        }
+        mImage = null;
+        mBufferIndex = -1;
+        mPtsUsec = src.mPtsUsec;
+        mCropLeft = src.mCropLeft;
+        mCropTop = src.mCropTop;
+        mWidth = src.mWidth;
+        mHeight = src.mHeight;
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer plane = src.mBuffers[i].duplicate();
+            plane.rewind();
+            if (mStorage[i] == null || mStorage[i].capacity() < plane.remaining()) {
+                mStorage[i] = ByteBuffer.allocateDirect(plane.remaining());
+            }
+            ByteBuffer copy = mStorage[i];
+            copy.clear();
+            copy.put(plane);
+            copy.flip();
+            mBuffers[i] = copy;
+            mRowStride[i] = src.mRowStride[i];
+            mPixelStride[i] = src.mPixelStride[i];
+            mReadOnly[i] = null;
+        }
+    }
+
+    /**
+     * Detaches the frame, returning its RGB buffer to the pool.  The image is closed by the
+     * caller.
+     */
+    void clear() {
+        if (mArgb != null) {
+            mConverter.release(mArgb);
+            mArgb = null;
+        }
+        for (int i = 0; i < 3; i++) {
+            mBuffers[i] = null;
+            mReadOnly[i] = null;
+        }
+        mImage = null;
+    }
+
+    /** Presentation time, in microseconds. */
+    public long getPtsUsec() {
+        return mPtsUsec;
+    }
+
+    /** Width of the picture (the crop rectangle), in pixels. */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /** Height of the picture (the crop rectangle), in pixels. */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /** Left edge of the picture within the planes. */
+    public int getCropLeft() {
+        return mCropLeft;
+    }
+
+    /** Top edge of the picture within the planes. */
+    public int getCropTop() {
+        return mCropTop;
+    }
+
+    /**
+     * Returns a read-only view of a plane: 0 is Y, 1 is U (Cb), 2 is V (Cr).  Position 0 is
+     * the top left of the plane, not of the crop rectangle.
+     */
+    public ByteBuffer getPlane(int plane) {
+        if (mReadOnly[plane] == null) {
+            mReadOnly[plane] = mBuffers[plane].asReadOnlyBuffer();
+        }
+        return mReadOnly[plane];
+    }
+
+    public int getRowStride(int plane) {
+        return mRowStride[plane];
+    }
+
+    public int getPixelStride(int plane) {
+        return mPixelStride[plane];
+    }
+
+    /**
+     * Returns the picture as ARGB_8888 ints, row after row, getWidth() per row.  Converted
+     * on first call; the array comes from a pool and goes back when onFrame() returns, and
+     * may be longer than width * height.
+     */
+    public int[] getArgb() {
+        if (mArgb == null) {
+            int[] argb = mConverter.acquire(mWidth * mHeight);
+            YuvConverter.convert(this, argb);
+            mArgb = argb;
+        }
+        return mArgb;
+    }
+}
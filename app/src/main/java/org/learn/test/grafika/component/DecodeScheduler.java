@@ -0,0 +1,437 @@
+package org.learn.test.grafika.component;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import org.learn.test.grafika.GrafikaMainActivity;
+import org.learn.test.grafika.util.LatencyHistogram;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Created by zzr on 2018/02/08.
+ * <p>
+ * Plays many movies at once on a few threads.  MoviePlayer.play() needs a thread per movie,
+ * mostly sleeping in the frame callback or waiting in 10ms dequeue timeouts; for a wall of
+ * 9-16 videos that's a lot of threads doing nothing.  Here each movie is a
+ * {@link Session}, a state machine whose step() never blocks on the codec: it feeds what
+ * input it can, and releases its next frame if it's due.  Every step returns the time the
+ * session next wants to run, and the workers always run the session with the earliest
+ * time.
+ * <p>
+ * All deadlines are on one clock, System.nanoTime().  A session maps pts to that clock
+ * when its first frame comes out.  When the workers can't keep up, each session sees it as
+ * lateness (exposed per session); frames more than {@link #DROP_LATENESS_NSEC} late are
+ * dropped instead of rendered, so overloaded streams skip frames rather than all of them
+ * falling behind together.
+ * <p>
+ * The player's FrameCallback isn't used; the shared clock does the pacing.
+ */
+public class DecodeScheduler {
+    private static final String TAG = GrafikaMainActivity.TAG;
+    private static final boolean DEBUG = false;
+
+    // How often an idle session (no frame ready) polls the decoder.
+    private static final long POLL_NSEC = 2000000L;
+    // Frames later than this are dropped, but never more than MAX_CONSECUTIVE_DROPS in a row.
+    public static final long DROP_LATENESS_NSEC = 50000000L;
+    private static final int MAX_CONSECUTIVE_DROPS = 4;
+    // A session this far behind gives up catching up and shifts its clock instead.
+    private static final long REBASE_LATENESS_NSEC = 1000000000L;
+    // Input buffers fed per step, so one session can't hog a worker.
+    private static final int MAX_INPUT_PER_STEP = 4;
+
+    private final Object mLock = new Object();
+    private final PriorityQueue<Session> mQueue;
+    private final ArrayList<Thread> mWorkers = new ArrayList<Thread>();
+    private boolean mShutdown;
+
+    /**
+     * Creates the scheduler and starts its worker threads.
+     */
+    public DecodeScheduler(int threadCount) {
+        mQueue = new PriorityQueue<Session>(16, new Comparator<Session>() {
+            @Override
+            public int compare(Session a, Session b) {
+                long diff = a.mWakeNsec - b.mWakeNsec;
+                return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+            }
+        });
+        for (int i = 0; i < threadCount; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    workLoop();
+                }
+            }, "DecodeScheduler-" + i);
+            mWorkers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Starts playing the movie set up in the player: its file, output Surface, loop mode
+     * and decoder pool.  Don't call play() on the player as well.
+     *
+     * @param feedback Told when the session stops, on a worker thread.  May be null.
+     */
+    public Session start(MoviePlayer player, MoviePlayer.PlayerFeedback feedback) {
+        Session session = new Session(player, feedback);
+        synchronized (mLock) {
+            if (mShutdown) {
+                throw new IllegalStateException("scheduler is shut down");
+            }
+            session.mWakeNsec = System.nanoTime();
+            mQueue.add(session);
+            mLock.notifyAll();
+        }
+        return session;
+    }
+
+    /**
+     * Stops all sessions and the worker threads, and waits for them.
+     */
+    public void shutdown() {
+        synchronized (mLock) {
+            for (Session session : mQueue) {
+                session.mStopRequested = true;
+                session.mWakeNsec = 0;
+            }
+            // Let the workers run the stops; they exit when the queue is empty.
+            mShutdown = true;
+            mLock.notifyAll();
+        }
+        for (Thread worker : mWorkers) {
+            try {
+                worker.join();
+            } catch (InterruptedException ie) {
+                Log.w(TAG, "DecodeScheduler join interrupted", ie);
+            }
+        }
+    }
+
+    private void workLoop() {
+        while (true) {
+            Session session;
+            synchronized (mLock) {
+                while (true) {
+                    session = mQueue.peek();
+                    if (session == null) {
+                        if (mShutdown) {
+                            return;
+                        }
+                        waitQuietly(0);
+                        continue;
+                    }
+                    long waitNsec = session.mWakeNsec - System.nanoTime();
+                    if (waitNsec <= 0) {
+                        mQueue.poll();
+                        break;
+                    }
+                    waitQuietly(waitNsec);
+                }
+            }
+
+            // Only this thread has the session while it's out of the queue.
+            long nextWakeNsec = session.step();
+            synchronized (mLock) {
+                if (session.mState != Session.STATE_DONE) {
+                    session.mWakeNsec = mShutdown ? 0 : nextWakeNsec;
+                    if (mShutdown) {
+                        session.mStopRequested = true;
+                    }
+                    mQueue.add(session);
+                    mLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void waitQuietly(long nsec) {
+        try {
+            if (nsec == 0) {
+                mLock.wait();
+            } else {
+                mLock.wait(nsec / 1000000, (int) (nsec % 1000000));
+            }
+        } catch (InterruptedException ie) { /* not expected */ }
+    }
+
+    /**
+     * Moves a queued session to the front, e.g. to act on a stop request promptly.
+     */
+    private void wake(Session session) {
+        synchronized (mLock) {
+            if (mQueue.remove(session)) {
+                session.mWakeNsec = 0;
+                mQueue.add(session);
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * One movie being played by the scheduler.
+     */
+    public class Session {
+        static final int STATE_STARTING = 0;
+        static final int STATE_RUNNING = 1;
+        static final int STATE_DONE = 2;
+
+        private final MoviePlayer mPlayer;
+        private final MoviePlayer.PlayerFeedback mFeedback;
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+        private final LatencyHistogram mLateness = new LatencyHistogram();
+        private final Object mStopLock = new Object();
+
+        private volatile boolean mStopRequested;
+        private volatile int mState = STATE_STARTING;
+        long mWakeNsec;
+
+        private MediaExtractor mExtractor;
+        private MediaCodec mDecoder;
+        private ByteBuffer[] mInputBuffers;
+        private boolean mInputDone;
+        private long mLoopOffsetUsec;
+        private long mLastInputPtsUsec;
+        private long mFrameDurationUsec;
+
+        // Decoded frame waiting for its deadline; -1 if none.
+        private int mHeldIndex = -1;
+        private long mHeldPtsUsec;
+        private int mHeldSize;
+        private int mHeldFlags;
+
+        // Presentation clock: a frame with pts P is due at mClockBaseNsec + P * 1000.
+        private boolean mClockStarted;
+        private long mClockBaseNsec;
+
+        private volatile long mLastLatenessUsec;
+        private volatile long mFramesRendered;
+        private volatile long mFramesDropped;
+        private int mConsecutiveDrops;
+
+        private Session(MoviePlayer player, MoviePlayer.PlayerFeedback feedback) {
+            mPlayer = player;
+            mFeedback = feedback;
+        }
+
+        /**
+         * Asks the session to stop.  Returns without waiting.
+         */
+        public void requestStop() {
+            mStopRequested = true;
+            wake(this);
+        }
+
+        /**
+         * Waits for the session to stop and release its decoder.
+         */
+        public void waitForStop() {
+            synchronized (mStopLock) {
+                while (mState != STATE_DONE) {
+                    try {
+                        mStopLock.wait();
+                    } catch (InterruptedException ie) {
+                        // discard
+                    }
+                }
+            }
+        }
+
+        /**
+         * How late, in microseconds, frames have been released, relative to their deadline.
+         */
+        public LatencyHistogram getLateness() {
+            return mLateness;
+        }
+
+        /** Lateness of the most recent frame, rendered or dropped. */
+        public long getLastLatenessUsec() {
+            return mLastLatenessUsec;
+        }
+
+        public long getFramesRendered() {
+            return mFramesRendered;
+        }
+
+        public long getFramesDropped() {
+            return mFramesDropped;
+        }
+
+        /**
+         * Does as much as can be done without waiting.  Returns when it next wants to run.
+         */
+        long step() {
+            try {
+                if (mStopRequested) {
+                    Log.d(TAG, "DecodeScheduler: stop requested");
+                    finish();
+                    return 0;
+                }
+                if (mState == STATE_STARTING) {
+                    open();
+                    mState = STATE_RUNNING;
+                }
+                feedInput();
+                return drainOutput();
+            } catch (IOException ioe) {
+                Log.e(TAG, "DecodeScheduler: unable to play " + mPlayer.getSourceFile(), ioe);
+                finish();
+            } catch (RuntimeException re) {
+                Log.e(TAG, "DecodeScheduler: playback failed", re);
+                finish();
+            }
+            return 0;
+        }
+
+        private void open() throws IOException {
+            mExtractor = new MediaExtractor();
+            mExtractor.setDataSource(mPlayer.getSourceFile().toString());
+            int trackIndex = mPlayer.getTrackIndex();
+            mExtractor.selectTrack(trackIndex);
+            MediaFormat format = mExtractor.getTrackFormat(trackIndex);
+            DecoderPool pool = mPlayer.getDecoderPool();
+            if (pool != null) {
+                mDecoder = pool.acquire(format, mPlayer.getOutputSurface());
+            } else {
+                mDecoder = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+                mDecoder.configure(format, mPlayer.getOutputSurface(), null, 0);
+                mDecoder.start();
+            }
+            mInputBuffers = mDecoder.getInputBuffers();
+        }
+
+        private void feedInput() {
+            for (int i = 0; i < MAX_INPUT_PER_STEP && !mInputDone; i++) {
+                int index = mDecoder.dequeueInputBuffer(0);
+                if (index < 0) {
+                    return;
+                }
+                ByteBuffer inputBuf = mInputBuffers[index];
+                int chunkSize = mExtractor.readSampleData(inputBuf, 0);
+                if (chunkSize < 0 && mPlayer.isLoopMode()) {
+                    // Keep the timeline going rather than flushing, as in pipeline mode.
+                    mLoopOffsetUsec = mLastInputPtsUsec + mFrameDurationUsec;
+                    mExtractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                    chunkSize = mExtractor.readSampleData(inputBuf, 0);
+                }
+                if (chunkSize < 0) {
+                    mDecoder.queueInputBuffer(index, 0, 0, 0L,
+                            MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    mInputDone = true;
+                    return;
+                }
+                long ptsUsec = mExtractor.getSampleTime() + mLoopOffsetUsec;
+                if (ptsUsec > mLastInputPtsUsec) {
+                    mFrameDurationUsec = ptsUsec - mLastInputPtsUsec;
+                    mLastInputPtsUsec = ptsUsec;
+                }
+                mDecoder.queueInputBuffer(index, 0, chunkSize, ptsUsec, 0);
+                mExtractor.advance();
+            }
+        }
+
+        private long drainOutput() {
+            while (true) {
+                if (mHeldIndex < 0) {
+                    int status = mDecoder.dequeueOutputBuffer(mInfo, 0);
+                    if (status == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                        return System.nanoTime() + POLL_NSEC;
+                    } else if (status == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED ||
+                            status == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                        continue;
+                    } else if (status < 0) {
+                        throw new RuntimeException(
+                                "unexpected result from decoder.dequeueOutputBuffer: " + status);
+                    }
+                    mHeldIndex = status;
+                    mHeldPtsUsec = mInfo.presentationTimeUs;
+                    mHeldSize = mInfo.size;
+                    mHeldFlags = mInfo.flags;
+                }
+
+                if ((mHeldFlags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    mDecoder.releaseOutputBuffer(mHeldIndex, false);
+                    mHeldIndex = -1;
+                    finish();
+                    return 0;
+                }
+                if (mHeldSize == 0) {
+                    mDecoder.releaseOutputBuffer(mHeldIndex, false);
+                    mHeldIndex = -1;
+                    continue;
+                }
+
+                long nowNsec = System.nanoTime();
+                if (!mClockStarted) {
+                    mClockBaseNsec = nowNsec - mHeldPtsUsec * 1000;
+                    mClockStarted = true;
+                }
+                long deadlineNsec = mClockBaseNsec + mHeldPtsUsec * 1000;
+                if (nowNsec < deadlineNsec) {
+                    return deadlineNsec;
+                }
+
+                long latenessNsec = nowNsec - deadlineNsec;
+                mLateness.record(latenessNsec / 1000);
+                mLastLatenessUsec = latenessNsec / 1000;
+                boolean drop = latenessNsec > DROP_LATENESS_NSEC &&
+                        mConsecutiveDrops < MAX_CONSECUTIVE_DROPS;
+                mDecoder.releaseOutputBuffer(mHeldIndex, !drop);
+                mHeldIndex = -1;
+                if (drop) {
+                    mFramesDropped++;
+                    mConsecutiveDrops++;
+                } else {
+                    mFramesRendered++;
+                    mConsecutiveDrops = 0;
+                }
+                if (latenessNsec > REBASE_LATENESS_NSEC) {
+                    if (DEBUG) Log.d(TAG, "DecodeScheduler: rebasing clock, " +
+                            (latenessNsec / 1000000) + " ms late");
+                    mClockBaseNsec += latenessNsec;
+                }
+            }
+        }
+
+        private void finish() {
+            try {
+                if (mDecoder != null) {
+                    if (mHeldIndex >= 0) {
+                        mDecoder.releaseOutputBuffer(mHeldIndex, false);
+                        mHeldIndex = -1;
+                    }
+                    DecoderPool pool = mPlayer.getDecoderPool();
+                    if (pool != null) {
+                        pool.release(mDecoder);
+                    } else {
+                        mDecoder.stop();
+                        mDecoder.release();
+                    }
+                }
+            } catch (RuntimeException re) {
+                Log.w(TAG, "DecodeScheduler: decoder release failed", re);
+            } finally {
+                mDecoder = null;
+                if (mExtractor != null) {
+                    mExtractor.release();
+                    mExtractor = null;
+                }
+                synchronized (mStopLock) {
+                    mState = STATE_DONE;
+                    mStopLock.notifyAll();
+                }
+                if (mFeedback != null) {
+                    mFeedback.playbackStopped();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package org.learn.test.grafika.component;
+
+import android.graphics.SurfaceTexture;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import android.view.Surface;
+
+import org.learn.test.grafika.GrafikaMainActivity;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * Created by zzr on 2018/02/07.
+ * <p>
+ * Keeps video decoders alive between uses.  Creating a MediaCodec takes 50-200ms on some
+ * devices, which is most of the time it takes to switch clips; with the pool, a player
+ * gets a codec that's usually already configured and running.
+ * <p>
+ * Idle codecs are matched by mime type and the maximum resolution they were configured
+ * for (at least {@link #MIN_MAX_WIDTH}x{@link #MIN_MAX_HEIGHT}).  A returned codec is
+ * flushed and, on API 23+, left running on a placeholder Surface; acquire() points it at
+ * the caller's Surface and feeds it the new format's codec-specific data.  If the formats
+ * aren't compatible (different size on a codec without adaptive playback, or bigger than
+ * its maximum), or the device can't switch surfaces, the codec is stopped and configured
+ * again, which still skips creation.  At most maxIdle codecs are kept; the least recently
+ * returned ones are released first.
+ * <p>
+ * Hardware decoders are a shared, limited resource, so call {@link #clear()} when
+ * playback goes away for a while (e.g. onPause).  Thread-safe.
+ */
+public class DecoderPool {
+    private static final String TAG = GrafikaMainActivity.TAG;
+    private static final boolean DEBUG = false;
+
+    public static final int MIN_MAX_WIDTH = 1920;
+    public static final int MIN_MAX_HEIGHT = 1080;
+    private static final int DEFAULT_MAX_IDLE = 2;
+    private static final int CSD_TIMEOUT_USEC = 100000;
+
+    private static DecoderPool sDefault;
+
+    private final int mMaxIdle;
+    // Oldest first.
+    private final ArrayList<PooledDecoder> mIdle = new ArrayList<PooledDecoder>();
+    private final IdentityHashMap<MediaCodec, PooledDecoder> mInUse =
+            new IdentityHashMap<MediaCodec, PooledDecoder>();
+    private SurfaceTexture mParkingTexture;
+    private Surface mParkingSurface;
+
+    private static class PooledDecoder {
+        MediaCodec codec;
+        String mime;
+        int maxWidth;
+        int maxHeight;
+        int width;
+        int height;
+        boolean adaptive;
+        boolean running;
+    }
+
+    /**
+     * Returns the process-wide pool.
+     */
+    public static synchronized DecoderPool getDefault() {
+        if (sDefault == null) {
+            sDefault = new DecoderPool(DEFAULT_MAX_IDLE);
+        }
+        return sDefault;
+    }
+
+    public DecoderPool(int maxIdle) {
+        mMaxIdle = maxIdle;
+    }
+
+    /**
+     * Returns a started decoder for the format, sending output to the surface.  Give it
+     * back with {@link #release(MediaCodec)}, not MediaCodec.release().
+     *
+     * @param format The track format from the extractor, with the codec-specific data.
+     */
+    public MediaCodec acquire(MediaFormat format, Surface surface) throws IOException {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        int width = format.getInteger(MediaFormat.KEY_WIDTH);
+        int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+
+        PooledDecoder pd = takeIdle(mime, width, height);
+        if (pd == null) {
+            long startNsec = System.nanoTime();
+            pd = new PooledDecoder();
+            pd.codec = MediaCodec.createDecoderByType(mime);
+            pd.mime = mime;
+            pd.adaptive = isAdaptive(pd.codec, mime);
+            Log.d(TAG, "DecoderPool: created " + mime + " decoder in " +
+                    ((System.nanoTime() - startNsec) / 1000000) + " ms");
+        }
+
+        try {
+            boolean fits = width <= pd.maxWidth && height <= pd.maxHeight &&
+                    (pd.adaptive || (width == pd.width && height == pd.height));
+            if (pd.running && fits) {
+                if (DEBUG) Log.d(TAG, "DecoderPool: reusing running decoder");
+                pd.codec.setOutputSurface(surface);
+                queueCodecConfig(pd.codec, format);
+            } else {
+                if (pd.running) {
+                    if (DEBUG) Log.d(TAG, "DecoderPool: reconfiguring for " + width + "x" + height);
+                    pd.codec.stop();
+                    pd.running = false;
+                }
+                pd.maxWidth = Math.max(width, MIN_MAX_WIDTH);
+                pd.maxHeight = Math.max(height, MIN_MAX_HEIGHT);
+                format.setInteger(MediaFormat.KEY_MAX_WIDTH, pd.maxWidth);
+                format.setInteger(MediaFormat.KEY_MAX_HEIGHT, pd.maxHeight);
+                pd.codec.configure(format, surface, null, 0);
+                pd.codec.start();
+                pd.running = true;
+            }
+        } catch (RuntimeException re) {
+            pd.codec.release();
+            throw re;
+        }
+        pd.width = width;
+        pd.height = height;
+        synchronized (this) {
+            mInUse.put(pd.codec, pd);
+        }
+        return pd.codec;
+    }
+
+    /**
+     * Returns a decoder to the pool.  It may be in any state; one that won't flush is
+     * released instead.  Codecs that didn't come from acquire() are just released.
+     */
+    public void release(MediaCodec codec) {
+        PooledDecoder pd;
+        synchronized (this) {
+            pd = mInUse.remove(codec);
+        }
+        if (pd == null) {
+            Log.w(TAG, "DecoderPool: releasing unknown codec");
+            codec.release();
+            return;
+        }
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                codec.flush();
+                codec.setOutputSurface(getParkingSurface());
+            } else {
+                // Can't retarget a running codec, so it'll need configure() next time.
+                codec.stop();
+                pd.running = false;
+            }
+        } catch (RuntimeException re) {
+            Log.w(TAG, "DecoderPool: discarding decoder", re);
+            codec.release();
+            return;
+        }
+
+        PooledDecoder evicted = null;
+        synchronized (this) {
+            mIdle.add(pd);
+            if (mIdle.size() > mMaxIdle) {
+                evicted = mIdle.remove(0);
+            }
+        }
+        if (evicted != null) {
+            if (DEBUG) Log.d(TAG, "DecoderPool: evicting " + evicted.mime + " decoder");
+            destroy(evicted);
+        }
+    }
+
+    /**
+     * Releases all idle decoders.  Decoders that are in use are unaffected, and return to
+     * the pool as usual.
+     */
+    public void clear() {
+        ArrayList<PooledDecoder> idle;
+        synchronized (this) {
+            idle = new ArrayList<PooledDecoder>(mIdle);
+            mIdle.clear();
+        }
+        for (PooledDecoder pd : idle) {
+            destroy(pd);
+        }
+    }
+
+    /**
+     * Removes and returns the best idle decoder for the format: the most recently returned
+     * one that can take it as-is, else the most recent one with the right mime type.
+     */
+    private synchronized PooledDecoder takeIdle(String mime, int width, int height) {
+        int match = -1;
+        for (int i = mIdle.size() - 1; i >= 0; i--) {
+            PooledDecoder pd = mIdle.get(i);
+            if (!pd.mime.equals(mime)) {
+                continue;
+            }
+            boolean fits = width <= pd.maxWidth && height <= pd.maxHeight &&
+                    (pd.adaptive || (width == pd.width && height == pd.height));
+            if (pd.running && fits) {
+                match = i;
+                break;
+            }
+            if (match < 0) {
+                match = i;
+            }
+        }
+        return (match < 0) ? null : mIdle.remove(match);
+    }
+
+    private static boolean isAdaptive(MediaCodec codec, String mime) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return false;
+        }
+        MediaCodecInfo.CodecCapabilities caps = codec.getCodecInfo().getCapabilitiesForType(mime);
+        return caps.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_AdaptivePlayback);
+    }
+
+    /**
+     * Feeds csd-0, csd-1, ... to a flushed decoder, as the first thing the new stream sends.
+     */
+    private static void queueCodecConfig(MediaCodec codec, MediaFormat format) {
+        ByteBuffer[] inputBuffers = codec.getInputBuffers();
+        for (int i = 0; format.containsKey("csd-" + i); i++) {
+            ByteBuffer csd = format.getByteBuffer("csd-" + i).duplicate();
+            int index = codec.dequeueInputBuffer(CSD_TIMEOUT_USEC);
+            if (index < 0) {
+                throw new RuntimeException("no input buffer for codec config");
+            }
+            ByteBuffer inputBuf = inputBuffers[index];
+            inputBuf.clear();
+            int size = csd.remaining();
+            inputBuf.put(csd);
+            codec.queueInputBuffer(index, 0, size, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+        }
+    }
+
+    /**
+     * Returns a Surface nobody looks at, to hold idle decoders.  A flushed decoder doesn't
+     * render, so nothing ever arrives on it.
+     */
+    private synchronized Surface getParkingSurface() {
+        if (mParkingSurface == null) {
+            mParkingTexture = new SurfaceTexture(0);
+            mParkingSurface = new Surface(mParkingTexture);
+        }
+        return mParkingSurface;
+    }
+
+    private static void destroy(PooledDecoder pd) {
+        try {
+            if (pd.running) {
+                pd.codec.stop();
+            }
+        } catch (RuntimeException re) {
+            Log.w(TAG, "DecoderPool: stop failed", re);
+        }
+        pd.codec.release();
+    }
+}
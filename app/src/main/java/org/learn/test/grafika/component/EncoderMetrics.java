@@ -0,0 +1,190 @@
+package org.learn.test.grafika.component;
+
+import org.learn.test.grafika.util.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by zzr on 2018/01/26.
+ * <p>
+ * Counters for a CircularEncoder: what's in the ring, what got evicted, how fast the codec
+ * really produces data, how long output takes to come out of the codec, and how long saves
+ * take.  The encoder, audio and mux threads update them without allocating or locking.
+ * A monitoring thread can read them at any time, without posting anything to the encoder
+ * thread.
+ * <p>
+ * Totals only ever grow.  For per-second rates, keep a {@link RateSampler} on the
+ * monitoring thread and call {@link RateSampler#sample()} on whatever schedule suits it.
+ */
+public class EncoderMetrics {
+    private final AtomicLong mEncodedBytes = new AtomicLong();
+    private final AtomicLong mEncodedPackets = new AtomicLong();
+    private final AtomicLong mEvictedBytes = new AtomicLong();
+    private final AtomicLong mEvictedPackets = new AtomicLong();
+    private final AtomicLong mSavesFailed = new AtomicLong();
+
+    // Ring occupancy, published after every change by the thread holding the buffer lock.
+    private volatile long mBufferedBytes;
+    private volatile int mBufferedPackets;
+    private volatile long mBufferedSpanUsec;
+    private volatile int mCapacityBytes;
+
+    private volatile int mTargetBitRate;
+    private final LatencyHistogram mDrainLatency = new LatencyHistogram();
+    private final LatencyHistogram mSaveDuration = new LatencyHistogram();
+
+    void setTargetBitRate(int bitRate) {
+        mTargetBitRate = bitRate;
+    }
+
+    void onPacketAdded(int size) {
+        mEncodedBytes.addAndGet(size);
+        mEncodedPackets.incrementAndGet();
+    }
+
+    void onPacketEvicted(int size) {
+        mEvictedBytes.addAndGet(size);
+        mEvictedPackets.incrementAndGet();
+    }
+
+    void setOccupancy(long bytes, int packets, long spanUsec, int capacityBytes) {
+        mBufferedBytes = bytes;
+        mBufferedPackets = packets;
+        mBufferedSpanUsec = spanUsec;
+        mCapacityBytes = capacityBytes;
+    }
+
+    void onDrainLatency(long usec) {
+        mDrainLatency.record(usec);
+    }
+
+    void onSaveComplete(long durationUsec, int status) {
+        mSaveDuration.record(durationUsec);
+        if (status != 0) {
+            mSavesFailed.incrementAndGet();
+        }
+    }
+
+    /** Bytes of encoded data currently in the ring. */
+    public long getBufferedBytes() {
+        return mBufferedBytes;
+    }
+
+    /** Packets (all tracks) currently in the ring. */
+    public int getBufferedPackets() {
+        return mBufferedPackets;
+    }
+
+    /** Time from the oldest sync frame to the newest packet. */
+    public long getBufferedSpanUsec() {
+        return mBufferedSpanUsec;
+    }
+
+    /** Size of the ring's data area; changes with adaptive sizing. */
+    public int getCapacityBytes() {
+        return mCapacityBytes;
+    }
+
+    public long getEncodedBytes() {
+        return mEncodedBytes.get();
+    }
+
+    public long getEncodedPackets() {
+        return mEncodedPackets.get();
+    }
+
+    public long getEvictedBytes() {
+        return mEvictedBytes.get();
+    }
+
+    public long getEvictedPackets() {
+        return mEvictedPackets.get();
+    }
+
+    /** The bit rate the video encoder was configured with. */
+    public int getTargetBitRate() {
+        return mTargetBitRate;
+    }
+
+    /**
+     * Time from frameAvailableSoon() to the matching video output leaving the codec.
+     * Frames are matched in order, so a frame the codec drops skews one sample.
+     */
+    public LatencyHistogram getDrainLatency() {
+        return mDrainLatency;
+    }
+
+    /** Time from the save request reaching the encoder thread to the file being closed. */
+    public LatencyHistogram getSaveDuration() {
+        return mSaveDuration;
+    }
+
+    public long getSavesFailed() {
+        return mSavesFailed.get();
+    }
+
+    /**
+     * Turns the running totals into rates over the interval between two sample() calls.
+     * Owned by the monitoring thread; not thread-safe.
+     */
+    public static class RateSampler {
+        private final EncoderMetrics mMetrics;
+        private long mLastTimeNsec;
+        private long mLastEncodedBytes;
+        private long mLastEvictedPackets;
+        private long mLastEvictedBytes;
+        private double mBitRate;
+        private double mEvictionsPerSec;
+        private double mEvictedBytesPerSec;
+
+        public RateSampler(EncoderMetrics metrics) {
+            mMetrics = metrics;
+            mLastTimeNsec = System.nanoTime();
+            mLastEncodedBytes = metrics.getEncodedBytes();
+            mLastEvictedPackets = metrics.getEvictedPackets();
+            mLastEvictedBytes = metrics.getEvictedBytes();
+        }
+
+        /**
+         * Updates the rates from the totals.  Calls less than a millisecond apart are
+         * ignored.
+         */
+        public void sample() {
+            long now = System.nanoTime();
+            long elapsedNsec = now - mLastTimeNsec;
+            if (elapsedNsec < 1000000L) {
+                return;
+            }
+            double seconds = elapsedNsec / 1000000000.0;
+            long encodedBytes = mMetrics.getEncodedBytes();
+            long evictedPackets = mMetrics.getEvictedPackets();
+            long evictedBytes = mMetrics.getEvictedBytes();
+            mBitRate = (encodedBytes - mLastEncodedBytes) * 8 / seconds;
+            mEvictionsPerSec = (evictedPackets - mLastEvictedPackets) / seconds;
+            mEvictedBytesPerSec = (evictedBytes - mLastEvictedBytes) / seconds;
+            mLastTimeNsec = now;
+            mLastEncodedBytes = encodedBytes;
+            mLastEvictedPackets = evictedPackets;
+            mLastEvictedBytes = evictedBytes;
+        }
+
+        /** Bits per second actually produced (all tracks), over the last interval. */
+        public double getBitRate() {
+            return mBitRate;
+        }
+
+        /** getBitRate() divided by the target; above 1 means the codec overshoots. */
+        public double getBitRateRatio() {
+            int target = mMetrics.getTargetBitRate();
+            return (target == 0) ? 0 : mBitRate / target;
+        }
+
+        public double getEvictionsPerSec() {
+            return mEvictionsPerSec;
+        }
+
+        public double getEvictedBytesPerSec() {
+            return mEvictedBytesPerSec;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
@@ -11,9 +12,13 @@ import android.util.Log;
 import org.learn.test.grafika.GrafikaMainActivity;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -27,6 +32,16 @@ import java.nio.ByteBuffer;
  * this thread -- avoids synchronization -- so we want to do the file muxing in here.
  * So, it's best to sleep on an object and do something appropriate when awakened.
  * <p>
+ * Alternatively (async mode, API 23+) the codec calls us back on this thread whenever it
+ * has output, so nothing waits for the next frame to be drained.
+ * <p>
+ * File saves are the exception: the encoder thread pins a snapshot of the buffer and hands
+ * it to a separate mux thread, so we keep draining the encoder (and the buffer keeps
+ * filling) while the file is written.
+ * <p>
+ * A third thread pre-muxes each closed GOP into an fMP4 fragment kept in the buffer, so a
+ * save is mostly a matter of concatenating fragments (see {@link FragmentedMp4Writer}).
+ * <p>
  * This class does not manage the MediaCodec encoder startup/shutdown.  The encoder
  * should be fully started before the thread is created, and not shut down until this
  * thread has been joined.
@@ -35,6 +50,10 @@ public class EncoderThread extends Thread {
 
     private static final String TAG = GrafikaMainActivity.TAG+"-EncoderThread";
     private static final boolean DEBUG = true;
+    // How often to report bufferStatus().
+    private static final long STATUS_INTERVAL_NSEC = 250 * 1000000L;
+    // Starting size of the buffer writeSnapshot() copies each packet into; grows as needed.
+    private static final int SAVE_BUFFER_SIZE = 256 * 1024;
     private MediaCodec mEncoder;
     private MediaFormat mEncodedFormat;
     private MediaCodec.BufferInfo mBufferInfo;
@@ -44,12 +63,45 @@ public class EncoderThread extends Thread {
     private CircularEncoder.Callback mCallback;
 
     private int mFrameNum;
+    private final EncoderMetrics mMetrics;
+    private final boolean mAsyncOutput;
+    private long mLastStatusNsec;
+    // When frameAvailableSoon() was called for frames still inside the codec, oldest first.
+    private final long[] mPendingFrameNsec = new long[16];
+    private int mPendingFrameHead;
+    private int mPendingFrameCount;
+    // Writes files from buffer snapshots, so saves don't block draining the encoder.
+    private HandlerThread mMuxThread;
+    private Handler mMuxHandler;
+    // Builds fMP4 fragments of closed GOPs.
+    private HandlerThread mFragmentThread;
+    private Handler mFragmentHandler;
+    private FragmentedMp4Writer mFragmentWriter;    // fragment thread only
+    private FragmentedMp4Writer mMuxFragmentWriter; // mux thread only
+    private final AtomicInteger mFragmentSequence = new AtomicInteger();
+    private volatile boolean mPremuxEnabled = false;
+    // The two most recent sync frames; the GOP between them is the next to pre-mux.
+    private long mOlderSyncUsec = -1;
+    private long mNewerSyncUsec = -1;
     private final Object mLock = new Object();
     private volatile boolean mReady = false;
 
     public EncoderThread(MediaCodec mediaCodec, CircularEncoderBuffer encBuffer,
                          CircularEncoder.Callback callback) {
+        this(mediaCodec, encBuffer, callback, new EncoderMetrics(), false);
+    }
+
+    /**
+     * @param asyncOutput If set, the thread registers a MediaCodec.Callback as soon as it
+     *     starts, and the codec pushes output to it; the codec must then be configured after
+     *     waitUntilReady() (API 23+).  Otherwise output is polled on frameAvailableSoon().
+     */
+    public EncoderThread(MediaCodec mediaCodec, CircularEncoderBuffer encBuffer,
+                         CircularEncoder.Callback callback, EncoderMetrics metrics,
+                         boolean asyncOutput) {
         mEncoder = mediaCodec;
+        mMetrics = metrics;
+        mAsyncOutput = asyncOutput;
         mEncBuffer = encBuffer;
         mCallback = callback;
 
@@ -59,8 +111,21 @@ public class EncoderThread extends Thread {
     // Prepares the Looper, Handler, and signals anybody watching that we're ready to go.
     @Override
     public void run() {
+        mMuxThread = new HandlerThread("CircularEncoder-mux");
+        mMuxThread.start();
+        mMuxHandler = new Handler(mMuxThread.getLooper());
+        mMuxFragmentWriter = new FragmentedMp4Writer();
+        mFragmentThread = new HandlerThread("CircularEncoder-fragment");
+        mFragmentThread.start();
+        mFragmentHandler = new Handler(mFragmentThread.getLooper());
+        mFragmentWriter = new FragmentedMp4Writer();
+
         Looper.prepare();
         mHandler = new EncoderHandler(this);    // must create on encoder thread
+        if (mAsyncOutput) {
+            // Must happen before configure(); CircularEncoder waits for us.
+            mEncoder.setCallback(new OutputCallback(), mHandler);
+        }
         Log.d(TAG, "encoder thread ready");
         synchronized (mLock) {
             mReady = true;
@@ -68,6 +133,15 @@ public class EncoderThread extends Thread {
         }
         Looper.loop();
 
+        // Let any queued saves finish; they hold snapshots of the buffer.
+        mFragmentThread.quit();
+        mMuxThread.quitSafely();
+        try {
+            mFragmentThread.join();
+            mMuxThread.join();
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "mux thread join() was interrupted", ie);
+        }
 
         synchronized (mLock) {
             mReady = false;
@@ -108,37 +182,272 @@ public class EncoderThread extends Thread {
      * mean we miss the last couple of submitted frames if they're still working their
      * way through.
      * <p>
-     * We may want to reset the buffer after this -- if they hit "capture" again right
-     * away they'll end up saving video with a gap where we paused to write the file.
+     * The range to save is pinned here, on the encoder thread; the muxing happens on the
+     * mux thread while we go back to draining the encoder.
      */
-    private void saveVideo(File outputFile) {
+    private void saveVideo(SaveRequest request) {
+        final long startNsec = System.nanoTime();
+        final File outputFile = request.mOutputFile;
         if (DEBUG) Log.d(TAG, "saveVideo " + outputFile);
+        drainEncoder();
+
+        long fromUsec = request.mFromUsec;
+        long toUsec = request.mToUsec;
+        if (request.mLastUsec > 0) {
+            // Relative to what we have right now, after draining.
+            toUsec = Long.MAX_VALUE;
+            fromUsec = mEncBuffer.getNewestPtsUsec() - request.mLastUsec;
+        }
+        if (mPremuxEnabled) {
+            saveFragments(outputFile, fromUsec, toUsec, startNsec);
+            return;
+        }
+        final CircularEncoderBuffer.Snapshot snapshot =
+                mEncBuffer.acquireSnapshot(fromUsec, toUsec);
+        if (snapshot == null) {
+            Log.w(TAG, "Unable to get first index");
+            finishSave(startNsec, 1);
+            return;
+        }
+        mMuxHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                int result;
+                try {
+                    result = writeSnapshot(snapshot, outputFile);
+                } finally {
+                    snapshot.release();
+                }
+                finishSave(startNsec, result);
+            }
+        });
+    }
 
-        int index = mEncBuffer.getFirstIndex();
-        if (index < 0) {
+    /**
+     * Saves [fromUsec, toUsec] as fragmented MP4: the pre-muxed fragments that cover the
+     * start of the range, plus one fragment built now for the GOPs that don't have one
+     * yet (normally the last one or two).
+     */
+    private void saveFragments(final File outputFile, long fromUsec, long toUsec,
+                               final long startNsec) {
+        final ArrayList<ByteBuffer> parts = new ArrayList<ByteBuffer>();
+        final MediaFormat[] formats = new MediaFormat[CircularEncoderBuffer.MAX_TRACKS];
+        final long startUsec;
+        final long restUsec;
+        final CircularEncoderBuffer.Snapshot rest;
+        synchronized (mEncBuffer) {
+            // The audio thread can evict packets; hold the lock so the fragments and the
+            // snapshot of the rest meet up.
+            startUsec = mEncBuffer.getSyncFramePtsUsec(fromUsec);
+            restUsec = mEncBuffer.collectFragments(fromUsec, toUsec, parts);
+            rest = mEncBuffer.acquireSnapshot(
+                    (restUsec == Long.MIN_VALUE) ? fromUsec : restUsec, toUsec);
+            for (int t = 0; t < formats.length; t++) {
+                formats[t] = mEncBuffer.getTrackFormat(t);
+            }
+        }
+        if (parts.isEmpty() && rest == null) {
             Log.w(TAG, "Unable to get first index");
-            mCallback.fileSaveComplete(1);
+            finishSave(startNsec, 1);
+            return;
+        }
+        if (DEBUG) Log.d(TAG, "saving " + parts.size() + " pre-muxed fragments");
+        mMuxHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                int result;
+                try {
+                    result = writeFragments(formats, startUsec, parts, rest, outputFile);
+                } finally {
+                    if (rest != null) {
+                        rest.release();
+                    }
+                    if (restUsec != Long.MIN_VALUE) {
+                        mEncBuffer.releaseFragments(startUsec, restUsec);
+                    }
+                }
+                finishSave(startNsec, result);
+            }
+        });
+    }
+
+    // Records how long the save took, then tells the caller.
+    private void finishSave(long startNsec, int result) {
+        mMetrics.onSaveComplete((System.nanoTime() - startNsec) / 1000, result);
+        mCallback.fileSaveComplete(result);
+    }
+
+    /**
+     * Writes an init segment, the fragments, and the rest of the range, with gathering
+     * writes and no per-sample work other than for "rest".  Runs on the mux thread.
+     *
+     * @return zero on success, nonzero on failure (see {@link CircularEncoder.Callback}).
+     */
+    private int writeFragments(MediaFormat[] formats, long startUsec,
+                               ArrayList<ByteBuffer> parts,
+                               CircularEncoderBuffer.Snapshot rest, File outputFile) {
+        if (!FragmentedMp4Writer.isSupported(formats[CircularEncoderBuffer.TRACK_VIDEO])) {
+            Log.w(TAG, "no video format yet");
+            return 1;
+        }
+        if (rest != null) {
+            ByteBuffer fragment = mMuxFragmentWriter.createFragment(rest,
+                    mFragmentSequence.incrementAndGet(), Long.MAX_VALUE);
+            if (rest.isOverrun()) {
+                return 3;
+            }
+            if (fragment != null) {
+                parts.add(fragment);
+            }
+        }
+        parts.add(0, FragmentedMp4Writer.createInitSegment(formats, startUsec));
+        ByteBuffer[] buffers = parts.toArray(new ByteBuffer[parts.size()]);
+        long remaining = 0;
+        for (ByteBuffer buf : buffers) {
+            remaining += buf.remaining();
+        }
+
+        FileOutputStream fos = null;
+        int result;
+        try {
+            fos = new FileOutputStream(outputFile);
+            FileChannel channel = fos.getChannel();
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+            result = 0;
+        } catch (IOException ioe) {
+            Log.w(TAG, "fragment write failed", ioe);
+            result = 2;
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException ioe) {
+                    Log.w(TAG, "close failed", ioe);
+                }
+            }
+        }
+        if (DEBUG) {
+            Log.d(TAG, "fragments written, result=" + result);
+        }
+        return result;
+    }
+
+    /**
+     * Called on the encoder thread after a sync frame was added.  Queues the fragment for
+     * the GOP before the one that just closed: audio trails the video slightly, so waiting
+     * one more GOP makes sure its audio is in the buffer too.
+     */
+    private void onSyncFrame(long ptsUsec) {
+        if (mPremuxEnabled && mOlderSyncUsec >= 0) {
+            final long startUsec = mOlderSyncUsec;
+            final long endUsec = mNewerSyncUsec;
+            mFragmentHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    premuxGop(startUsec, endUsec);
+                }
+            });
+        }
+        mOlderSyncUsec = mNewerSyncUsec;
+        mNewerSyncUsec = ptsUsec;
+    }
+
+    // Runs on the fragment thread.
+    private void premuxGop(long startUsec, long endUsec) {
+        CircularEncoderBuffer.Snapshot snapshot = mEncBuffer.acquireSnapshot(startUsec,
+                endUsec - 1);
+        if (snapshot == null) {
             return;
         }
+        int size;
+        try {
+            size = mFragmentWriter.prepareFragment(snapshot,
+                    mFragmentSequence.incrementAndGet(), endUsec);
+        } finally {
+            snapshot.release();
+        }
+        if (size == 0) {
+            return;
+        }
+        ByteBuffer fragment = mEncBuffer.reserveFragment(size);
+        if (fragment == null) {
+            // Pool full of fragments being saved; saves will mux this GOP the slow way.
+            if (DEBUG) Log.d(TAG, "no room for fragment of " + size + " bytes");
+            return;
+        }
+        mFragmentWriter.writeFragment(fragment);
+        // If the GOP was evicted meanwhile, the buffer drops the fragment right away.
+        mEncBuffer.attachFragment(startUsec, endUsec, mFragmentWriter.getLastPtsUsec(),
+                fragment);
+    }
+
+    /**
+     * Turns GOP pre-muxing on or off.  With it off, saves go through MediaMuxer.
+     */
+    void setPremuxEnabled(boolean enabled) {
+        mEncBuffer.setFragmentPool(enabled);
+        mPremuxEnabled = enabled;
+    }
+
+    /**
+     * Muxes a snapshot to a file, one muxer track per buffer track that has both packets
+     * and a format.  The snapshot hands packets out already merged in pts order.  Runs on
+     * the mux thread.
+     * <p>
+     * The encoder doesn't wait for us, so each packet is copied out of the ring and only
+     * handed to the muxer if the snapshot wasn't overrun while we copied it.
+     *
+     * @return zero on success, nonzero on failure (see {@link CircularEncoder.Callback}).
+     */
+    static int writeSnapshot(CircularEncoderBuffer.Snapshot snapshot, File outputFile) {
+        if (snapshot.getTrackFormat(CircularEncoderBuffer.TRACK_VIDEO) == null) {
+            Log.w(TAG, "no video format yet");
+            return 1;
+        }
+        int index = snapshot.getFirstIndex();
         MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        ByteBuffer sample = ByteBuffer.allocateDirect(SAVE_BUFFER_SIZE);
         MediaMuxer muxer = null;
         int result = -1;
 
         try {
             muxer = new MediaMuxer(outputFile.getPath(),
                     MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-            int videoTrack = muxer.addTrack(mEncodedFormat);
+            int[] muxerTracks = new int[CircularEncoderBuffer.MAX_TRACKS];
+            for (int t = 0; t < muxerTracks.length; t++) {
+                MediaFormat format = snapshot.getTrackFormat(t);
+                muxerTracks[t] = (format != null && snapshot.hasTrack(t)) ?
+                        muxer.addTrack(format) : -1;
+            }
             muxer.start();
 
             do {
-                ByteBuffer buf = mEncBuffer.getChunk(index, info);
+                ByteBuffer buf = snapshot.getChunk(index, info);
+                int track = snapshot.getTrack(index);
                 if (DEBUG) {
-                    Log.d(TAG, "SAVE " + index + " flags=0x" + Integer.toHexString(info.flags));
+                    Log.d(TAG, "SAVE " + index + " track=" + track +
+                            " flags=0x" + Integer.toHexString(info.flags));
+                }
+                if (muxerTracks[track] >= 0) {
+                    if (sample.capacity() < info.size) {
+                        sample = ByteBuffer.allocateDirect(info.size);
+                    }
+                    buf.limit(info.offset + info.size);
+                    buf.position(info.offset);
+                    sample.clear();
+                    sample.put(buf);
+                    sample.flip();
+                    if (snapshot.isOverrun()) {
+                        break;
+                    }
+                    info.offset = 0;
+                    muxer.writeSampleData(muxerTracks[track], sample, info);
                 }
-                muxer.writeSampleData(videoTrack, buf, info);
-                index = mEncBuffer.getNextIndex(index);
+                index = snapshot.getNextIndex(index);
             } while (index >= 0);
-            result = 0;
+            result = snapshot.isOverrun() ? 3 : 0;
         } catch (IOException e) {
             e.printStackTrace();
             Log.w(TAG, "muxer failed", e);
@@ -152,7 +461,7 @@ public class EncoderThread extends Thread {
         if (DEBUG) {
             Log.d(TAG, "muxer stopped, result=" + result);
         }
-        mCallback.fileSaveComplete(result);
+        return result;
     }
 
 
@@ -161,18 +470,44 @@ public class EncoderThread extends Thread {
      * <p>
      * See notes for {@link CircularEncoder#frameAvailableSoon()}.
      */
-    private void frameAvailableSoon() {
+    private void frameAvailableSoon(long requestNsec) {
         if (DEBUG) Log.d(TAG, "EncoderThread frameAvailableSoon "+mFrameNum);
         drainEncoder();
 
+        // The frame is on its way into the codec; its output gets matched to this time.
+        final int pendingLen = mPendingFrameNsec.length;
+        if (mPendingFrameCount == pendingLen) {
+            // The codec dropped or is sitting on frames; forget the oldest.
+            mPendingFrameHead = (mPendingFrameHead + 1) % pendingLen;
+            mPendingFrameCount--;
+        }
+        mPendingFrameNsec[(mPendingFrameHead + mPendingFrameCount) % pendingLen] = requestNsec;
+        mPendingFrameCount++;
+
         mFrameNum++;
-        if ((mFrameNum % 10) == 0) {        // ??? should base off frame rate or clock?
-            mCallback.bufferStatus(mEncBuffer.computeTimeSpanUsec());
+        long now = System.nanoTime();
+        if (now - mLastStatusNsec >= STATUS_INTERVAL_NSEC) {
+            mLastStatusNsec = now;
+            mCallback.bufferStatus(mMetrics.getBufferedSpanUsec());
+        }
+    }
+
+    // Called for each video packet out of the codec.
+    private void onVideoOutput() {
+        if (mPendingFrameCount > 0) {
+            long requestNsec = mPendingFrameNsec[mPendingFrameHead];
+            mPendingFrameHead = (mPendingFrameHead + 1) % mPendingFrameNsec.length;
+            mPendingFrameCount--;
+            mMetrics.onDrainLatency((System.nanoTime() - requestNsec) / 1000);
         }
     }
 
     // Drains all pending output from the decoder, and adds it to the circular buffer.
+    // In async mode the codec delivers output itself, so there's nothing to do.
     public void drainEncoder() {
+        if (mAsyncOutput) {
+            return;
+        }
         final int TIMEOUT_USEC = 0;     // no timeout -- check for buffers, bail if none
         ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
         while (true) {
@@ -185,55 +520,102 @@ public class EncoderThread extends Thread {
                 // not expected for an encoder
                 encoderOutputBuffers = mEncoder.getOutputBuffers();
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                // Should happen before receiving buffers, and should only happen once.
-                // The MediaFormat contains the csd-0 and csd-1 keys, which we'll need
-                // for MediaMuxer.  It's unclear what else MediaMuxer might want, so
-                // rather than extract the codec-specific data and reconstruct a new
-                // MediaFormat later, we just grab it here and keep it around.
-                mEncodedFormat = mEncoder.getOutputFormat();
-                Log.d(TAG, "encoder output format changed: " + mEncodedFormat);
+                outputFormatChanged(mEncoder.getOutputFormat());
             } else if (encoderStatus < 0) {
                 Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
                         encoderStatus);
                 // let's ignore it
             } else {
-                ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
-                if (encodedData == null) {
-                    throw new RuntimeException("encoderOutputBuffer " + encoderStatus +
-                            " was null");
+                if (!outputBufferAvailable(encoderOutputBuffers[encoderStatus], encoderStatus,
+                        mBufferInfo)) {
+                    break;      // out of while
                 }
+            }
+        }
+    }
 
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    // The codec config data was pulled out when we got the
-                    // INFO_OUTPUT_FORMAT_CHANGED status.  The MediaMuxer won't accept
-                    // a single big blob -- it wants separate csd-0/csd-1 chunks --
-                    // so simply saving this off won't work.
-                    if (DEBUG) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-                    mBufferInfo.size = 0;
-                }
+    private void outputFormatChanged(MediaFormat format) {
+        // Should happen before receiving buffers, and should only happen once.
+        // The MediaFormat contains the csd-0 and csd-1 keys, which we'll need
+        // for MediaMuxer.  It's unclear what else MediaMuxer might want, so
+        // rather than extract the codec-specific data and reconstruct a new
+        // MediaFormat later, we just grab it here and keep it around.
+        mEncodedFormat = format;
+        mEncBuffer.setTrackFormat(CircularEncoderBuffer.TRACK_VIDEO, mEncodedFormat);
+        Log.d(TAG, "encoder output format changed: " + mEncodedFormat);
+    }
 
-                if (mBufferInfo.size != 0) {
-                    // adjust the ByteBuffer values to match BufferInfo (not needed?)
-                    encodedData.position(mBufferInfo.offset);
-                    encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
+    /**
+     * Adds one output buffer to the circular buffer and hands it back to the codec.
+     *
+     * @return false if it was the end of the stream.
+     */
+    private boolean outputBufferAvailable(ByteBuffer encodedData, int index,
+                                          MediaCodec.BufferInfo info) {
+        if (encodedData == null) {
+            throw new RuntimeException("encoderOutputBuffer " + index + " was null");
+        }
 
-                    mEncBuffer.add(encodedData, mBufferInfo.flags,
-                            mBufferInfo.presentationTimeUs);
+        int size = info.size;
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // The codec config data was pulled out when we got the
+            // INFO_OUTPUT_FORMAT_CHANGED status.  The MediaMuxer won't accept
+            // a single big blob -- it wants separate csd-0/csd-1 chunks --
+            // so simply saving this off won't work.
+            if (DEBUG) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+            size = 0;
+        }
 
-                    if (DEBUG) {
-                        Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer, ts=" +
-                                mBufferInfo.presentationTimeUs);
-                    }
+        if (size != 0) {
+            // adjust the ByteBuffer values to match BufferInfo (not needed?)
+            encodedData.position(info.offset);
+            encodedData.limit(info.offset + size);
 
-                    mEncoder.releaseOutputBuffer(encoderStatus, false);
+            onVideoOutput();
+            mEncBuffer.add(encodedData, info.flags, info.presentationTimeUs);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                onSyncFrame(info.presentationTimeUs);
+            }
 
-                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        Log.w(TAG, "reached end of stream unexpectedly");
-                        break;      // out of while
-                    }
-                }
+            if (DEBUG) {
+                Log.d(TAG, "sent " + size + " bytes to muxer, ts=" +
+                        info.presentationTimeUs);
             }
         }
+        mEncoder.releaseOutputBuffer(index, false);
+
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            Log.w(TAG, "reached end of stream unexpectedly");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Codec callbacks for async mode.  They arrive on the encoder thread, as soon as the
+     * codec has output, instead of waiting for the next frameAvailableSoon().
+     */
+    private class OutputCallback extends MediaCodec.Callback {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            // Input comes from a Surface.
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index,
+                                            MediaCodec.BufferInfo info) {
+            outputBufferAvailable(codec.getOutputBuffer(index), index, info);
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(TAG, "encoder error", e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            outputFormatChanged(format);
+        }
     }
 
 
@@ -246,6 +628,24 @@ public class EncoderThread extends Thread {
     }
 
 
+    /**
+     * What to save: an absolute [from, to] range, or the last N usec if lastUsec is set.
+     */
+    static class SaveRequest {
+        final File mOutputFile;
+        final long mFromUsec;
+        final long mToUsec;
+        final long mLastUsec;
+
+        SaveRequest(File outputFile, long fromUsec, long toUsec, long lastUsec) {
+            mOutputFile = outputFile;
+            mFromUsec = fromUsec;
+            mToUsec = toUsec;
+            mLastUsec = lastUsec;
+        }
+    }
+
+
     /**
      * Handler for EncoderThread.  Used for messages sent from the UI thread
      * (or whatever is driving the encoder) to the encoder thread.
@@ -277,10 +677,11 @@ public class EncoderThread extends Thread {
             }
             switch (what){
                 case MSG_SAVE_VIDEO:
-                    encoderThread.saveVideo((File) msg.obj);
+                    encoderThread.saveVideo((SaveRequest) msg.obj);
                     break;
                 case MSG_FRAME_AVAILABLE_SOON:
-                    encoderThread.frameAvailableSoon();
+                    encoderThread.frameAvailableSoon(
+                            (((long) msg.arg1) << 32) | (((long) msg.arg2) & 0xffffffffL));
                     break;
                 case MSG_SHUTDOWN:
                     encoderThread.shutdown();
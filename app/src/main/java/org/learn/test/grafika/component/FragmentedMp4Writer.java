@@ -0,0 +1,623 @@
+package org.learn.test.grafika.component;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import org.learn.test.grafika.GrafikaMainActivity;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Created by zzr on 2018/01/24.
+ * <p>
+ * Builds fragmented MP4 (ISO/IEC 14496-12) pieces from CircularEncoderBuffer contents: an
+ * init segment (ftyp + moov, no samples), and self-contained fragments (moof + mdat).
+ * An init segment followed by fragments in pts order is a playable .mp4, so a save can
+ * just concatenate fragments that were built while recording.
+ * <p>
+ * Supports H.264 ("video/avc") and AAC ("audio/mp4a-latm") tracks; other tracks are
+ * left out.  Track N of the buffer is track_ID N+1 in the file, and every track counts
+ * time in microseconds, so buffer pts go into the file unconverted.  The encoder is
+ * assumed not to emit B-frames (decode order is pts order), which is what CircularEncoder
+ * asks for.
+ * <p>
+ * An instance keeps scratch space between fragments and must only be used on one thread.
+ */
+public class FragmentedMp4Writer {
+    private static final String TAG = GrafikaMainActivity.TAG;
+
+    private static final int TIMESCALE = 1000000;           // track time unit: usec
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;        // depends on nothing
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;    // depends on others
+    private static final int TRAF_HEADER_SIZE = 8 + 16 + 20 + 20;   // traf, tfhd, tfdt, trun
+    private static final int TRUN_ENTRY_SIZE = 12;
+
+    // Per-track samples of the fragment being built.
+    private final int[] mCount = new int[CircularEncoderBuffer.MAX_TRACKS];
+    private final long[][] mPtsUsec = new long[CircularEncoderBuffer.MAX_TRACKS][];
+    private final int[][] mSize = new int[CircularEncoderBuffer.MAX_TRACKS][];
+    private final int[][] mFlags = new int[CircularEncoderBuffer.MAX_TRACKS][];
+    private final ByteBuffer[] mPayload = new ByteBuffer[CircularEncoderBuffer.MAX_TRACKS];
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    // The fragment prepareFragment() worked out, for writeFragment().
+    private int mSequenceNumber;
+    private long mEndUsec;
+    private int mMoofSize;
+    private int mFragmentSize;
+
+    public FragmentedMp4Writer() {
+        for (int t = 0; t < CircularEncoderBuffer.MAX_TRACKS; t++) {
+            mPtsUsec[t] = new long[64];
+            mSize[t] = new int[64];
+            mFlags[t] = new int[64];
+            mPayload[t] = ByteBuffer.allocate(64 * 1024);
+        }
+    }
+
+    /**
+     * Returns true if we know how to write a track with this format.
+     */
+    public static boolean isSupported(MediaFormat format) {
+        if (format == null) {
+            return false;
+        }
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        return "video/avc".equals(mime) || "audio/mp4a-latm".equals(mime);
+    }
+
+    /**
+     * Creates the init segment for a file whose first fragment starts at startUsec.  An
+     * edit list maps startUsec to time zero, so the clip plays from the beginning.
+     *
+     * @param formats track formats, indexed by buffer track; null entries are skipped.
+     */
+    public static ByteBuffer createInitSegment(MediaFormat[] formats, long startUsec) {
+        int capacity = 4096;
+        for (MediaFormat format : formats) {
+            if (isSupported(format)) {
+                capacity += 1024 + csdSize(format, "csd-0") + csdSize(format, "csd-1");
+            }
+        }
+        ByteBuffer buf = ByteBuffer.allocate(capacity);
+
+        int box = beginBox(buf, "ftyp");
+        putFourCC(buf, "isom");
+        buf.putInt(0x200);
+        putFourCC(buf, "isom");
+        putFourCC(buf, "iso6");
+        putFourCC(buf, "avc1");
+        putFourCC(buf, "mp41");
+        endBox(buf, box);
+
+        int moov = beginBox(buf, "moov");
+        box = beginFullBox(buf, "mvhd", 0, 0);
+        buf.putInt(0);                  // creation time
+        buf.putInt(0);                  // modification time
+        buf.putInt(MOVIE_TIMESCALE);
+        buf.putInt(0);                  // duration: unknown, it's in the fragments
+        buf.putInt(0x00010000);         // rate 1.0
+        buf.putShort((short) 0x0100);   // volume 1.0
+        putZeros(buf, 10);
+        putMatrix(buf);
+        putZeros(buf, 24);
+        buf.putInt(formats.length + 1); // next track ID
+        endBox(buf, box);
+
+        for (int t = 0; t < formats.length; t++) {
+            if (isSupported(formats[t])) {
+                writeTrak(buf, t + 1, formats[t], startUsec);
+            }
+        }
+
+        int mvex = beginBox(buf, "mvex");
+        for (int t = 0; t < formats.length; t++) {
+            if (isSupported(formats[t])) {
+                box = beginFullBox(buf, "trex", 0, 0);
+                buf.putInt(t + 1);      // track ID
+                buf.putInt(1);          // sample description index
+                buf.putInt(0);          // default duration, size, flags: all set in trun
+                buf.putInt(0);
+                buf.putInt(0);
+                endBox(buf, box);
+            }
+        }
+        endBox(buf, mvex);
+        endBox(buf, moov);
+
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Builds one fragment from everything in the snapshot, in a new direct buffer.  See
+     * {@link #prepareFragment}.
+     *
+     * @return the fragment, or null if the snapshot had no supported samples or was
+     *     overrun.
+     */
+    public ByteBuffer createFragment(CircularEncoderBuffer.Snapshot snapshot,
+                                     int sequenceNumber, long endUsec) {
+        int size = prepareFragment(snapshot, sequenceNumber, endUsec);
+        if (size == 0) {
+            return null;
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(size);
+        writeFragment(buf);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Reads everything in the snapshot and works out the fragment, so the caller can find
+     * room for it before {@link #writeFragment} puts it there.  The caller still has to
+     * release the snapshot.  Video is converted from the encoder's Annex-B start codes to
+     * the length-prefixed NAL units MP4 wants.
+     *
+     * @param endUsec pts of the packet that follows the snapshot (the next sync frame),
+     *     used for the last video sample's duration; Long.MAX_VALUE if unknown.
+     * @return the size of the fragment in bytes, or 0 if the snapshot had no supported
+     *     samples or was overrun.
+     */
+    public int prepareFragment(CircularEncoderBuffer.Snapshot snapshot,
+                               int sequenceNumber, long endUsec) {
+        mSequenceNumber = sequenceNumber;
+        mEndUsec = endUsec;
+        mFragmentSize = 0;
+        MediaFormat[] formats = new MediaFormat[CircularEncoderBuffer.MAX_TRACKS];
+        for (int t = 0; t < formats.length; t++) {
+            formats[t] = snapshot.getTrackFormat(t);
+            mCount[t] = 0;
+            mPayload[t].clear();
+        }
+
+        // Gather the samples per track.  The snapshot can only be walked once, so the
+        // payload is staged here and copied into the fragment once the sizes are known.
+        MediaCodec.BufferInfo info = mInfo;
+        for (int index = snapshot.getFirstIndex(); index >= 0;
+             index = snapshot.getNextIndex(index)) {
+            int track = snapshot.getTrack(index);
+            if (!isSupported(formats[track])) {
+                continue;
+            }
+            ByteBuffer data = snapshot.getChunk(index, info);
+            boolean isVideo = (track == CircularEncoderBuffer.TRACK_VIDEO);
+            int size;
+            if (isVideo) {
+                // A 3-byte start code grows to a 4-byte length, and there's at most one
+                // per 3 bytes of input.
+                ByteBuffer payload = ensurePayload(track, info.size + info.size / 3 + 4);
+                int before = payload.position();
+                convertAnnexB(data, info.offset, info.size, payload);
+                size = payload.position() - before;
+            } else {
+                ByteBuffer src = data.duplicate();
+                src.limit(info.offset + info.size);
+                src.position(info.offset);
+                ensurePayload(track, info.size).put(src);
+                size = info.size;
+            }
+            addSample(track, info.presentationTimeUs, size,
+                    (!isVideo || (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) ?
+                            SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+        }
+        if (snapshot.isOverrun()) {
+            Log.w(TAG, "snapshot overrun while building fragment " + sequenceNumber);
+            return 0;
+        }
+
+        int moofSize = 8 + 16;          // moof, mfhd
+        int payloadSize = 0;
+        for (int t = 0; t < mCount.length; t++) {
+            if (mCount[t] > 0) {
+                moofSize += TRAF_HEADER_SIZE + TRUN_ENTRY_SIZE * mCount[t];
+                payloadSize += mPayload[t].position();
+            }
+        }
+        if (payloadSize == 0) {
+            return 0;
+        }
+        mMoofSize = moofSize;
+        mFragmentSize = moofSize + 8 + payloadSize;
+        return mFragmentSize;
+    }
+
+    /**
+     * Writes the fragment worked out by the last {@link #prepareFragment} call at buf's
+     * position, which must have that many bytes remaining.  Leaves the position at the end.
+     */
+    public void writeFragment(ByteBuffer buf) {
+        if (mFragmentSize == 0 || buf.remaining() < mFragmentSize) {
+            throw new IllegalStateException("no fragment prepared, or no room: " +
+                    buf.remaining() + " < " + mFragmentSize);
+        }
+        int moof = beginBox(buf, "moof");
+        int box = beginFullBox(buf, "mfhd", 0, 0);
+        buf.putInt(mSequenceNumber);
+        endBox(buf, box);
+        int dataOffset = mMoofSize + 8; // relative to the moof (default-base-is-moof)
+        for (int t = 0; t < mCount.length; t++) {
+            if (mCount[t] > 0) {
+                writeTraf(buf, t, dataOffset, mEndUsec);
+                dataOffset += mPayload[t].position();
+            }
+        }
+        endBox(buf, moof);
+
+        buf.putInt(mFragmentSize - mMoofSize);
+        putFourCC(buf, "mdat");
+        for (int t = 0; t < mCount.length; t++) {
+            if (mCount[t] > 0) {
+                mPayload[t].flip();
+                buf.put(mPayload[t]);
+            }
+        }
+        mFragmentSize = 0;
+    }
+
+    /**
+     * Returns the pts of the newest sample in the last fragment built, or Long.MIN_VALUE.
+     */
+    public long getLastPtsUsec() {
+        long last = Long.MIN_VALUE;
+        for (int t = 0; t < mCount.length; t++) {
+            if (mCount[t] > 0) {
+                last = Math.max(last, mPtsUsec[t][mCount[t] - 1]);
+            }
+        }
+        return last;
+    }
+
+    private void addSample(int track, long ptsUsec, int size, int flags) {
+        int n = mCount[track];
+        if (n == mPtsUsec[track].length) {
+            mPtsUsec[track] = Arrays.copyOf(mPtsUsec[track], n * 2);
+            mSize[track] = Arrays.copyOf(mSize[track], n * 2);
+            mFlags[track] = Arrays.copyOf(mFlags[track], n * 2);
+        }
+        mPtsUsec[track][n] = ptsUsec;
+        mSize[track][n] = size;
+        mFlags[track][n] = flags;
+        mCount[track] = n + 1;
+    }
+
+    private ByteBuffer ensurePayload(int track, int size) {
+        ByteBuffer payload = mPayload[track];
+        if (payload.remaining() < size) {
+            ByteBuffer bigger = ByteBuffer.allocate(
+                    Math.max(payload.capacity() * 2, payload.position() + size));
+            payload.flip();
+            bigger.put(payload);
+            mPayload[track] = payload = bigger;
+        }
+        return payload;
+    }
+
+    private void writeTraf(ByteBuffer buf, int track, int dataOffset, long endUsec) {
+        final int count = mCount[track];
+        final long[] pts = mPtsUsec[track];
+        int traf = beginBox(buf, "traf");
+        int box = beginFullBox(buf, "tfhd", 0, 0x020000);     // default-base-is-moof
+        buf.putInt(track + 1);
+        endBox(buf, box);
+        box = beginFullBox(buf, "tfdt", 1, 0);
+        buf.putLong(pts[0]);            // base media decode time
+        endBox(buf, box);
+        box = beginFullBox(buf, "trun", 0, 0x000701);   // data offset, duration, size, flags
+        buf.putInt(count);
+        buf.putInt(dataOffset);
+        for (int i = 0; i < count; i++) {
+            long duration;
+            if (i + 1 < count) {
+                duration = pts[i + 1] - pts[i];
+            } else if (track == CircularEncoderBuffer.TRACK_VIDEO && endUsec != Long.MAX_VALUE) {
+                duration = endUsec - pts[i];
+            } else {
+                duration = (i > 0) ? pts[i] - pts[i - 1] : 0;
+            }
+            buf.putInt((int) Math.max(0, duration));
+            buf.putInt(mSize[track][i]);
+            buf.putInt(mFlags[track][i]);
+        }
+        endBox(buf, box);
+        endBox(buf, traf);
+    }
+
+    /**
+     * Converts one Annex-B access unit to length-prefixed NAL units.
+     *
+     * @param dst where to write; null to just measure.
+     * @return the converted size.
+     */
+    static int convertAnnexB(ByteBuffer src, int offset, int size, ByteBuffer dst) {
+        final int end = offset + size;
+        int pos = nextStartCode(src, offset, end);
+        if (pos == end) {
+            // No start code; treat the whole thing as one NAL unit.
+            if (dst != null) {
+                dst.putInt(size);
+                putRange(dst, src, offset, end);
+            }
+            return 4 + size;
+        }
+        int total = 0;
+        while (pos < end) {
+            int nalStart = pos + 3;
+            int next = nextStartCode(src, nalStart, end);
+            int nalEnd = next;
+            // A NAL unit never ends in a zero byte; those belong to the next start code.
+            while (nalEnd > nalStart && src.get(nalEnd - 1) == 0) {
+                nalEnd--;
+            }
+            if (nalEnd > nalStart) {
+                if (dst != null) {
+                    dst.putInt(nalEnd - nalStart);
+                    putRange(dst, src, nalStart, nalEnd);
+                }
+                total += 4 + nalEnd - nalStart;
+            }
+            pos = next;
+        }
+        return total;
+    }
+
+    // Returns the offset of the next 00 00 01 in [from, end), or end.
+    private static int nextStartCode(ByteBuffer buf, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if ((buf.get(i + 2) & 0xff) > 1) {
+                i += 2;                 // can't be part of a start code; skip ahead
+            } else if (buf.get(i) == 0 && buf.get(i + 1) == 0 && buf.get(i + 2) == 1) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static void putRange(ByteBuffer dst, ByteBuffer src, int from, int to) {
+        ByteBuffer view = src.duplicate();
+        view.limit(to);
+        view.position(from);
+        dst.put(view);
+    }
+
+    private static void writeTrak(ByteBuffer buf, int trackId, MediaFormat format,
+                                  long startUsec) {
+        boolean isVideo = format.getString(MediaFormat.KEY_MIME).startsWith("video/");
+        int trak = beginBox(buf, "trak");
+
+        int box = beginFullBox(buf, "tkhd", 0, 0x000007);  // enabled, in movie, in preview
+        buf.putInt(0);                  // creation time
+        buf.putInt(0);                  // modification time
+        buf.putInt(trackId);
+        buf.putInt(0);
+        buf.putInt(0);                  // duration
+        putZeros(buf, 8);
+        buf.putShort((short) 0);        // layer
+        buf.putShort((short) 0);        // alternate group
+        buf.putShort((short) (isVideo ? 0 : 0x0100));  // volume
+        buf.putShort((short) 0);
+        putMatrix(buf);
+        buf.putInt(isVideo ? format.getInteger(MediaFormat.KEY_WIDTH) << 16 : 0);
+        buf.putInt(isVideo ? format.getInteger(MediaFormat.KEY_HEIGHT) << 16 : 0);
+        endBox(buf, box);
+
+        int edts = beginBox(buf, "edts");
+        box = beginFullBox(buf, "elst", 1, 0);
+        buf.putInt(1);                  // entry count
+        buf.putLong(0);                 // segment duration: the rest of the track
+        buf.putLong(startUsec);         // media time
+        buf.putShort((short) 1);        // rate 1.0
+        buf.putShort((short) 0);
+        endBox(buf, box);
+        endBox(buf, edts);
+
+        int mdia = beginBox(buf, "mdia");
+        box = beginFullBox(buf, "mdhd", 0, 0);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putInt(TIMESCALE);
+        buf.putInt(0);
+        buf.putShort((short) 0x55c4);   // "und"
+        buf.putShort((short) 0);
+        endBox(buf, box);
+
+        box = beginFullBox(buf, "hdlr", 0, 0);
+        buf.putInt(0);
+        putFourCC(buf, isVideo ? "vide" : "soun");
+        putZeros(buf, 12);
+        putFourCC(buf, isVideo ? "Vide" : "Soun");
+        buf.put((byte) 0);
+        endBox(buf, box);
+
+        int minf = beginBox(buf, "minf");
+        if (isVideo) {
+            box = beginFullBox(buf, "vmhd", 0, 1);
+            putZeros(buf, 8);           // graphics mode, opcolor
+        } else {
+            box = beginFullBox(buf, "smhd", 0, 0);
+            putZeros(buf, 4);           // balance
+        }
+        endBox(buf, box);
+        int dinf = beginBox(buf, "dinf");
+        int dref = beginFullBox(buf, "dref", 0, 0);
+        buf.putInt(1);
+        endBox(buf, beginFullBox(buf, "url ", 0, 1));   // data is in this file
+        endBox(buf, dref);
+        endBox(buf, dinf);
+
+        int stbl = beginBox(buf, "stbl");
+        int stsd = beginFullBox(buf, "stsd", 0, 0);
+        buf.putInt(1);
+        if (isVideo) {
+            writeAvc1(buf, format);
+        } else {
+            writeMp4a(buf, format, trackId);
+        }
+        endBox(buf, stsd);
+        // Empty sample tables; the samples are in the fragments.
+        endBox(buf, putEmptyTable(buf, "stts"));
+        endBox(buf, putEmptyTable(buf, "stsc"));
+        box = beginFullBox(buf, "stsz", 0, 0);
+        buf.putInt(0);
+        buf.putInt(0);
+        endBox(buf, box);
+        endBox(buf, putEmptyTable(buf, "stco"));
+        endBox(buf, stbl);
+        endBox(buf, minf);
+        endBox(buf, mdia);
+        endBox(buf, trak);
+    }
+
+    private static void writeAvc1(ByteBuffer buf, MediaFormat format) {
+        // MediaCodec hands out SPS and PPS with start codes, usually as csd-0 and csd-1,
+        // but some encoders put both in csd-0.
+        ByteBuffer sps = null;
+        ByteBuffer pps = null;
+        for (String key : new String[] { "csd-0", "csd-1" }) {
+            ByteBuffer csd = format.getByteBuffer(key);
+            if (csd == null) {
+                continue;
+            }
+            ByteBuffer converted = ByteBuffer.allocate(convertAnnexB(csd, csd.position(),
+                    csd.remaining(), null));
+            convertAnnexB(csd, csd.position(), csd.remaining(), converted);
+            converted.flip();
+            while (converted.remaining() > 4) {
+                int len = converted.getInt();
+                ByteBuffer nal = converted.slice();
+                nal.limit(len);
+                converted.position(converted.position() + len);
+                int type = nal.get(0) & 0x1f;
+                if (type == 7 && sps == null) {
+                    sps = nal;
+                } else if (type == 8 && pps == null) {
+                    pps = nal;
+                }
+            }
+        }
+        if (sps == null || pps == null || sps.remaining() < 4) {
+            throw new IllegalArgumentException("video format has no SPS/PPS: " + format);
+        }
+
+        int box = beginBox(buf, "avc1");
+        putZeros(buf, 6);
+        buf.putShort((short) 1);        // data reference index
+        putZeros(buf, 16);
+        buf.putShort((short) format.getInteger(MediaFormat.KEY_WIDTH));
+        buf.putShort((short) format.getInteger(MediaFormat.KEY_HEIGHT));
+        buf.putInt(0x00480000);         // 72 dpi
+        buf.putInt(0x00480000);
+        buf.putInt(0);
+        buf.putShort((short) 1);        // frame count
+        putZeros(buf, 32);              // compressor name
+        buf.putShort((short) 0x0018);   // depth
+        buf.putShort((short) -1);
+
+        int avcC = beginBox(buf, "avcC");
+        buf.put((byte) 1);              // configuration version
+        buf.put(sps.get(1));            // profile
+        buf.put(sps.get(2));            // profile compatibility
+        buf.put(sps.get(3));            // level
+        buf.put((byte) 0xff);           // 4-byte NAL lengths
+        buf.put((byte) 0xe1);           // one SPS
+        buf.putShort((short) sps.remaining());
+        buf.put(sps.duplicate());
+        buf.put((byte) 1);              // one PPS
+        buf.putShort((short) pps.remaining());
+        buf.put(pps.duplicate());
+        endBox(buf, avcC);
+        endBox(buf, box);
+    }
+
+    private static void writeMp4a(ByteBuffer buf, MediaFormat format, int trackId) {
+        ByteBuffer csd = format.getByteBuffer("csd-0");
+        if (csd == null) {
+            throw new IllegalArgumentException("audio format has no csd-0: " + format);
+        }
+        int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        int bitRate = format.containsKey(MediaFormat.KEY_BIT_RATE) ?
+                format.getInteger(MediaFormat.KEY_BIT_RATE) : 0;
+        int csdLen = csd.remaining();
+
+        int box = beginBox(buf, "mp4a");
+        putZeros(buf, 6);
+        buf.putShort((short) 1);        // data reference index
+        putZeros(buf, 8);
+        buf.putShort((short) format.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+        buf.putShort((short) 16);       // sample size
+        putZeros(buf, 4);
+        buf.putInt(sampleRate <= 0xffff ? sampleRate << 16 : 0);
+
+        int esds = beginFullBox(buf, "esds", 0, 0);
+        int decoderConfigLen = 13 + 2 + csdLen;
+        buf.put((byte) 0x03);           // ES_Descriptor
+        buf.put((byte) (3 + 2 + decoderConfigLen + 3));
+        buf.putShort((short) trackId);
+        buf.put((byte) 0);
+        buf.put((byte) 0x04);           // DecoderConfigDescriptor
+        buf.put((byte) decoderConfigLen);
+        buf.put((byte) 0x40);           // MPEG-4 audio
+        buf.put((byte) 0x15);           // audio stream
+        putZeros(buf, 3);               // buffer size
+        buf.putInt(bitRate);            // max bit rate
+        buf.putInt(bitRate);            // average bit rate
+        buf.put((byte) 0x05);           // DecoderSpecificInfo: the AudioSpecificConfig
+        buf.put((byte) csdLen);
+        buf.put(csd.duplicate());
+        buf.put((byte) 0x06);           // SLConfigDescriptor
+        buf.put((byte) 1);
+        buf.put((byte) 2);
+        endBox(buf, esds);
+        endBox(buf, box);
+    }
+
+    private static int csdSize(MediaFormat format, String key) {
+        ByteBuffer csd = format.getByteBuffer(key);
+        return (csd == null) ? 0 : csd.remaining();
+    }
+
+    private static int putEmptyTable(ByteBuffer buf, String type) {
+        int box = beginFullBox(buf, type, 0, 0);
+        buf.putInt(0);                  // entry count
+        return box;
+    }
+
+    // Writes a box header with a placeholder size; endBox() fills it in.
+    private static int beginBox(ByteBuffer buf, String type) {
+        int start = buf.position();
+        buf.putInt(0);
+        putFourCC(buf, type);
+        return start;
+    }
+
+    private static int beginFullBox(ByteBuffer buf, String type, int version, int flags) {
+        int start = beginBox(buf, type);
+        buf.putInt((version << 24) | flags);
+        return start;
+    }
+
+    private static void endBox(ByteBuffer buf, int start) {
+        buf.putInt(start, buf.position() - start);
+    }
+
+    private static void putFourCC(ByteBuffer buf, String type) {
+        for (int i = 0; i < 4; i++) {
+            buf.put((byte) type.charAt(i));
+        }
+    }
+
+    private static void putZeros(ByteBuffer buf, int count) {
+        for (int i = 0; i < count; i++) {
+            buf.put((byte) 0);
+        }
+    }
+
+    private static void putMatrix(ByteBuffer buf) {
+        int[] unity = { 0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000 };
+        for (int value : unity) {
+            buf.putInt(value);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.learn.test.grafika.component;
+
+import android.opengl.GLES20;
+
+import org.learn.test.grafika.gles.FullFrameRect;
+import org.learn.test.grafika.gles.GlUtil;
+
+/**
+ * Created by zzr on 2018/02/14.
+ * <p>
+ * GL textures for holding decoded frames, and the framebuffer used to copy frames into
+ * them.  A frame from a decoder's SurfaceTexture only lasts until the next one arrives, so
+ * anything that wants to show it again has to copy it out first.
+ * <p>
+ * Textures are RGBA, all the same size.  Must be created, used and released on the
+ * thread with the EGL context current.
+ */
+class FrameTexturePool {
+    private final int mWidth;
+    private final int mHeight;
+    private int mFramebuffer;
+
+    FrameTexturePool(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        int[] values = new int[1];
+        GLES20.glGenFramebuffers(1, values, 0);
+        mFramebuffer = values[0];
+        GlUtil.checkGlError("glGenFramebuffers");
+    }
+
+    /**
+     * Returns the memory one texture of the given size takes.
+     */
+    static long getFrameBytes(int width, int height) {
+        return (long) width * height * 4;
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Fills the array with new textures.
+     */
+    void createTextures(int[] textures) {
+        GLES20.glGenTextures(textures.length, textures, 0);
+        for (int texture : textures) {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, mWidth, mHeight, 0,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                    GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                    GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                    GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                    GLES20.GL_CLAMP_TO_EDGE);
+        }
+        GlUtil.checkGlError("frame textures");
+    }
+
+    void deleteTextures(int[] textures) {
+        GLES20.glDeleteTextures(textures.length, textures, 0);
+    }
+
+    /**
+     * Draws the frame in an external texture into one of ours.
+     *
+     * @param extRect Drawer with a TEXTURE_EXT program.
+     */
+    void copy(FullFrameRect extRect, int externalTexture, float[] texMatrix, int texture) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, texture, 0);
+        GLES20.glViewport(0, 0, mWidth, mHeight);
+        extRect.drawFrame(externalTexture, texMatrix);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    }
+
+    void release() {
+        if (mFramebuffer != 0) {
+            GLES20.glDeleteFramebuffers(1, new int[] { mFramebuffer }, 0);
+            mFramebuffer = 0;
+        }
+    }
+}
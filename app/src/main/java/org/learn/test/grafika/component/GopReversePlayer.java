@@ -0,0 +1,405 @@
+package org.learn.test.grafika.component;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.opengl.GLES20;
+import android.util.Log;
+
+import org.learn.test.grafika.GrafikaMainActivity;
+import org.learn.test.grafika.gles.EglCore;
+import org.learn.test.grafika.gles.FullFrameRect;
+import org.learn.test.grafika.gles.GlUtil;
+import org.learn.test.grafika.gles.Texture2dProgram;
+import org.learn.test.grafika.gles.WindowSurface;
+import org.learn.test.grafika.util.FramePacer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Created by zzr on 2018/02/12.
+ * <p>
+ * Reverse playback for MoviePlayer.  A decoder can only go forward, so we decode one GOP
+ * (sync frame up to the next sync frame) at a time, copy each frame into a GL texture as it
+ * comes out, and then draw the textures to the output Surface last frame first.
+ * <p>
+ * There are two decoders, each with its own extractor and SurfaceTexture.  While one GOP
+ * is on screen, the other decoder works on the GOP before it, in the gaps between frames,
+ * so the switch from one GOP to the next doesn't stall.
+ * <p>
+ * The textures are the size of the output Surface, and a memory budget limits how many
+ * there are; half go to each GOP.  A GOP with more frames than that is shown as just its
+ * sync frame, so very long GOPs degrade to stepping back keyframe by keyframe instead of
+ * running out of memory.
+ * <p>
+ * Everything runs on the play() thread, which owns the EGL context.  The FrameCallback
+ * isn't used; frames are paced here, against their pts, with a FramePacer.
+ */
+class GopReversePlayer {
+    private static final String TAG = GrafikaMainActivity.TAG;
+    private static final boolean DEBUG = false;
+
+    static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+    private static final int MAX_FRAMES_PER_GOP = 300;
+    private static final int DEQUEUE_TIMEOUT_USEC = 1000;
+    private static final long DEFAULT_FRAME_USEC = 33333;
+    private static final long MAX_FRAME_GAP_USEC = 1000000;
+
+    private final MoviePlayer mPlayer;
+    private final MediaExtractor mExtractor;
+    private final MediaFormat mFormat;
+    private final FramePacer mPacer = new FramePacer();
+
+    private SampleTable mTable;
+    private int[] mSyncSamples;
+    private int mSyncCount;
+
+    private EglCore mEglCore;
+    private WindowSurface mWindowSurface;
+    private FullFrameRect mExtRect;
+    private FullFrameRect m2dRect;
+    private FrameTexturePool mTexturePool;
+    private final GopBuffer[] mBuffers = new GopBuffer[2];
+    private final Lane[] mLanes = new Lane[2];
+
+    private long mLastPresentPtsUsec = -1;
+    private long mLastDeadlineNsec;
+
+    /**
+     * Decoded frames of one GOP, in pts order.
+     */
+    private static class GopBuffer {
+        final int[] textures;
+        final long[] ptsUsec;
+        int count;
+
+        GopBuffer(int capacity) {
+            textures = new int[capacity];
+            ptsUsec = new long[capacity];
+        }
+    }
+
+    /**
+     * @param extractor The player's extractor, with the video track selected.  Used by the
+     *     first decoder; the second gets its own.
+     */
+    GopReversePlayer(MoviePlayer player, MediaExtractor extractor, MediaFormat format) {
+        mPlayer = player;
+        mExtractor = extractor;
+        mFormat = format;
+    }
+
+    /**
+     * Plays backward until the start of the movie (or forever, in loop mode), or until the
+     * player is asked to stop.
+     */
+    void play() throws IOException {
+        long startUsec = mPlayer.takePendingSeekUsec();
+        mTable = mPlayer.getSampleTable(mExtractor, mFormat);
+        findSyncSamples();
+        if (mSyncCount == 0) {
+            Log.w(TAG, "reverse: no samples");
+            return;
+        }
+        try {
+            prepare();
+            run(startUsec);
+        } finally {
+            release();
+        }
+    }
+
+    private void findSyncSamples() {
+        int count = mTable.getSampleCount();
+        mSyncSamples = new int[count];
+        for (int i = 0; i < count; i++) {
+            if (mTable.isSync(i) || i == 0) {
+                mSyncSamples[mSyncCount++] = i;
+            }
+        }
+    }
+
+    private int getGopLength(int gop) {
+        int end = (gop + 1 < mSyncCount) ? mSyncSamples[gop + 1] : mTable.getSampleCount();
+        return end - mSyncSamples[gop];
+    }
+
+    private void prepare() throws IOException {
+        mEglCore = new EglCore(null, 0);
+        mWindowSurface = new WindowSurface(mEglCore, mPlayer.getOutputSurface(), false);
+        mWindowSurface.makeCurrent();
+        mExtRect = new FullFrameRect(new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
+        m2dRect = new FullFrameRect(new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_2D));
+
+        mTexturePool = new FrameTexturePool(mWindowSurface.getWidth(),
+                mWindowSurface.getHeight());
+        long frameBytes = FrameTexturePool.getFrameBytes(mTexturePool.getWidth(),
+                mTexturePool.getHeight());
+        int capacity = (int) Math.max(1,
+                Math.min(mPlayer.getReverseMemoryBudget() / 2 / frameBytes, MAX_FRAMES_PER_GOP));
+        Log.d(TAG, "reverse: " + capacity + " frames of " + mTexturePool.getWidth() + "x" +
+                mTexturePool.getHeight() + " per GOP");
+        for (int b = 0; b < mBuffers.length; b++) {
+            GopBuffer buffer = new GopBuffer(capacity);
+            mTexturePool.createTextures(buffer.textures);
+            mBuffers[b] = buffer;
+        }
+
+        mLanes[0] = new Lane(mExtractor, false);
+        MediaExtractor second = new MediaExtractor();
+        second.setDataSource(mPlayer.getSourceFile().toString());
+        second.selectTrack(mPlayer.getTrackIndex());
+        mLanes[1] = new Lane(second, true);
+    }
+
+    private void run(long startUsec) {
+        int gop;
+        long limitUsec;
+        if (startUsec >= 0) {
+            int frame = mTable.findFrame(startUsec);
+            gop = 0;
+            while (gop + 1 < mSyncCount && mSyncSamples[gop + 1] <= frame) {
+                gop++;
+            }
+            limitUsec = mTable.getPtsUsec(frame);
+        } else {
+            gop = mSyncCount - 1;
+            limitUsec = Long.MAX_VALUE;
+        }
+
+        Lane current = mLanes[0];
+        Lane next = mLanes[1];
+        GopBuffer currentBuf = mBuffers[0];
+        GopBuffer nextBuf = mBuffers[1];
+        current.begin(gop, currentBuf);
+        while (!current.isDone()) {
+            if (mPlayer.isStopRequested()) {
+                return;
+            }
+            current.step();
+        }
+
+        while (true) {
+            int prevGop = gop - 1;
+            if (prevGop < 0 && mPlayer.isLoopMode()) {
+                prevGop = mSyncCount - 1;
+            }
+            boolean prefetch = (prevGop >= 0);
+            if (prefetch) {
+                next.begin(prevGop, nextBuf);
+            }
+
+            for (int i = currentBuf.count - 1; i >= 0; i--) {
+                if (currentBuf.ptsUsec[i] > limitUsec) {
+                    continue;
+                }
+                if (mPlayer.isStopRequested()) {
+                    Log.d(TAG, "Stop requested");
+                    return;
+                }
+                long deadlineNsec = getDeadline(currentBuf.ptsUsec[i]);
+                // Use the time until the frame is due to work on the next GOP.
+                while (System.nanoTime() < deadlineNsec) {
+                    if (prefetch && !next.isDone()) {
+                        next.step();
+                    } else {
+                        mPacer.sleepUntil(deadlineNsec);
+                    }
+                }
+                present(currentBuf.textures[i], deadlineNsec);
+            }
+            limitUsec = Long.MAX_VALUE;
+            if (!prefetch) {
+                break;
+            }
+
+            while (!next.isDone()) {
+                if (mPlayer.isStopRequested()) {
+                    return;
+                }
+                next.step();
+            }
+            Lane lane = current;
+            current = next;
+            next = lane;
+            GopBuffer buf = currentBuf;
+            currentBuf = nextBuf;
+            nextBuf = buf;
+            gop = prevGop;
+        }
+    }
+
+    /**
+     * Returns when the frame should be shown.  Frames go backward in pts, so each is due
+     * the pts difference after the one before it.
+     */
+    private long getDeadline(long ptsUsec) {
+        long nowNsec = System.nanoTime();
+        if (mLastPresentPtsUsec < 0) {
+            mLastDeadlineNsec = nowNsec;
+        } else {
+            long gapUsec = mLastPresentPtsUsec - ptsUsec;
+            if (gapUsec <= 0) {
+                gapUsec = DEFAULT_FRAME_USEC;   // wrapped around in loop mode
+            } else if (gapUsec > MAX_FRAME_GAP_USEC) {
+                gapUsec = MAX_FRAME_GAP_USEC;
+            }
+            mLastDeadlineNsec += gapUsec * 1000;
+            if (mLastDeadlineNsec < nowNsec - MAX_FRAME_GAP_USEC * 1000) {
+                // Fell far behind; don't try to catch up.
+                mLastDeadlineNsec = nowNsec;
+            }
+        }
+        mLastPresentPtsUsec = ptsUsec;
+        return mLastDeadlineNsec;
+    }
+
+    private void present(int texture, long deadlineNsec) {
+        GLES20.glViewport(0, 0, mTexturePool.getWidth(), mTexturePool.getHeight());
+        m2dRect.drawFrame(texture, GlUtil.IDENTITY_MATRIX);
+        mWindowSurface.setPresentationTime(deadlineNsec);
+        mWindowSurface.swapBuffers();
+    }
+
+    private void release() {
+        for (Lane lane : mLanes) {
+            if (lane != null) {
+                lane.release();
+            }
+        }
+        if (mEglCore != null) {
+            if (mTexturePool != null) {
+                for (GopBuffer buffer : mBuffers) {
+                    if (buffer != null) {
+                        mTexturePool.deleteTextures(buffer.textures);
+                    }
+                }
+                mTexturePool.release();
+            }
+            if (mExtRect != null) {
+                mExtRect.release(true);
+            }
+            if (m2dRect != null) {
+                m2dRect.release(true);
+            }
+            if (mWindowSurface != null) {
+                mWindowSurface.release();
+            }
+            mEglCore.release();
+            mEglCore = null;
+        }
+    }
+
+    /**
+     * A decoder, decoding a GOP at a time into a GopBuffer.  step() does a little work and
+     * returns, so decoding can be interleaved with presenting.
+     */
+    private class Lane {
+        private final MediaExtractor mLaneExtractor;
+        private final boolean mOwnsExtractor;
+        private final MediaCodec mDecoder;
+        private final CodecOutputTexture mOutput;
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+        private GopBuffer mTarget;
+        private int mNextSample;
+        private int mEndSample;
+        private boolean mInputDone;
+        private boolean mDone = true;
+
+        Lane(MediaExtractor extractor, boolean ownsExtractor) throws IOException {
+            mLaneExtractor = extractor;
+            mOwnsExtractor = ownsExtractor;
+            mOutput = new CodecOutputTexture(mExtRect);
+            DecoderPool pool = mPlayer.getDecoderPool();
+            if (pool != null) {
+                mDecoder = pool.acquire(mFormat, mOutput.getSurface());
+            } else {
+                mDecoder = MediaCodec.createDecoderByType(mFormat.getString(MediaFormat.KEY_MIME));
+                mDecoder.configure(mFormat, mOutput.getSurface(), null, 0);
+                mDecoder.start();
+            }
+        }
+
+        /**
+         * Starts decoding the given GOP into the buffer, replacing what's there.
+         */
+        void begin(int gop, GopBuffer target) {
+            int sync = mSyncSamples[gop];
+            int length = getGopLength(gop);
+            boolean keyframeOnly = length > target.textures.length;
+            if (DEBUG) Log.d(TAG, "reverse: GOP " + gop + ", " + length + " frames" +
+                    (keyframeOnly ? ", keyframe only" : ""));
+            mTarget = target;
+            target.count = 0;
+            mNextSample = sync;
+            mEndSample = keyframeOnly ? sync + 1 : sync + length;
+            mInputDone = false;
+            mDone = false;
+            mLaneExtractor.seekTo(mTable.getPtsUsec(sync), MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        }
+
+        boolean isDone() {
+            return mDone;
+        }
+
+        void step() {
+            if (mDone) {
+                return;
+            }
+            if (!mInputDone) {
+                int index = mDecoder.dequeueInputBuffer(0);
+                if (index >= 0) {
+                    ByteBuffer inputBuf = mDecoder.getInputBuffers()[index];
+                    int chunkSize = (mNextSample < mEndSample) ?
+                            mLaneExtractor.readSampleData(inputBuf, 0) : -1;
+                    if (chunkSize < 0) {
+                        mDecoder.queueInputBuffer(index, 0, 0, 0L,
+                                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        mInputDone = true;
+                    } else {
+                        mDecoder.queueInputBuffer(index, 0, chunkSize,
+                                mLaneExtractor.getSampleTime(), 0);
+                        mLaneExtractor.advance();
+                        mNextSample++;
+                    }
+                }
+            }
+
+            int status = mDecoder.dequeueOutputBuffer(mInfo, DEQUEUE_TIMEOUT_USEC);
+            if (status < 0) {
+                return;     // try again later, or format/buffers changed
+            }
+            if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                mDecoder.releaseOutputBuffer(status, false);
+                // Ready for the next GOP.
+                mDecoder.flush();
+                mDone = true;
+                return;
+            }
+            boolean keep = mInfo.size != 0 && mTarget.count < mTarget.textures.length;
+            mDecoder.releaseOutputBuffer(status, keep);
+            if (keep && mOutput.awaitFrame()) {
+                mTexturePool.copy(mExtRect, mOutput.getTextureId(), mOutput.getTransformMatrix(),
+                        mTarget.textures[mTarget.count]);
+                mTarget.ptsUsec[mTarget.count] = mInfo.presentationTimeUs;
+                mTarget.count++;
+            }
+        }
+
+        void release() {
+            DecoderPool pool = mPlayer.getDecoderPool();
+            if (pool != null) {
+                pool.release(mDecoder);
+            } else {
+                mDecoder.stop();
+                mDecoder.release();
+            }
+            mOutput.release();
+            if (mOwnsExtractor) {
+                mLaneExtractor.release();
+            }
+        }
+    }
+}
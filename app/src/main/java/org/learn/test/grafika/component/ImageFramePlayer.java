@@ -0,0 +1,271 @@
+package org.learn.test.grafika.component;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import org.learn.test.grafika.GrafikaMainActivity;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by zzr on 2018/02/17.
+ * <p>
+ * CPU frame mode for MoviePlayer.  The decoder is configured without a Surface, in the
+ * flexible YUV 4:2:0 format, and each output buffer is handed to the FrameConsumer as a
+ * {@link CpuFrame} wrapping MediaCodec.getOutputImage() -- no readback, no copy.  Before
+ * this the only way to get at pixels was VideoDumpRenderer's glReadPixels(), which manages
+ * a few frames a second.
+ * <p>
+ * Consumers run on a pool of worker threads while this thread keeps decoding.  A fixed set
+ * of CpuFrames (a couple more than there are workers) circulates between the decode loop
+ * and the workers; when they're all out, decoding waits, so a slow consumer holds up the
+ * decoder rather than piling up frames.  A worker closes the image and releases the output
+ * buffer as soon as onFrame() returns.  With more than one worker, frames may be consumed
+ * out of order and at the same time.
+ * <p>
+ * Frames go to the consumers as fast as they can take them; the FrameCallback isn't used.
+ * seekTo() and loop mode work as usual.  Needs API 21.
+ */
+class ImageFramePlayer {
+    private static final String TAG = GrafikaMainActivity.TAG;
+    private static final boolean DEBUG = false;
+
+    private static final int TIMEOUT_USEC = 10000;
+    // Frames out with the workers or waiting for one, beyond one each.
+    private static final int EXTRA_FRAMES = 2;
+
+    private final MoviePlayer mPlayer;
+    private final MediaExtractor mExtractor;
+    private final MediaFormat mFormat;
+    private final MoviePlayer.FrameConsumer mConsumer;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    private final int mFrameCount;
+    private final ArrayBlockingQueue<CpuFrame> mFree;
+    private final ArrayBlockingQueue<CpuFrame> mWork;
+    private final Thread[] mWorkers;
+    private volatile RuntimeException mWorkerError;
+
+    private MediaCodec mDecoder;
+
+    /**
+     * @param extractor The player's extractor, with the video track selected, at the start.
+     */
+    ImageFramePlayer(MoviePlayer player, MediaExtractor extractor, MediaFormat format,
+                     MoviePlayer.FrameConsumer consumer, int workerCount) {
+        mPlayer = player;
+        mExtractor = extractor;
+        mFormat = format;
+        mConsumer = consumer;
+        mFrameCount = workerCount + EXTRA_FRAMES;
+        mFree = new ArrayBlockingQueue<CpuFrame>(mFrameCount);
+        mWork = new ArrayBlockingQueue<CpuFrame>(mFrameCount);
+        YuvConverter converter = new YuvConverter(
+                player.getVideoWidth() * player.getVideoHeight());
+        for (int i = 0; i < mFrameCount; i++) {
+            mFree.add(new CpuFrame(converter));
+        }
+        mWorkers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            mWorkers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    workLoop();
+                }
+            }, "MoviePlayer-frame-" + i);
+        }
+    }
+
+    /**
+     * Decodes until the end of the movie (forever in loop mode), or until the player is
+     * asked to stop.  Returns once every frame handed out has been consumed.
+     */
+    void play() throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            throw new RuntimeException("CPU frame access needs API 21");
+        }
+        String mime = mFormat.getString(MediaFormat.KEY_MIME);
+        mFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+        mDecoder = MediaCodec.createDecoderByType(mime);
+        boolean started = false;
+        try {
+            mDecoder.configure(mFormat, null, null, 0);
+            mDecoder.start();
+            started = true;
+            for (Thread worker : mWorkers) {
+                worker.start();
+            }
+            try {
+                decodeLoop();
+            } finally {
+                awaitIdle();
+                for (Thread worker : mWorkers) {
+                    worker.interrupt();
+                }
+                for (Thread worker : mWorkers) {
+                    worker.join();
+                }
+            }
+            if (mWorkerError != null) {
+                throw mWorkerError;
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (started) {
+                mDecoder.stop();
+            }
+            mDecoder.release();
+            mDecoder = null;
+        }
+    }
+
+    private void decodeLoop() throws InterruptedException {
+        boolean inputDone = false;
+        long discardBeforeUsec = Long.MIN_VALUE;
+        while (true) {
+            if (mWorkerError != null) {
+                return;
+            }
+            if (mPlayer.isStopRequested()) {
+                Log.d(TAG, "Stop requested");
+                return;
+            }
+            long seekUsec = mPlayer.takePendingSeekUsec();
+            if (seekUsec >= 0) {
+                awaitIdle();
+                discardBeforeUsec = seek(seekUsec);
+                mDecoder.flush();
+                inputDone = false;
+            }
+
+            if (!inputDone) {
+                int inputBufIndex = mDecoder.dequeueInputBuffer(TIMEOUT_USEC);
+                if (inputBufIndex >= 0) {
+                    ByteBuffer inputBuf = mDecoder.getInputBuffer(inputBufIndex);
+                    int chunkSize = mExtractor.readSampleData(inputBuf, 0);
+                    if (chunkSize < 0) {
+                        mDecoder.queueInputBuffer(inputBufIndex, 0, 0, 0L,
+                                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        inputDone = true;
+                        if (DEBUG) Log.d(TAG, "sent input EOS");
+                    } else {
+                        mDecoder.queueInputBuffer(inputBufIndex, 0, chunkSize,
+                                mExtractor.getSampleTime(), 0);
+                        mExtractor.advance();
+                    }
+                }
+            }
+
+            int decoderStatus = mDecoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+            if (decoderStatus < 0) {
+                continue;   // try again later, or format/buffers changed
+            }
+            long ptsUsec = mBufferInfo.presentationTimeUs;
+            if (mBufferInfo.size == 0 || ptsUsec < discardBeforeUsec) {
+                mDecoder.releaseOutputBuffer(decoderStatus, false);
+            } else {
+                discardBeforeUsec = Long.MIN_VALUE;
+                dispatch(decoderStatus, ptsUsec);
+            }
+
+            if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                if (DEBUG) Log.d(TAG, "output EOS");
+                if (!mPlayer.isLoopMode()) {
+                    return;
+                }
+                Log.d(TAG, "Reached EOS, looping");
+                awaitIdle();
+                mExtractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                mDecoder.flush();
+                inputDone = false;
+            }
+        }
+    }
+
+    /**
+     * Hands an output buffer to the workers, waiting for a free frame.  If we're stopped
+     * while waiting the buffer is released instead.
+     */
+    private void dispatch(int bufferIndex, long ptsUsec) throws InterruptedException {
+        CpuFrame frame;
+        while ((frame = mFree.poll(TIMEOUT_USEC, TimeUnit.MICROSECONDS)) == null) {
+            if (mPlayer.isStopRequested() || mWorkerError != null) {
+                mDecoder.releaseOutputBuffer(bufferIndex, false);
+                return;
+            }
+        }
+        Image image = mDecoder.getOutputImage(bufferIndex);
+        if (image == null) {
+            Log.w(TAG, "no image for output buffer " + bufferIndex + ", skipping frame");
+            mDecoder.releaseOutputBuffer(bufferIndex, false);
+            mFree.add(frame);
+            return;
+        }
+        frame.set(image, bufferIndex, ptsUsec);
+        mWork.add(frame);
+    }
+
+    private void workLoop() {
+        while (true) {
+            CpuFrame frame;
+            try {
+                frame = mWork.take();
+            } catch (InterruptedException ie) {
+                return;
+            }
+            try {
+                mConsumer.onFrame(frame);
+            } catch (RuntimeException re) {
+                Log.e(TAG, "frame consumer failed", re);
+                mWorkerError = re;
+            } finally {
+                frame.mImage.close();
+                mDecoder.releaseOutputBuffer(frame.mBufferIndex, false);
+                frame.clear();
+                mFree.add(frame);
+            }
+        }
+    }
+
+    /**
+     * Waits until the workers have given back every frame, so no output buffer is held.
+     * Needed before a flush or stop.
+     */
+    private void awaitIdle() throws InterruptedException {
+        CpuFrame[] frames = new CpuFrame[mFrameCount];
+        for (int i = 0; i < mFrameCount; i++) {
+            frames[i] = mFree.take();
+        }
+        for (CpuFrame frame : frames) {
+            mFree.add(frame);
+        }
+    }
+
+    /**
+     * Positions the extractor at the sync sample before the target frame.
+     *
+     * @return the target frame's pts; earlier output is decoded but not handed out.
+     */
+    private long seek(long targetUsec) {
+        SampleTable table = mPlayer.getSampleTable(mExtractor, mFormat);
+        int frame = table.findFrame(targetUsec);
+        if (frame < 0) {
+            mExtractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+            return Long.MIN_VALUE;
+        }
+        int sync = table.isSync(frame) ? frame : table.findSyncBefore(frame);
+        if (DEBUG) Log.d(TAG, "seek to " + targetUsec + ": frame " + frame);
+        mExtractor.seekTo(table.getPtsUsec(sync), MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        return table.getPtsUsec(frame);
+    }
+}
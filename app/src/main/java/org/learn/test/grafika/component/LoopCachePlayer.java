@@ -0,0 +1,286 @@
+package org.learn.test.grafika.component;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.opengl.GLES20;
+import android.util.Log;
+
+import org.learn.test.grafika.GrafikaMainActivity;
+import org.learn.test.grafika.gles.EglCore;
+import org.learn.test.grafika.gles.FullFrameRect;
+import org.learn.test.grafika.gles.GlUtil;
+import org.learn.test.grafika.gles.Texture2dProgram;
+import org.learn.test.grafika.gles.WindowSurface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Created by zzr on 2018/02/14.
+ * <p>
+ * Loop mode for short clips, for MoviePlayer.  The first time through, each decoded frame
+ * is copied into a GL texture at the video's size as well as being shown; after that the
+ * decoder is released and the loop is replayed from the textures.  A clip like
+ * MovieEightRects (32 frames at 320x240, about 10MB of textures) then costs no decoder
+ * and no extraction for as long as it loops.
+ * <p>
+ * Frames are drawn to the output Surface with GL, paced by the FrameCallback as usual.
+ * If the clip turns out to have more frames than the sample table promised, caching is
+ * abandoned and it loops by decoding again, like the regular loop.
+ * <p>
+ * seekTo() is honored once the clip is cached.  A starting position set before play()
+ * skips ahead on the first pass too.
+ */
+class LoopCachePlayer {
+    private static final String TAG = GrafikaMainActivity.TAG;
+    private static final boolean DEBUG = false;
+
+    private static final int TIMEOUT_USEC = 10000;
+
+    private final MoviePlayer mPlayer;
+    private final MediaExtractor mExtractor;
+    private final MediaFormat mFormat;
+    private final MoviePlayer.FrameCallback mFrameCallback;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    private EglCore mEglCore;
+    private WindowSurface mWindowSurface;
+    private FullFrameRect mExtRect;
+    private FullFrameRect m2dRect;
+    private FrameTexturePool mTexturePool;
+    private CodecOutputTexture mOutput;
+    private MediaCodec mDecoder;
+
+    private int[] mTextures;
+    private long[] mPtsUsec;
+    private int mCount;
+
+    /**
+     * Returns true if a clip with this many frames fits in the budget.
+     */
+    static boolean fits(int frameCount, int width, int height, long budgetBytes) {
+        return frameCount > 0 &&
+                frameCount * FrameTexturePool.getFrameBytes(width, height) <= budgetBytes;
+    }
+
+    /**
+     * @param extractor The player's extractor, with the video track selected, at the start.
+     */
+    LoopCachePlayer(MoviePlayer player, MediaExtractor extractor, MediaFormat format,
+                    MoviePlayer.FrameCallback frameCallback) {
+        mPlayer = player;
+        mExtractor = extractor;
+        mFormat = format;
+        mFrameCallback = frameCallback;
+    }
+
+    /**
+     * Plays forever, or until the player is asked to stop.
+     *
+     * @param frameCount Frames in the clip, from the sample table.
+     */
+    void play(int frameCount) throws IOException {
+        try {
+            prepare(frameCount);
+            long discardBeforeUsec = mPlayer.takePendingSeekUsec();
+            boolean cached = decodePass(true, discardBeforeUsec);
+            if (cached) {
+                Log.d(TAG, "loop cache: " + mCount + " frames cached, releasing decoder");
+                releaseDecoder();
+                replay();
+                return;
+            }
+            while (!mPlayer.isStopRequested()) {
+                mExtractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                mDecoder.flush();
+                loopReset();
+                decodePass(false, -1);
+            }
+        } finally {
+            release();
+        }
+    }
+
+    private void prepare(int frameCount) throws IOException {
+        mEglCore = new EglCore(null, 0);
+        mWindowSurface = new WindowSurface(mEglCore, mPlayer.getOutputSurface(), false);
+        mWindowSurface.makeCurrent();
+        mExtRect = new FullFrameRect(new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
+        m2dRect = new FullFrameRect(new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_2D));
+        mTexturePool = new FrameTexturePool(mPlayer.getVideoWidth(), mPlayer.getVideoHeight());
+        mTextures = new int[frameCount];
+        mPtsUsec = new long[frameCount];
+        mTexturePool.createTextures(mTextures);
+
+        mOutput = new CodecOutputTexture(mExtRect);
+        DecoderPool pool = mPlayer.getDecoderPool();
+        if (pool != null) {
+            mDecoder = pool.acquire(mFormat, mOutput.getSurface());
+        } else {
+            mDecoder = MediaCodec.createDecoderByType(mFormat.getString(MediaFormat.KEY_MIME));
+            mDecoder.configure(mFormat, mOutput.getSurface(), null, 0);
+            mDecoder.start();
+        }
+    }
+
+    /**
+     * Decodes the clip once from the extractor's position, showing each frame and, if
+     * caching, keeping a copy.
+     *
+     * @return true if every frame was cached.
+     */
+    private boolean decodePass(boolean caching, long discardBeforeUsec) {
+        ByteBuffer[] decoderInputBuffers = mDecoder.getInputBuffers();
+        boolean inputDone = false;
+        while (true) {
+            if (mPlayer.isStopRequested()) {
+                Log.d(TAG, "Stop requested");
+                return false;
+            }
+            if (!inputDone) {
+                int inputBufIndex = mDecoder.dequeueInputBuffer(TIMEOUT_USEC);
+                if (inputBufIndex >= 0) {
+                    int chunkSize = mExtractor.readSampleData(decoderInputBuffers[inputBufIndex], 0);
+                    if (chunkSize < 0) {
+                        mDecoder.queueInputBuffer(inputBufIndex, 0, 0, 0L,
+                                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        inputDone = true;
+                    } else {
+                        mDecoder.queueInputBuffer(inputBufIndex, 0, chunkSize,
+                                mExtractor.getSampleTime(), 0);
+                        mExtractor.advance();
+                    }
+                }
+            }
+
+            int decoderStatus = mDecoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+            if (decoderStatus < 0) {
+                continue;   // try again later, or format/buffers changed
+            }
+            if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                mDecoder.releaseOutputBuffer(decoderStatus, false);
+                if (DEBUG) Log.d(TAG, "loop cache: output EOS");
+                return caching;
+            }
+            boolean doRender = (mBufferInfo.size != 0);
+            mDecoder.releaseOutputBuffer(decoderStatus, doRender);
+            if (!doRender || !mOutput.awaitFrame()) {
+                continue;
+            }
+            long ptsUsec = mBufferInfo.presentationTimeUs;
+            if (caching && mCount == mTextures.length) {
+                Log.w(TAG, "loop cache: more frames than expected, not caching");
+                caching = false;
+            }
+            if (caching) {
+                mTexturePool.copy(mExtRect, mOutput.getTextureId(),
+                        mOutput.getTransformMatrix(), mTextures[mCount]);
+                mPtsUsec[mCount] = ptsUsec;
+                mCount++;
+            }
+            if (ptsUsec < discardBeforeUsec) {
+                continue;
+            }
+            if (caching) {
+                present(m2dRect, mTextures[mCount - 1], GlUtil.IDENTITY_MATRIX, ptsUsec);
+            } else {
+                present(mExtRect, mOutput.getTextureId(), mOutput.getTransformMatrix(), ptsUsec);
+            }
+        }
+    }
+
+    /**
+     * Shows the cached frames in a loop.
+     */
+    private void replay() {
+        int index = 0;
+        while (!mPlayer.isStopRequested()) {
+            long seekUsec = mPlayer.takePendingSeekUsec();
+            if (seekUsec >= 0) {
+                index = findFrame(seekUsec);
+                loopReset();
+            }
+            present(m2dRect, mTextures[index], GlUtil.IDENTITY_MATRIX, mPtsUsec[index]);
+            if (++index == mCount) {
+                index = 0;
+                loopReset();
+            }
+        }
+        Log.d(TAG, "Stop requested");
+    }
+
+    /**
+     * Returns the first cached frame at or after the time, or 0 if there isn't one.
+     * Frames come out of the decoder in pts order.
+     */
+    private int findFrame(long timeUsec) {
+        int lo = 0;
+        int hi = mCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mPtsUsec[mid] < timeUsec) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return (lo == mCount) ? 0 : lo;
+    }
+
+    private void present(FullFrameRect rect, int texture, float[] texMatrix, long ptsUsec) {
+        if (mFrameCallback != null) {
+            mFrameCallback.preRender(ptsUsec);
+        }
+        GLES20.glViewport(0, 0, mWindowSurface.getWidth(), mWindowSurface.getHeight());
+        rect.drawFrame(texture, texMatrix);
+        mWindowSurface.swapBuffers();
+        if (mFrameCallback != null) {
+            mFrameCallback.postRender();
+        }
+    }
+
+    private void loopReset() {
+        if (mFrameCallback != null) {
+            mFrameCallback.loopReset();
+        }
+    }
+
+    private void releaseDecoder() {
+        if (mDecoder != null) {
+            DecoderPool pool = mPlayer.getDecoderPool();
+            if (pool != null) {
+                pool.release(mDecoder);
+            } else {
+                mDecoder.stop();
+                mDecoder.release();
+            }
+            mDecoder = null;
+        }
+        if (mOutput != null) {
+            mOutput.release();
+            mOutput = null;
+        }
+    }
+
+    private void release() {
+        releaseDecoder();
+        if (mEglCore != null) {
+            if (mTexturePool != null) {
+                mTexturePool.deleteTextures(mTextures);
+                mTexturePool.release();
+            }
+            if (mExtRect != null) {
+                mExtRect.release(true);
+            }
+            if (m2dRect != null) {
+                m2dRect.release(true);
+            }
+            if (mWindowSurface != null) {
+                mWindowSurface.release();
+            }
+            mEglCore.release();
+            mEglCore = null;
+        }
+    }
+}
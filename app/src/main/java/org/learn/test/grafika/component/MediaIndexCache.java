@@ -0,0 +1,295 @@
+package org.learn.test.grafika.component;
+
+import android.media.MediaFormat;
+import android.util.Log;
+
+import org.learn.test.grafika.GrafikaMainActivity;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Created by zzr on 2018/02/06.
+ * <p>
+ * On-disk cache of what MoviePlayer learns by probing a file: which track is the video,
+ * the interesting parts of its MediaFormat, and, once a seek has needed it, the
+ * SampleTable.  One small file per movie, named from a hash of the path and checked
+ * against the path, length and mtime on load, so a replaced movie is simply a miss.
+ * <p>
+ * Entries are read through a read-only memory map; the sample columns are bulk-copied
+ * straight out of it.  Writes go to a temp file that is renamed into place, so a reader
+ * never sees half an entry.  Any error just means a miss.
+ */
+public class MediaIndexCache {
+    private static final String TAG = GrafikaMainActivity.TAG;
+    private static final boolean DEBUG = false;
+    private static final int MAGIC = 0x4d494458;    // "MIDX"
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte TYPE_INT = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_STRING = 3;
+    private static final byte TYPE_BYTES = 4;
+
+    // The MediaFormat keys we keep, and their types.  There's no API to enumerate keys
+    // before API 29, so this is the set MoviePlayer and the decoder care about.
+    private static final String[] FORMAT_KEYS = {
+            MediaFormat.KEY_MIME, MediaFormat.KEY_WIDTH, MediaFormat.KEY_HEIGHT,
+            MediaFormat.KEY_MAX_INPUT_SIZE, MediaFormat.KEY_ROTATION, MediaFormat.KEY_DURATION,
+            "csd-0", "csd-1", "csd-2"
+    };
+    private static final byte[] FORMAT_TYPES = {
+            TYPE_STRING, TYPE_INT, TYPE_INT,
+            TYPE_INT, TYPE_INT, TYPE_LONG,
+            TYPE_BYTES, TYPE_BYTES, TYPE_BYTES
+    };
+
+    private final File mDir;
+
+    /**
+     * What we know about one movie.  The sample table is null until it's been built.
+     */
+    public static class Entry {
+        public final int trackIndex;
+        public final MediaFormat format;
+        public final SampleTable sampleTable;
+
+        public Entry(int trackIndex, MediaFormat format, SampleTable sampleTable) {
+            this.trackIndex = trackIndex;
+            this.format = format;
+            this.sampleTable = sampleTable;
+        }
+    }
+
+    /**
+     * @param dir Directory to keep the entries in, e.g. Context.getCacheDir().  Created
+     *     if needed.
+     */
+    public MediaIndexCache(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Returns the entry for the given movie, or null if there isn't a current one.
+     */
+    public Entry load(File source) {
+        File indexFile = getIndexFile(source);
+        if (!indexFile.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(indexFile, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return parse(buf, source);
+        } catch (IOException ioe) {
+            Log.w(TAG, "unable to read index " + indexFile, ioe);
+        } catch (BufferUnderflowException bue) {
+            Log.w(TAG, "truncated index " + indexFile);
+        } catch (RuntimeException re) {
+            Log.w(TAG, "corrupt index " + indexFile, re);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ignored) {}
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the entry for the given movie, replacing any previous one.  Failures are
+     * logged and otherwise ignored.
+     */
+    public void store(File source, Entry entry) {
+        File indexFile = getIndexFile(source);
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        ByteBuffer buf = serialize(source, entry);
+        FileOutputStream fos = null;
+        try {
+            if (!mDir.isDirectory() && !mDir.mkdirs()) {
+                throw new IOException("unable to create " + mDir);
+            }
+            fos = new FileOutputStream(tmpFile);
+            FileChannel channel = fos.getChannel();
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            fos.close();
+            fos = null;
+            if (!tmpFile.renameTo(indexFile)) {
+                throw new IOException("unable to rename " + tmpFile);
+            }
+        } catch (IOException ioe) {
+            Log.w(TAG, "unable to write index for " + source, ioe);
+            tmpFile.delete();
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    private File getIndexFile(File source) {
+        String path = source.getAbsolutePath();
+        return new File(mDir, Integer.toHexString(path.hashCode()) + "-" +
+                Integer.toHexString(path.length()) + ".idx");
+    }
+
+    private static Entry parse(ByteBuffer buf, File source) {
+        if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+            return null;
+        }
+        String path = getString(buf);
+        long length = buf.getLong();
+        long mtime = buf.getLong();
+        if (!path.equals(source.getAbsolutePath()) || length != source.length() ||
+                mtime != source.lastModified()) {
+            if (DEBUG) Log.d(TAG, "stale index for " + source);
+            return null;
+        }
+        int trackIndex = buf.getInt();
+
+        MediaFormat format = new MediaFormat();
+        int keyCount = buf.get();
+        for (int i = 0; i < keyCount; i++) {
+            String key = getString(buf);
+            byte type = buf.get();
+            switch (type) {
+                case TYPE_INT:
+                    format.setInteger(key, buf.getInt());
+                    break;
+                case TYPE_LONG:
+                    format.setLong(key, buf.getLong());
+                    break;
+                case TYPE_STRING:
+                    format.setString(key, getString(buf));
+                    break;
+                case TYPE_BYTES:
+                    byte[] bytes = new byte[buf.getInt()];
+                    buf.get(bytes);
+                    format.setByteBuffer(key, ByteBuffer.wrap(bytes));
+                    break;
+                default:
+                    throw new RuntimeException("unknown format field type " + type);
+            }
+        }
+
+        SampleTable table = null;
+        int sampleCount = buf.getInt();
+        if (sampleCount >= 0) {
+            long[] pts = new long[sampleCount];
+            int[] size = new int[sampleCount];
+            boolean[] sync = new boolean[sampleCount];
+            buf.asLongBuffer().get(pts);
+            buf.position(buf.position() + sampleCount * 8);
+            buf.asIntBuffer().get(size);
+            buf.position(buf.position() + sampleCount * 4);
+            for (int i = 0; i < sampleCount; i++) {
+                sync[i] = buf.get() != 0;
+            }
+            table = new SampleTable(pts, size, sync, sampleCount);
+        }
+        return new Entry(trackIndex, format, table);
+    }
+
+    private static ByteBuffer serialize(File source, Entry entry) {
+        byte[] path = source.getAbsolutePath().getBytes(UTF8);
+        MediaFormat format = entry.format;
+        SampleTable table = entry.sampleTable;
+        int sampleCount = (table == null) ? 0 : table.getSampleCount();
+
+        int formatSize = 0;
+        for (int i = 0; i < FORMAT_KEYS.length; i++) {
+            if (format.containsKey(FORMAT_KEYS[i])) {
+                formatSize += 2 + FORMAT_KEYS[i].length() + 1 + 8;
+                if (FORMAT_TYPES[i] == TYPE_STRING) {
+                    formatSize += format.getString(FORMAT_KEYS[i]).getBytes(UTF8).length;
+                } else if (FORMAT_TYPES[i] == TYPE_BYTES) {
+                    formatSize += format.getByteBuffer(FORMAT_KEYS[i]).remaining();
+                }
+            }
+        }
+        ByteBuffer buf = ByteBuffer.allocate(4 + 4 + 2 + path.length + 8 + 8 + 4 +
+                1 + formatSize + 4 + sampleCount * (8 + 4 + 1));
+
+        buf.putInt(MAGIC);
+        buf.putInt(VERSION);
+        buf.putShort((short) path.length);
+        buf.put(path);
+        buf.putLong(source.length());
+        buf.putLong(source.lastModified());
+        buf.putInt(entry.trackIndex);
+
+        int countPos = buf.position();
+        buf.put((byte) 0);
+        byte keyCount = 0;
+        for (int i = 0; i < FORMAT_KEYS.length; i++) {
+            String key = FORMAT_KEYS[i];
+            if (!format.containsKey(key)) {
+                continue;
+            }
+            putString(buf, key);
+            buf.put(FORMAT_TYPES[i]);
+            switch (FORMAT_TYPES[i]) {
+                case TYPE_INT:
+                    buf.putInt(format.getInteger(key));
+                    break;
+                case TYPE_LONG:
+                    buf.putLong(format.getLong(key));
+                    break;
+                case TYPE_STRING:
+                    putString(buf, format.getString(key));
+                    break;
+                case TYPE_BYTES:
+                    ByteBuffer bytes = format.getByteBuffer(key).duplicate();
+                    buf.putInt(bytes.remaining());
+                    buf.put(bytes);
+                    break;
+            }
+            keyCount++;
+        }
+        buf.put(countPos, keyCount);
+
+        if (table == null) {
+            buf.putInt(-1);
+        } else {
+            buf.putInt(sampleCount);
+            for (int i = 0; i < sampleCount; i++) {
+                buf.putLong(table.getPtsUsec(i));
+            }
+            for (int i = 0; i < sampleCount; i++) {
+                buf.putInt(table.getSize(i));
+            }
+            for (int i = 0; i < sampleCount; i++) {
+                buf.put((byte) (table.isSync(i) ? 1 : 0));
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static void putString(ByteBuffer buf, String str) {
+        byte[] bytes = str.getBytes(UTF8);
+        buf.putShort((short) bytes.length);
+        buf.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getShort() & 0xffff];
+        buf.get(bytes);
+        return new String(bytes, UTF8);
+    }
+}
@@ -0,0 +1,105 @@
+package org.learn.test.grafika.component;
+
+import android.util.Log;
+
+import org.learn.test.grafika.GrafikaMainActivity;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Created by zzr on 2018/01/08.
+ * <p>
+ * Off-heap ring whose pages are mapped twice, back to back (see mirror-ring-lib.cpp).
+ * The direct ByteBuffer returned by {@link #getBuffer()} has capacity 2 * capacity(), and
+ * byte [i] is the same memory as byte [i + capacity()].  A packet that starts near the
+ * end of the ring can be written and read as one contiguous region.
+ */
+public class MirroredRingBuffer {
+    private static final String TAG = GrafikaMainActivity.TAG;
+
+    private static boolean sLibraryLoaded;
+    static {
+        try {
+            System.loadLibrary("mirror-ring-lib");
+            sLibraryLoaded = true;
+        } catch (UnsatisfiedLinkError ule) {
+            Log.w(TAG, "mirror-ring-lib not available, off-heap ring disabled", ule);
+            sLibraryLoaded = false;
+        }
+    }
+
+    private long mNativeHandle;
+    private ByteBuffer mBuffer;
+    private final int mCapacity;
+
+    private MirroredRingBuffer(long nativeHandle, ByteBuffer buffer, int capacity) {
+        mNativeHandle = nativeHandle;
+        mBuffer = buffer;
+        mCapacity = capacity;
+    }
+
+    /**
+     * Returns true if the native helper was loaded.
+     */
+    public static boolean isSupported() {
+        return sLibraryLoaded;
+    }
+
+    /**
+     * Creates a mirrored ring of at least minCapacity bytes.  The size is rounded up to
+     * a multiple of the page size.
+     *
+     * @return the ring, or null if the native helper is missing or the mapping failed.
+     */
+    public static MirroredRingBuffer create(int minCapacity) {
+        if (!sLibraryLoaded) {
+            return null;
+        }
+        int pageSize = nativePageSize();
+        long capacity = ((long) minCapacity + pageSize - 1) / pageSize * pageSize;
+        if (capacity * 2 > Integer.MAX_VALUE) {
+            Log.w(TAG, "mirrored ring too large: " + capacity);
+            return null;
+        }
+        long handle = nativeCreate((int) capacity);
+        if (handle == 0) {
+            return null;
+        }
+        ByteBuffer buffer = nativeGetBuffer(handle);
+        if (buffer == null) {
+            nativeRelease(handle);
+            return null;
+        }
+        return new MirroredRingBuffer(handle, buffer, (int) capacity);
+    }
+
+    /**
+     * Returns the size of one copy of the ring, in bytes.
+     */
+    public int capacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Returns the direct buffer covering both copies.
+     */
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Unmaps the ring.  Any ByteBuffer obtained from getBuffer() must not be used after this.
+     */
+    public void release() {
+        if (mNativeHandle != 0) {
+            nativeRelease(mNativeHandle);
+            mNativeHandle = 0;
+            mBuffer = null;
+        }
+    }
+
+    private static native int nativePageSize();
+    private static native long nativeCreate(int size);
+    private static native ByteBuffer nativeGetBuffer(long handle);
+    private static native void nativeRelease(long handle);
+}
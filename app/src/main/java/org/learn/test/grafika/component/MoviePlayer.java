@@ -15,12 +15,13 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by zzr on 2017/11/13.
  */
 
-public class MoviePlayer {
+public class MoviePlayer implements Playable {
     private static final String TAG = GrafikaMainActivity.TAG;
     private static final boolean DEBUG = false;
 
@@ -34,9 +35,66 @@ public class MoviePlayer {
     private Surface mOutputSurface;
     FrameCallback mFrameCallback;
     private boolean mLoop;
+    private boolean mPipelined;
     private int mVideoWidth;
     private int mVideoHeight;
 
+    // Optional; if set, the probe results and sample table are kept across opens.
+    private MediaIndexCache mIndexCache;
+    private int mTrackIndex = -1;
+    private MediaFormat mTrackFormat;
+
+    // Optional; if set, decoders come from and go back to the pool.
+    private DecoderPool mDecoderPool;
+
+    // Playback rate.  Written by any thread, read by the play thread.
+    public static final float MIN_PLAYBACK_RATE = 0.25f;
+    public static final float MAX_PLAYBACK_RATE = 16.0f;
+    // Above this rate (either direction) only sync samples are decoded.
+    public static final float KEYFRAME_ONLY_RATE = 2.0f;
+    // In keyframe-only mode, aim to show a keyframe this often (wall time).
+    private static final long TRICK_FRAME_INTERVAL_USEC = 33333;
+    // When decoding everything faster than 1x, show frames no closer than this.
+    private static final long MIN_PRESENT_INTERVAL_USEC = 16666;
+    private volatile float mPlaybackRate = 1.0f;
+    // Play thread only.
+    private boolean mKeyframeOnly;
+    private long mLastOutputPtsUsec = -1;
+    private long mRateClockUsec;
+    private long mLastPresentedClockUsec;
+
+    // Reverse mode; see GopReversePlayer.
+    private boolean mReverse;
+    private long mReverseBudgetBytes = GopReversePlayer.DEFAULT_MEMORY_BUDGET;
+
+    // Loop cache; see LoopCachePlayer.  Zero means off.  Clips longer than this aren't
+    // considered, so we don't scan a whole movie to find out it won't fit.
+    private static final long MAX_LOOP_CACHE_DURATION_USEC = 10000000;
+    private long mLoopCacheBudgetBytes;
+
+    // Read-ahead; see PrefetchingExtractor.  Zero means off.
+    private long mReadAheadBytes;
+    private volatile PrefetchingExtractor mReadAhead;
+
+    // Optional; if set, frames are released on vsync instead of paced by the FrameCallback.
+    private VsyncPresenter mVsyncPresenter;
+    private PlaybackMetrics mMetrics;
+
+    // Optional; if set, frames are decoded to memory for it instead of to the Surface.
+    private FrameConsumer mFrameConsumer;
+    private int mFrameWorkers;
+
+    // Pipeline mode: set when any stage finishes or fails, so the others wind down.
+    private volatile boolean mPipelineDone;
+    private volatile RuntimeException mPipelineError;
+    private static final int PIPELINE_QUEUE_SIZE = 4;
+
+    // Seeking.  The table is built by the play thread on the first seek.
+    private static final long NO_SEEK = -1;
+    private final AtomicLong mPendingSeekUsec = new AtomicLong(NO_SEEK);
+    private SampleTable mSampleTable;
+    private long mDiscardBeforeUsec = Long.MIN_VALUE;
+
 
     /**
      * Interface to be implemented by class that manages playback UI.
@@ -72,20 +130,57 @@ public class MoviePlayer {
         void loopReset();
     }
 
+    /**
+     * Receives decoded frames in CPU frame mode; see setFrameConsumer().
+     */
+    public interface FrameConsumer {
+        /**
+         * Called on a worker thread for each decoded frame.  The frame, its planes and its
+         * RGB array are only good until this returns.
+         */
+        void onFrame(CpuFrame frame);
+    }
+
 
     /**
      * Constructs a MoviePlayer.
      *
      * @param sourceFile The video file to open.
-     * @param outputSurface The Surface where frames will be sent.
+     * @param outputSurface The Surface where frames will be sent; null if they go to a
+     *     FrameConsumer instead.
      * @param frameCallback Callback object, used to pace output.
      * @throws IOException
      */
     public MoviePlayer(File sourceFile, Surface outputSurface, FrameCallback frameCallback)
             throws IOException {
+        this(sourceFile, outputSurface, frameCallback, null);
+    }
+
+    /**
+     * Constructs a MoviePlayer that keeps what it learns about the file in an index cache.
+     * If the cache has a current entry, the file isn't probed here, play() skips the track
+     * scan, and seeks don't have to build the sample table.
+     *
+     * @param indexCache The cache to use, or null for none.
+     */
+    public MoviePlayer(File sourceFile, Surface outputSurface, FrameCallback frameCallback,
+                       MediaIndexCache indexCache) throws IOException {
         mSourceFile = sourceFile;
         mOutputSurface = outputSurface;
         mFrameCallback = frameCallback;
+        mIndexCache = indexCache;
+        if (indexCache != null) {
+            MediaIndexCache.Entry entry = indexCache.load(sourceFile);
+            if (entry != null) {
+                if (DEBUG) Log.d(TAG, "index cache hit for " + sourceFile);
+                mTrackIndex = entry.trackIndex;
+                mTrackFormat = entry.format;
+                mSampleTable = entry.sampleTable;
+                mVideoWidth = mTrackFormat.getInteger(MediaFormat.KEY_WIDTH);
+                mVideoHeight = mTrackFormat.getInteger(MediaFormat.KEY_HEIGHT);
+                return;
+            }
+        }
         // Pop the file open and pull out the video characteristics.
         MediaExtractor extractor = null;
         try {
@@ -107,6 +202,11 @@ public class MoviePlayer {
             if (DEBUG) {
                 Log.d(TAG, "Video size is " + mVideoWidth + "x" + mVideoHeight);
             }
+            mTrackIndex = trackIndex;
+            mTrackFormat = format;
+            if (indexCache != null) {
+                indexCache.store(sourceFile, new MediaIndexCache.Entry(trackIndex, format, null));
+            }
         } finally {
             if (extractor != null) {
                 extractor.release();
@@ -119,7 +219,7 @@ public class MoviePlayer {
      *
      * @return the track index, or -1 if no video track is found.
      */
-    private static int selectTrack(MediaExtractor extractor) {
+    static int selectTrack(MediaExtractor extractor) {
         // Select the first video track we find, ignore the rest.
         int numTracks = extractor.getTrackCount();
         for (int i = 0; i < numTracks; i++) {
@@ -151,17 +251,202 @@ public class MoviePlayer {
         return mVideoHeight;
     }
 
+    // For DecodeScheduler, which plays the movie without calling play().
+    File getSourceFile() {
+        return mSourceFile;
+    }
+
+    Surface getOutputSurface() {
+        return mOutputSurface;
+    }
+
+    int getTrackIndex() {
+        return mTrackIndex;
+    }
+
+    boolean isLoopMode() {
+        return mLoop;
+    }
+
+    DecoderPool getDecoderPool() {
+        return mDecoderPool;
+    }
+
+    boolean isStopRequested() {
+        return mIsStopRequested;
+    }
+
+    long getReverseMemoryBudget() {
+        return mReverseBudgetBytes;
+    }
+
+    /**
+     * Returns and clears the pending seekTo() position, or -1 if there isn't one.
+     */
+    long takePendingSeekUsec() {
+        return mPendingSeekUsec.getAndSet(NO_SEEK);
+    }
+
+    /**
+     * Returns the sample table, building it (and saving it to the index cache) if needed.
+     * Building it leaves the extractor at the end of the track.
+     */
+    SampleTable getSampleTable(MediaExtractor extractor, MediaFormat format) {
+        if (mSampleTable == null) {
+            mSampleTable = SampleTable.build(extractor, format);
+            if (mIndexCache != null) {
+                mIndexCache.store(mSourceFile,
+                        new MediaIndexCache.Entry(mTrackIndex, mTrackFormat, mSampleTable));
+            }
+        }
+        return mSampleTable;
+    }
+
     /**
      * Sets the loop mode.  If true, playback will loop forever.
      */
+    @Override
     public void setLoopMode(boolean loopMode) {
         mLoop = loopMode;
     }
 
+    /**
+     * Sets the pool to take the decoder from, or null to create one for each play().
+     * Must be called before play().
+     */
+    public void setDecoderPool(DecoderPool pool) {
+        mDecoderPool = pool;
+    }
+
+    /**
+     * Sets the playback rate, from {@link #MIN_PLAYBACK_RATE} to {@link #MAX_PLAYBACK_RATE}.
+     * Up to {@link #KEYFRAME_ONLY_RATE} every frame is decoded, and when that's more than
+     * the display can use some aren't rendered.  Above it only sync frames are read from
+     * the extractor and decoded.  Negative rates scan backward, keyframes only, so they must
+     * be at least KEYFRAME_ONLY_RATE in size.
+     * <p>
+     * May be called from any thread, during playback.  Applies to play() when not in
+     * pipeline mode.
+     */
+    public void setPlaybackRate(float rate) {
+        float speed = Math.abs(rate);
+        if (speed < MIN_PLAYBACK_RATE || speed > MAX_PLAYBACK_RATE) {
+            throw new IllegalArgumentException("playback rate out of range: " + rate);
+        }
+        if (rate < 0 && speed < KEYFRAME_ONLY_RATE) {
+            throw new IllegalArgumentException("backward scan must be at least " +
+                    KEYFRAME_ONLY_RATE + "x");
+        }
+        mPlaybackRate = rate;
+    }
+
+    /**
+     * Sets reverse mode.  If true, play() runs backward at normal speed, from the seekTo()
+     * position or the end of the movie, a GOP at a time.  Decoded frames are held as GL
+     * textures, so the output Surface must be one EGL can render to.  Must be called
+     * before play().
+     */
+    public void setReverseMode(boolean reverse) {
+        mReverse = reverse;
+    }
+
+    /**
+     * Sets how much memory reverse mode may use for decoded frames.  GOPs with more frames
+     * than fit in half of it are stepped through keyframe by keyframe.
+     */
+    public void setReverseMemoryBudget(long bytes) {
+        mReverseBudgetBytes = bytes;
+    }
+
+    /**
+     * Sets the memory budget for caching decoded frames in loop mode, or 0 (the default)
+     * for none.  A short clip whose frames all fit is decoded once into GL textures, and
+     * after that loops from them with the decoder released.  The output Surface must be
+     * one EGL can render to, and the playback rate and vsync presenter don't apply.  Must
+     * be called before play().
+     */
+    public void setLoopCacheBudget(long bytes) {
+        mLoopCacheBudgetBytes = bytes;
+    }
+
+    /**
+     * Sets how much memory to use for reading samples ahead of the decoder on a separate
+     * thread, or 0 (the default) to read them in the decode loop.  Reading ahead keeps slow
+     * storage from stalling decoding.  Must be called before play().
+     */
+    public void setReadAheadBudget(long bytes) {
+        mReadAheadBytes = bytes;
+    }
+
+    /**
+     * Returns the read-ahead stage of the current or most recent play(), for its depth and
+     * underrun stats, or null if play() hasn't got that far.
+     */
+    public PrefetchingExtractor getReadAhead() {
+        return mReadAhead;
+    }
+
+    /**
+     * Sets a presenter to release frames in step with the display, or null to pace them with
+     * the FrameCallback.  The FrameCallback isn't called while a presenter is set.  Must be
+     * called before play().
+     */
+    public void setVsyncPresenter(VsyncPresenter presenter) {
+        mVsyncPresenter = presenter;
+    }
+
+    /**
+     * Sets a consumer for decoded frames, or null to play to the Surface.  With a consumer,
+     * play() decodes into memory and hands each frame to it on one of workerCount threads,
+     * as fast as they keep up; nothing goes to the Surface and the FrameCallback isn't
+     * called.  The other modes (reverse, loop cache, read-ahead, pipeline) don't apply.
+     * Needs API 21.  Must be called before play().
+     */
+    public void setFrameConsumer(FrameConsumer consumer, int workerCount) {
+        if (consumer != null && workerCount < 1) {
+            throw new IllegalArgumentException("workerCount must be at least 1");
+        }
+        mFrameConsumer = consumer;
+        mFrameWorkers = workerCount;
+    }
+
+    /**
+     * Sets metrics to record decode latency and rendered/skipped frames into, or null.
+     * Give the same object to the FrameCallback or VsyncPresenter for pacing numbers.  Must
+     * be called before play().
+     */
+    public void setMetrics(PlaybackMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Sets pipeline mode.  If true, input feeding, output draining and frame pacing run
+     * on separate threads, so the decoder's input queue stays full while we wait to
+     * present a frame.  Must be called before play().
+     */
+    public void setPipelineMode(boolean pipelined) {
+        mPipelined = pipelined;
+    }
+
+    /**
+     * Asks the player to jump to the frame on screen at the given time, exactly: the
+     * decoder restarts from the preceding sync frame and the frames before the target are
+     * decoded but not rendered.  If the target is a sync frame nothing is discarded.
+     * <p>
+     * Called from arbitrary thread; returns without waiting.  The play thread picks the
+     * request up before its next input buffer, and if several arrive in between only the
+     * last one counts.  Called before play(), it sets the starting position.  In pipeline
+     * mode only the starting position is supported.
+     */
+    public void seekTo(long timeUs) {
+        mPendingSeekUsec.set(Math.max(timeUs, 0));
+    }
+
     /**
      * Asks the player to stop.  Returns without waiting for playback to halt.
      * Called from arbitrary thread.
      */
+    @Override
     public void requestStop() {
         mIsStopRequested = true;
     }
@@ -170,8 +455,10 @@ public class MoviePlayer {
      * Does not return until video playback is complete, or we get a "stop" signal from
      * frameCallback.
      */
+    @Override
     public void play() throws IOException {
         MediaExtractor extractor = null;
+        PrefetchingExtractor source = null;
         MediaCodec decoder = null;
         // The MediaExtractor error messages aren't very useful.
         // Check to see if the input file exists so we can throw a better one if it's not there.
@@ -181,7 +468,7 @@ public class MoviePlayer {
         try {
             extractor = new MediaExtractor();
             extractor.setDataSource(mSourceFile.toString());
-            int trackIndex = selectTrack(extractor);
+            int trackIndex = (mTrackIndex >= 0) ? mTrackIndex : selectTrack(extractor);
             if (trackIndex < 0) {
                 throw new RuntimeException("No video track found in " + mSourceFile);
             }
@@ -207,20 +494,56 @@ public class MoviePlayer {
             //}
             //Log.w(TAG, "csd-0 : "+sb1.toString());
 
-            String mime = format.getString(MediaFormat.KEY_MIME);
-            decoder = MediaCodec.createDecoderByType(mime);
-            decoder.configure(format, mOutputSurface, null, 0);
-            CameraUtils.showSupportedColorFormat(decoder.getCodecInfo().getCapabilitiesForType(mime));
-            decoder.start();
+            if (mFrameConsumer != null) {
+                new ImageFramePlayer(this, extractor, format, mFrameConsumer, mFrameWorkers)
+                        .play();
+                return;
+            }
+            if (mReverse) {
+                // Decodes to its own SurfaceTextures and draws to the output with GL.
+                new GopReversePlayer(this, extractor, format).play();
+                return;
+            }
+            if (useLoopCache(extractor, format)) {
+                new LoopCachePlayer(this, extractor, format, mFrameCallback)
+                        .play(mSampleTable.getSampleCount());
+                return;
+            }
+            if (mDecoderPool != null) {
+                decoder = mDecoderPool.acquire(format, mOutputSurface);
+            } else {
+                String mime = format.getString(MediaFormat.KEY_MIME);
+                decoder = MediaCodec.createDecoderByType(mime);
+                decoder.configure(format, mOutputSurface, null, 0);
+                CameraUtils.showSupportedColorFormat(decoder.getCodecInfo().getCapabilitiesForType(mime));
+                decoder.start();
+            }
 
-            doExtract(extractor, trackIndex, decoder, mFrameCallback);
+            source = new PrefetchingExtractor(extractor, format, mReadAheadBytes);
+            source.setReadAheadEnabled(!mKeyframeOnly);   // still in trick play from last time
+            mReadAhead = source;
+            if (mPendingSeekUsec.get() != NO_SEEK) {
+                applyPendingSeek(source, format, decoder, null);
+            }
+            if (mPipelined) {
+                doPipelinedExtract(source, trackIndex, decoder, mFrameCallback);
+            } else {
+                doExtract(source, trackIndex, format, decoder, mFrameCallback);
+            }
         }finally {
             // release everything we grabbed
             if (decoder != null) {
-                decoder.stop();
-                decoder.release();
+                if (mDecoderPool != null) {
+                    mDecoderPool.release(decoder);
+                } else {
+                    decoder.stop();
+                    decoder.release();
+                }
                 decoder = null;
             }
+            if (source != null) {
+                source.release();
+            }
             if (extractor != null) {
                 extractor.release();
                 extractor = null;
@@ -231,11 +554,209 @@ public class MoviePlayer {
 
 
 
+    /**
+     * Returns true if the clip should loop from the frame cache.  Leaves the extractor at
+     * the start either way.
+     */
+    private boolean useLoopCache(MediaExtractor extractor, MediaFormat format) {
+        if (!mLoop || mLoopCacheBudgetBytes <= 0 || mPipelined) {
+            return false;
+        }
+        if (format.containsKey(MediaFormat.KEY_DURATION) &&
+                format.getLong(MediaFormat.KEY_DURATION) > MAX_LOOP_CACHE_DURATION_USEC) {
+            return false;
+        }
+        boolean built = (mSampleTable == null);
+        SampleTable table = getSampleTable(extractor, format);
+        if (built) {
+            extractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+        }
+        return LoopCachePlayer.fits(table.getSampleCount(), mVideoWidth, mVideoHeight,
+                mLoopCacheBudgetBytes);
+    }
+
+    /**
+     * Repositions the extractor for the most recent seekTo() request, and sets the
+     * timestamp below which output is discarded.  If the decoder has seen input already,
+     * pass the frame callback: the decoder is flushed and the callback's pacing reset.
+     */
+    private void applyPendingSeek(PrefetchingExtractor extractor, MediaFormat format,
+                                  MediaCodec decoder, FrameCallback frameCallback) {
+        // Taken in one step, so a seekTo() landing in between isn't lost.
+        long targetUsec = mPendingSeekUsec.getAndSet(NO_SEEK);
+        if (targetUsec == NO_SEEK) {
+            return;
+        }
+        if (mSampleTable == null) {
+            // Reading ahead resumes with the seekTo() below.
+            getSampleTable(extractor.pause(), format);
+        }
+        int frame = mSampleTable.findFrame(targetUsec);
+        if (frame < 0) {
+            // No samples; the extractor is at the end either way.
+            extractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+            return;
+        }
+        long syncPtsUsec;
+        if (mSampleTable.isSync(frame)) {
+            // Fast path: the target starts its own GOP.
+            syncPtsUsec = mSampleTable.getPtsUsec(frame);
+        } else {
+            syncPtsUsec = mSampleTable.getPtsUsec(mSampleTable.findSyncBefore(frame));
+        }
+        // In keyframe-only mode there's nothing between the sync frames to decode through.
+        mDiscardBeforeUsec = mKeyframeOnly ? Long.MIN_VALUE : mSampleTable.getPtsUsec(frame);
+        if (DEBUG) {
+            Log.d(TAG, "seek to " + targetUsec + ": frame " + frame + " pts=" +
+                    mDiscardBeforeUsec + ", decoding from " + syncPtsUsec);
+        }
+        extractor.seekTo(syncPtsUsec, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        if (frameCallback != null) {
+            decoder.flush();
+            frameCallback.loopReset();
+            if (mVsyncPresenter != null) {
+                mVsyncPresenter.reset();
+            }
+        }
+    }
+
+    /**
+     * Returns true if a decoded frame should go to the Surface, i.e. it has data and
+     * isn't one of the frames we're decoding through to reach a seek target.
+     */
+    private boolean shouldRender(MediaCodec.BufferInfo info) {
+        if (info.size == 0) {
+            return false;
+        }
+        if (info.presentationTimeUs < mDiscardBeforeUsec) {
+            return false;
+        }
+        mDiscardBeforeUsec = Long.MIN_VALUE;
+        return true;
+    }
+
+    /**
+     * Releases a decoded buffer, sending it to the Surface if doRender is set.  A buffer
+     * with data that isn't rendered counts as skipped.
+     */
+    private void releaseFrame(MediaCodec decoder, int index, long ptsUsec, int size,
+                              boolean doRender, FrameCallback frameCallback) {
+        if (mMetrics != null) {
+            if (!doRender) {
+                if (size != 0) {
+                    mMetrics.onSkipped();
+                }
+            } else if (mVsyncPresenter == null) {
+                mMetrics.onRendered();      // the presenter counts its own
+            }
+        }
+        if (doRender && mVsyncPresenter != null) {
+            mVsyncPresenter.present(decoder, index, ptsUsec);
+            return;
+        }
+        // As soon as we call releaseOutputBuffer, the buffer will be forwarded
+        // to SurfaceTexture to convert to a texture.  We can't control when it
+        // appears on-screen, but we can manage the pace at which we release
+        // the buffers.
+        if (doRender && frameCallback != null) {
+            frameCallback.preRender(ptsUsec);
+        }
+        decoder.releaseOutputBuffer(index, doRender);
+        if (doRender && frameCallback != null) {
+            frameCallback.postRender();
+        }
+    }
+
+    /**
+     * Starts or stops keyframe-only decoding, if the rate has crossed KEYFRAME_ONLY_RATE.
+     * Playback continues from the last frame shown.
+     *
+     * @return true if the decoder was flushed.
+     */
+    private boolean updateTrickMode(PrefetchingExtractor extractor, MediaCodec decoder, float rate) {
+        boolean keyframeOnly = Math.abs(rate) > KEYFRAME_ONLY_RATE;
+        if (keyframeOnly == mKeyframeOnly) {
+            return false;
+        }
+        mKeyframeOnly = keyframeOnly;
+        if (DEBUG) Log.d(TAG, "keyframe-only " + keyframeOnly + " at rate " + rate);
+        // Keyframe-only playback seeks after every sample, so anything read ahead would
+        // be thrown away.
+        extractor.setReadAheadEnabled(!keyframeOnly);
+        if (keyframeOnly) {
+            mDiscardBeforeUsec = Long.MIN_VALUE;
+            if (mLastOutputPtsUsec >= 0) {
+                extractor.seekTo(mLastOutputPtsUsec, (rate > 0) ?
+                        MediaExtractor.SEEK_TO_NEXT_SYNC : MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            } else {
+                // Nothing decoded yet, but some samples may have gone in; start over from
+                // the sync frame before the next one.
+                long nextUsec = extractor.getSampleTime();
+                if (nextUsec < 0) {
+                    return false;
+                }
+                extractor.seekTo(nextUsec, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            }
+            decoder.flush();
+            return true;
+        }
+        if (mLastOutputPtsUsec < 0) {
+            return false;       // nothing decoded yet; carry on from where we are
+        }
+        // Back to decoding everything: an exact seek to where we are, unless the user has
+        // already asked to go somewhere else.
+        mPendingSeekUsec.compareAndSet(NO_SEEK, mLastOutputPtsUsec);
+        return false;
+    }
+
+    /**
+     * In keyframe-only mode, moves the extractor from the sample just queued to the next
+     * sync sample to show, far enough along to keep roughly to the rate.
+     *
+     * @return false if there are no more sync samples in that direction.
+     */
+    private static boolean advanceToKeyframe(PrefetchingExtractor extractor, long ptsUsec, float rate) {
+        long stepUsec = (long) (Math.abs(rate) * TRICK_FRAME_INTERVAL_USEC);
+        if (rate > 0) {
+            extractor.seekTo(ptsUsec + stepUsec, MediaExtractor.SEEK_TO_NEXT_SYNC);
+            long nextUsec = extractor.getSampleTime();
+            return nextUsec > ptsUsec;
+        } else {
+            extractor.seekTo(ptsUsec - stepUsec, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            long nextUsec = extractor.getSampleTime();
+            return nextUsec >= 0 && nextUsec < ptsUsec;
+        }
+    }
+
+    /**
+     * Maps a frame's pts onto the timeline handed to the frame callback when the rate isn't
+     * 1x, and decides whether a frame decoded faster than real time is worth rendering.
+     *
+     * @return the time to give the frame callback, or -1 to skip rendering the frame.
+     */
+    private long mapToRateClock(long ptsUsec, float rate) {
+        if (rate == 1.0f && !mKeyframeOnly) {
+            // Keep the rate clock in step, so a rate change doesn't make it jump.
+            mLastOutputPtsUsec = mRateClockUsec = mLastPresentedClockUsec = ptsUsec;
+            return ptsUsec;
+        }
+        if (mLastOutputPtsUsec >= 0) {
+            mRateClockUsec += (long) (Math.abs(ptsUsec - mLastOutputPtsUsec) / Math.abs(rate));
+        }
+        mLastOutputPtsUsec = ptsUsec;
+        if (rate > 1.0f && !mKeyframeOnly && mLastPresentedClockUsec != 0 &&
+                mRateClockUsec - mLastPresentedClockUsec < MIN_PRESENT_INTERVAL_USEC) {
+            return -1;
+        }
+        mLastPresentedClockUsec = mRateClockUsec;
+        return mRateClockUsec;
+    }
+
     /**
      * Work loop.  We execute here until we run out of video or are told to stop.
      */
-    private void doExtract(MediaExtractor extractor, int trackIndex, MediaCodec decoder,
-                           FrameCallback frameCallback) {
+    private void doExtract(PrefetchingExtractor extractor, int trackIndex, MediaFormat format,
+                           MediaCodec decoder, FrameCallback frameCallback) {
         final int TIMEOUT_USEC = 10000;
         ByteBuffer[] decoderInputBuffers = decoder.getInputBuffers();
         int inputChunk = 0;
@@ -243,12 +764,22 @@ public class MoviePlayer {
 
         boolean outputDone = false;
         boolean inputDone = false;
+        boolean trickEnd = false;
         while (!outputDone) {
             if (DEBUG) Log.d(TAG, "loop");
             if (mIsStopRequested) {
                 Log.d(TAG, "Stop requested");
                 return;
             }
+            float rate = mPlaybackRate;
+            if (updateTrickMode(extractor, decoder, rate)) {
+                inputDone = false;
+            }
+            if (mPendingSeekUsec.get() != NO_SEEK) {
+                applyPendingSeek(extractor, format, decoder, frameCallback);
+                mLastOutputPtsUsec = -1;
+                inputDone = false;
+            }
 
             // Feed more data to the decoder.
             if (!inputDone) {
@@ -260,12 +791,13 @@ public class MoviePlayer {
                     ByteBuffer inputBuf = decoderInputBuffers[inputBufIndex];
                     // Read the sample data into the ByteBuffer.
                     // This neither respects nor updates inputBuf's position, limit, etc.
-                    int chunkSize = extractor.readSampleData(inputBuf, 0);
+                    int chunkSize = trickEnd ? -1 : extractor.readSampleData(inputBuf, 0);
                     if (chunkSize < 0) {
                         // End of stream -- send empty frame with EOS flag set.
                         decoder.queueInputBuffer(inputBufIndex, 0, 0, 0L,
                                 MediaCodec.BUFFER_FLAG_END_OF_STREAM);
                         inputDone = true;
+                        trickEnd = false;
                         if (DEBUG) Log.d(TAG, "sent input EOS");
                     } else {
                         if (extractor.getSampleTrackIndex() != trackIndex) {
@@ -275,11 +807,18 @@ public class MoviePlayer {
                         long presentationTimeUs = extractor.getSampleTime();
                         decoder.queueInputBuffer(inputBufIndex, 0, chunkSize,
                                 presentationTimeUs, 0 /*flags*/);
+                        if (mMetrics != null) {
+                            mMetrics.onInputQueued(presentationTimeUs);
+                        }
                         if (DEBUG) {
                             Log.d(TAG, "submitted frame " + inputChunk + " to dec, size=" + chunkSize);
                         }
                         inputChunk++;
-                        extractor.advance();
+                        if (mKeyframeOnly) {
+                            trickEnd = !advanceToKeyframe(extractor, presentationTimeUs, rate);
+                        } else {
+                            extractor.advance();
+                        }
                     }
                 } else {
                     if (DEBUG) Log.d(TAG, "input buffer not available");
@@ -307,6 +846,9 @@ public class MoviePlayer {
                         Log.d(TAG, "startup lag " + ((nowNsec-firstInputTimeNsec) / 1000000.0) + " ms");
                         firstInputTimeNsec = 0;
                     }
+                    if (mMetrics != null) {
+                        mMetrics.onOutput(mBufferInfo.presentationTimeUs);
+                    }
                     boolean doLoop = false;
                     if (DEBUG) Log.d(TAG, "surface decoder given buffer " + decoderStatus +
                             " (size=" + mBufferInfo.size + ")");
@@ -319,39 +861,292 @@ public class MoviePlayer {
                         }
                     }
 
-                    boolean doRender = (mBufferInfo.size != 0);
-                    // As soon as we call releaseOutputBuffer, the buffer will be forwarded
-                    // to SurfaceTexture to convert to a texture.  We can't control when it
-                    // appears on-screen, but we can manage the pace at which we release
-                    // the buffers.
-                    if (doRender && frameCallback != null) {
-                        frameCallback.preRender(mBufferInfo.presentationTimeUs);
-                    }
-                    decoder.releaseOutputBuffer(decoderStatus, doRender);
-                    if (doRender && frameCallback != null) {
-                        frameCallback.postRender();
+                    boolean doRender = shouldRender(mBufferInfo);
+                    long presentUsec = mBufferInfo.presentationTimeUs;
+                    if (doRender) {
+                        presentUsec = mapToRateClock(presentUsec, rate);
+                        doRender = (presentUsec >= 0);
                     }
+                    releaseFrame(decoder, decoderStatus, presentUsec, mBufferInfo.size, doRender,
+                            frameCallback);
 
                     if (doLoop) {
                         Log.d(TAG, "Reached EOS, looping");
-                        extractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                        if (mKeyframeOnly && rate < 0) {
+                            // Scanning backward, so start again from the end.
+                            long endUsec = format.containsKey(MediaFormat.KEY_DURATION) ?
+                                    format.getLong(MediaFormat.KEY_DURATION) : Long.MAX_VALUE;
+                            extractor.seekTo(endUsec, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                        } else {
+                            extractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                        }
+                        mLastOutputPtsUsec = -1;
                         inputDone = false;
                         decoder.flush();    // reset decoder state
                         frameCallback.loopReset();
+                        if (mVsyncPresenter != null) {
+                            mVsyncPresenter.reset();
+                        }
                     }
                 }
             }
         }
     }
 
+    /**
+     * Pipelined work loop.  Three stages, each on its own thread:
+     * <ul>
+     * <li>the feeder keeps the decoder's input queue full from the extractor,
+     * <li>the drainer moves decoded buffers into a small bounded queue,
+     * <li>this thread takes them off the queue, paces them with the frame callback and
+     *     releases them to the Surface.
+     * </ul>
+     * Blocking in one stage no longer holds up the others.  When looping, the feeder seeks
+     * back to the start and shifts the timestamps so the timeline stays continuous; the
+     * decoder is never flushed and loopReset() isn't needed.
+     */
+    private void doPipelinedExtract(final PrefetchingExtractor extractor, final int trackIndex,
+                                    final MediaCodec decoder, FrameCallback frameCallback) {
+        final OutputQueue queue = new OutputQueue(PIPELINE_QUEUE_SIZE);
+        mPipelineDone = false;
+        mPipelineError = null;
+        Thread feeder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    feedInput(extractor, trackIndex, decoder);
+                } catch (RuntimeException re) {
+                    failPipeline(re, queue);
+                }
+            }
+        }, "MoviePlayer-input");
+        Thread drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    drainOutput(decoder, queue);
+                } catch (RuntimeException re) {
+                    failPipeline(re, queue);
+                }
+            }
+        }, "MoviePlayer-output");
+        feeder.start();
+        drainer.start();
+
+        try {
+            presentFrames(decoder, queue, frameCallback);
+        } finally {
+            mPipelineDone = true;
+            queue.close();
+            try {
+                feeder.join();
+                drainer.join();
+            } catch (InterruptedException ie) {
+                Log.w(TAG, "pipeline join interrupted", ie);
+            }
+        }
+        if (mPipelineError != null) {
+            throw mPipelineError;
+        }
+    }
+
+    private boolean isPipelineStopped() {
+        return mPipelineDone || mIsStopRequested;
+    }
+
+    private void failPipeline(RuntimeException re, OutputQueue queue) {
+        Log.e(TAG, "pipeline stage failed", re);
+        mPipelineError = re;
+        mPipelineDone = true;
+        queue.close();
+    }
+
+    // Feeder stage.
+    private void feedInput(PrefetchingExtractor extractor, int trackIndex, MediaCodec decoder) {
+        final int TIMEOUT_USEC = 10000;
+        ByteBuffer[] decoderInputBuffers = decoder.getInputBuffers();
+        long loopOffsetUsec = 0;
+        long lastPtsUsec = 0;
+        long frameDurationUsec = 0;
+
+        while (!isPipelineStopped()) {
+            int inputBufIndex = decoder.dequeueInputBuffer(TIMEOUT_USEC);
+            if (inputBufIndex < 0) {
+                if (DEBUG) Log.d(TAG, "input buffer not available");
+                continue;
+            }
+            ByteBuffer inputBuf = decoderInputBuffers[inputBufIndex];
+            int chunkSize = extractor.readSampleData(inputBuf, 0);
+            if (chunkSize < 0 && mLoop) {
+                Log.d(TAG, "Reached end of input, looping");
+                loopOffsetUsec = lastPtsUsec + frameDurationUsec;
+                extractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                chunkSize = extractor.readSampleData(inputBuf, 0);
+            }
+            if (chunkSize < 0) {
+                // End of stream -- send empty frame with EOS flag set.
+                decoder.queueInputBuffer(inputBufIndex, 0, 0, 0L,
+                        MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                if (DEBUG) Log.d(TAG, "sent input EOS");
+                return;
+            }
+            if (extractor.getSampleTrackIndex() != trackIndex) {
+                Log.w(TAG, "WEIRD: got sample from track " +
+                        extractor.getSampleTrackIndex() + ", expected " + trackIndex);
+            }
+            long presentationTimeUs = extractor.getSampleTime() + loopOffsetUsec;
+            if (presentationTimeUs > lastPtsUsec) {
+                frameDurationUsec = presentationTimeUs - lastPtsUsec;
+                lastPtsUsec = presentationTimeUs;
+            }
+            decoder.queueInputBuffer(inputBufIndex, 0, chunkSize, presentationTimeUs, 0);
+            if (mMetrics != null) {
+                mMetrics.onInputQueued(presentationTimeUs);
+            }
+            extractor.advance();
+        }
+    }
+
+    // Drainer stage.
+    private void drainOutput(MediaCodec decoder, OutputQueue queue) {
+        final int TIMEOUT_USEC = 10000;
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        long firstOutputCheckNsec = System.nanoTime();
+
+        while (!isPipelineStopped()) {
+            int decoderStatus = decoder.dequeueOutputBuffer(info, TIMEOUT_USEC);
+            if (decoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (DEBUG) Log.d(TAG, "no output from decoder available");
+            } else if (decoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                if (DEBUG) Log.d(TAG, "decoder output buffers changed");
+            } else if (decoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                if (DEBUG) Log.d(TAG, "decoder output format changed: " + decoder.getOutputFormat());
+            } else if (decoderStatus < 0) {
+                throw new RuntimeException(
+                        "unexpected result from decoder.dequeueOutputBuffer: " + decoderStatus);
+            } else {
+                if (firstOutputCheckNsec != 0) {
+                    Log.d(TAG, "startup lag " +
+                            ((System.nanoTime() - firstOutputCheckNsec) / 1000000.0) + " ms");
+                    firstOutputCheckNsec = 0;
+                }
+                if (mMetrics != null) {
+                    mMetrics.onOutput(info.presentationTimeUs);
+                }
+                if (!queue.put(decoderStatus, info.presentationTimeUs, info.size, info.flags)) {
+                    return;     // closed
+                }
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    if (DEBUG) Log.d(TAG, "output EOS");
+                    return;
+                }
+            }
+        }
+    }
 
+    // Presenter stage; runs on the play() thread.
+    private void presentFrames(MediaCodec decoder, OutputQueue queue,
+                               FrameCallback frameCallback) {
+        while (!mIsStopRequested) {
+            if (!queue.take()) {
+                if (mIsStopRequested) {
+                    Log.d(TAG, "Stop requested");
+                }
+                return;
+            }
+            boolean doRender = (queue.mTakenSize != 0 &&
+                    queue.mTakenPtsUsec >= mDiscardBeforeUsec);
+            releaseFrame(decoder, queue.mTakenIndex, queue.mTakenPtsUsec, queue.mTakenSize,
+                    doRender, frameCallback);
+            if ((queue.mTakenFlags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                return;
+            }
+        }
+        Log.d(TAG, "Stop requested");
+    }
 
+    /**
+     * Bounded queue of decoded-but-not-yet-released output buffers, from the drainer to the
+     * presenter.  Fixed arrays, so nothing is allocated per frame.  Only one thread may
+     * take(), and it reads the result from the mTaken* fields.
+     */
+    private static class OutputQueue {
+        private static final long WAIT_MSEC = 100;
+        private final int[] mIndex;
+        private final long[] mPtsUsec;
+        private final int[] mSize;
+        private final int[] mFlags;
+        private int mHead;
+        private int mCount;
+        private boolean mClosed;
 
+        int mTakenIndex;
+        long mTakenPtsUsec;
+        int mTakenSize;
+        int mTakenFlags;
 
+        OutputQueue(int capacity) {
+            mIndex = new int[capacity];
+            mPtsUsec = new long[capacity];
+            mSize = new int[capacity];
+            mFlags = new int[capacity];
+        }
 
+        /**
+         * Adds an entry, waiting while the queue is full.
+         *
+         * @return false if the queue was closed.
+         */
+        synchronized boolean put(int index, long ptsUsec, int size, int flags) {
+            while (mCount == mIndex.length && !mClosed) {
+                waitQuietly();
+            }
+            if (mClosed) {
+                return false;
+            }
+            int tail = (mHead + mCount) % mIndex.length;
+            mIndex[tail] = index;
+            mPtsUsec[tail] = ptsUsec;
+            mSize[tail] = size;
+            mFlags[tail] = flags;
+            mCount++;
+            notifyAll();
+            return true;
+        }
 
+        /**
+         * Removes the oldest entry into the mTaken* fields, waiting while the queue is empty.
+         *
+         * @return false if the queue was closed.
+         */
+        synchronized boolean take() {
+            while (mCount == 0 && !mClosed) {
+                waitQuietly();
+            }
+            if (mClosed) {
+                return false;
+            }
+            mTakenIndex = mIndex[mHead];
+            mTakenPtsUsec = mPtsUsec[mHead];
+            mTakenSize = mSize[mHead];
+            mTakenFlags = mFlags[mHead];
+            mHead = (mHead + 1) % mIndex.length;
+            mCount--;
+            notifyAll();
+            return true;
+        }
 
+        synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
 
+        private void waitQuietly() {
+            try {
+                wait(WAIT_MSEC);
+            } catch (InterruptedException ie) { /* not expected */ }
+        }
+    }
 
     /**
      * Thread helper for video playback.
@@ -360,7 +1155,7 @@ public class MoviePlayer {
      */
     public static class PlayTask implements Runnable {
         private static final int MSG_PLAY_STOPPED = 0;
-        private MoviePlayer mPlayer;
+        private Playable mPlayer;
         private PlayerFeedback mFeedback;
         private boolean mDoLoop;
         private Thread mThread;
@@ -369,7 +1164,7 @@ public class MoviePlayer {
         private final Object mStopLock = new Object();
         private boolean mStopped = false;
 
-        public PlayTask(MoviePlayer player, PlayerFeedback feedback) {
+        public PlayTask(Playable player, PlayerFeedback feedback) {
             mPlayer = player;
             mFeedback = feedback;
             mLocalHandler = new LocalHandler();
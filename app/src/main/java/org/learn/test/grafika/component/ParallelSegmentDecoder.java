@@ -0,0 +1,558 @@
+package org.learn.test.grafika.component;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import org.learn.test.grafika.GrafikaMainActivity;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by zzr on 2018/02/18.
+ * <p>
+ * Decodes a whole file as fast as the hardware allows, for batch jobs (thumbnails, scene
+ * detection) where MoviePlayer's one paced decoder leaves most of the device's decoders
+ * idle.  The track is cut at sync samples into segments, and N lanes -- each a decoder
+ * with its own MediaExtractor -- take segments in order and decode them side by side.
+ * Frames go to a {@link MoviePlayer.FrameConsumer} as {@link CpuFrame}s, like
+ * MoviePlayer's CPU frame mode.
+ * <p>
+ * N is what setDecoderCount() asked for, capped by the codec's instance limit (API 23+)
+ * and by the number of segments; if a decoder can't be created we carry on with the ones
+ * we have.  There are a few segments per lane, not one, so a lane that finishes early picks
+ * up more work and the reorder buffer doesn't need to hold a whole segment.
+ * <p>
+ * A segment runs from its sync sample to the next segment's, and keeps feeding past that
+ * sync until the pts catch up with it, so open-GOP leading frames come out of the segment
+ * whose time range they belong to.  Each segment only emits frames in its own
+ * [start, end) pts range, so every frame is delivered exactly once.
+ * <p>
+ * Unordered, each lane calls the consumer directly from its own thread, so calls overlap
+ * and the consumer must be thread-safe; nothing is copied.  Ordered, frames arrive one at a
+ * time in pts order: the lane decoding the earliest unfinished segment delivers directly,
+ * and the others copy their frames into a reorder buffer of bounded size, waiting when it
+ * fills.  Needs API 21.
+ */
+public class ParallelSegmentDecoder {
+    private static final String TAG = GrafikaMainActivity.TAG;
+    private static final boolean DEBUG = false;
+
+    private static final int TIMEOUT_USEC = 10000;
+    public static final int DEFAULT_DECODER_COUNT = 4;
+    private static final int SEGMENTS_PER_DECODER = 4;
+    public static final long DEFAULT_REORDER_BUDGET = 32 * 1024 * 1024;
+
+    private final File mSourceFile;
+    private final MediaIndexCache mIndexCache;
+    private int mDecoderCount = DEFAULT_DECODER_COUNT;
+    private boolean mOrdered = true;
+    private long mReorderBudgetBytes = DEFAULT_REORDER_BUDGET;
+
+    private volatile boolean mIsStopRequested;
+    private volatile Throwable mError;
+    private final AtomicInteger mFramesDelivered = new AtomicInteger();
+
+    // Set up by decode().
+    private MediaFormat mFormat;
+    private int mTrackIndex;
+    private long[] mSegmentStartUsec;
+    private long[] mSegmentEndUsec;
+    private MoviePlayer.FrameConsumer mConsumer;
+    private ReorderBuffer mReorder;
+    private YuvConverter mConverter;
+    private final AtomicInteger mNextSegment = new AtomicInteger();
+
+    /**
+     * One decoder and its extractor.
+     */
+    private class Lane implements Runnable {
+        final MediaExtractor extractor;
+        final MediaCodec decoder;
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        final CpuFrame frame;
+        Thread thread;
+        boolean used;
+
+        Lane(MediaExtractor extractor, MediaCodec decoder) {
+            this.extractor = extractor;
+            this.decoder = decoder;
+            frame = new CpuFrame(mConverter);
+        }
+
+        @Override
+        public void run() {
+            try {
+                int segment;
+                while (!isStopped() && (segment = mNextSegment.getAndIncrement()) <
+                        mSegmentStartUsec.length) {
+                    decodeSegment(this, segment);
+                    if (mReorder != null) {
+                        mReorder.finish(segment);
+                    }
+                }
+            } catch (Throwable th) {
+                Log.e(TAG, "segment decode failed", th);
+                fail(th);
+            }
+        }
+
+        void release() {
+            decoder.stop();
+            decoder.release();
+            extractor.release();
+        }
+    }
+
+    /**
+     * @param sourceFile The video file.
+     * @param indexCache Where to keep the sample table between runs, or null.
+     */
+    public ParallelSegmentDecoder(File sourceFile, MediaIndexCache indexCache) {
+        mSourceFile = sourceFile;
+        mIndexCache = indexCache;
+    }
+
+    /**
+     * Sets how many decoders to run at once, at most.  Must be called before decode().
+     */
+    public void setDecoderCount(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("decoder count must be at least 1");
+        }
+        mDecoderCount = count;
+    }
+
+    /**
+     * Sets whether the consumer sees frames in pts order, one at a time (the default), or
+     * as they come, from several threads at once.  Must be called before decode().
+     */
+    public void setOrdered(boolean ordered) {
+        mOrdered = ordered;
+    }
+
+    /**
+     * Sets the memory for frames held back in ordered mode.  Must be called before decode().
+     */
+    public void setReorderBudget(long bytes) {
+        mReorderBudgetBytes = bytes;
+    }
+
+    /**
+     * Asks decode() to stop soon.  Called from arbitrary thread.
+     */
+    public void requestStop() {
+        mIsStopRequested = true;
+        ReorderBuffer reorder = mReorder;
+        if (reorder != null) {
+            reorder.wake();
+        }
+    }
+
+    /** Frames handed to the consumer so far.  Can be read from any thread. */
+    public int getFramesDelivered() {
+        return mFramesDelivered.get();
+    }
+
+    private boolean isStopped() {
+        return mIsStopRequested || mError != null;
+    }
+
+    private void fail(Throwable th) {
+        if (mError == null) {
+            mError = th;
+        }
+        ReorderBuffer reorder = mReorder;
+        if (reorder != null) {
+            reorder.wake();
+        }
+    }
+
+    /**
+     * Decodes the whole video track, handing every frame to the consumer.  Doesn't return
+     * until done, stopped, or failed; a lane's failure is rethrown here.
+     */
+    public void decode(MoviePlayer.FrameConsumer consumer) throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            throw new RuntimeException("CPU frame access needs API 21");
+        }
+        if (!mSourceFile.canRead()) {
+            throw new FileNotFoundException("Unable to read " + mSourceFile);
+        }
+        long startNsec = System.nanoTime();
+        mError = null;
+        mNextSegment.set(0);
+        mFramesDelivered.set(0);
+        SampleTable table = loadSampleTable();
+        splitSegments(table);
+        mConsumer = consumer;
+        int width = mFormat.getInteger(MediaFormat.KEY_WIDTH);
+        int height = mFormat.getInteger(MediaFormat.KEY_HEIGHT);
+        mConverter = new YuvConverter(width * height);
+        mFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+
+        ArrayList<Lane> lanes = new ArrayList<Lane>();
+        try {
+            openLanes(lanes);
+            if (mOrdered) {
+                // Copies keep the decoder's padding; 2 bytes per pixel covers 4:2:0 with
+                // interleaved chroma copied once per plane.
+                long frameBytes = (long) width * height * 2;
+                mReorder = new ReorderBuffer(mSegmentStartUsec.length,
+                        (int) Math.max(1, mReorderBudgetBytes / frameBytes));
+            }
+            Log.d(TAG, "parallel decode: " + lanes.size() + " decoders, " +
+                    mSegmentStartUsec.length + " segments, " +
+                    (mOrdered ? "ordered" : "unordered"));
+            for (int i = 0; i < lanes.size(); i++) {
+                Lane lane = lanes.get(i);
+                lane.thread = new Thread(lane, "SegmentDecoder-" + i);
+                lane.thread.start();
+            }
+            for (Lane lane : lanes) {
+                try {
+                    lane.thread.join();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    requestStop();
+                }
+            }
+        } finally {
+            for (Lane lane : lanes) {
+                lane.release();
+            }
+            mReorder = null;
+        }
+
+        Throwable error = mError;
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        } else if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        } else if (error != null) {
+            throw new RuntimeException(error);
+        }
+        long elapsedMsec = Math.max(1, (System.nanoTime() - startNsec) / 1000000);
+        Log.d(TAG, "parallel decode: " + mFramesDelivered.get() + " frames in " + elapsedMsec +
+                " ms (" + (mFramesDelivered.get() * 1000L / elapsedMsec) + " fps)");
+    }
+
+    /**
+     * Finds the video track and its sample table, from the index cache if it has them.
+     */
+    private SampleTable loadSampleTable() throws IOException {
+        if (mIndexCache != null) {
+            MediaIndexCache.Entry entry = mIndexCache.load(mSourceFile);
+            if (entry != null && entry.sampleTable != null) {
+                mTrackIndex = entry.trackIndex;
+                mFormat = entry.format;
+                return entry.sampleTable;
+            }
+        }
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(mSourceFile.toString());
+            int trackIndex = MoviePlayer.selectTrack(extractor);
+            if (trackIndex < 0) {
+                throw new RuntimeException("No video track found in " + mSourceFile);
+            }
+            extractor.selectTrack(trackIndex);
+            mTrackIndex = trackIndex;
+            mFormat = extractor.getTrackFormat(trackIndex);
+            SampleTable table = SampleTable.build(extractor, mFormat);
+            if (mIndexCache != null) {
+                mIndexCache.store(mSourceFile,
+                        new MediaIndexCache.Entry(trackIndex, mFormat, table));
+            }
+            return table;
+        } finally {
+            extractor.release();
+        }
+    }
+
+    /**
+     * Cuts the track at sync samples into about SEGMENTS_PER_DECODER segments per decoder,
+     * of roughly equal sample counts.
+     */
+    private void splitSegments(SampleTable table) {
+        int sampleCount = table.getSampleCount();
+        int syncCount = 0;
+        for (int i = 0; i < sampleCount; i++) {
+            if (table.isSync(i)) {
+                syncCount++;
+            }
+        }
+        int target = Math.max(1, Math.min(syncCount, mDecoderCount * SEGMENTS_PER_DECODER));
+        long[] starts = new long[target];
+        int count = 0;
+        // The first segment takes whatever comes before the first sync sample, too.
+        starts[count++] = Long.MIN_VALUE;
+        for (int i = 1; i < sampleCount && count < target; i++) {
+            if (table.isSync(i) && i >= (long) sampleCount * count / target) {
+                starts[count++] = table.getPtsUsec(i);
+            }
+        }
+        mSegmentStartUsec = new long[count];
+        mSegmentEndUsec = new long[count];
+        for (int i = 0; i < count; i++) {
+            mSegmentStartUsec[i] = starts[i];
+            mSegmentEndUsec[i] = (i + 1 < count) ? starts[i + 1] : Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Creates as many lanes as we're allowed and able to, at least one.
+     */
+    private void openLanes(ArrayList<Lane> lanes) throws IOException {
+        String mime = mFormat.getString(MediaFormat.KEY_MIME);
+        int want = Math.min(mDecoderCount, mSegmentStartUsec.length);
+        while (lanes.size() < want) {
+            MediaExtractor extractor = null;
+            MediaCodec decoder = null;
+            try {
+                extractor = new MediaExtractor();
+                extractor.setDataSource(mSourceFile.toString());
+                extractor.selectTrack(mTrackIndex);
+                decoder = MediaCodec.createDecoderByType(mime);
+                decoder.configure(mFormat, null, null, 0);
+                decoder.start();
+            } catch (Exception e) {
+                if (decoder != null) {
+                    decoder.release();
+                }
+                if (extractor != null) {
+                    extractor.release();
+                }
+                if (lanes.isEmpty()) {
+                    if (e instanceof IOException) {
+                        throw (IOException) e;
+                    }
+                    throw (RuntimeException) e;
+                }
+                // Most likely out of hardware decoders; make do.
+                Log.w(TAG, "parallel decode: couldn't open decoder " + (lanes.size() + 1) +
+                        ", using " + lanes.size(), e);
+                return;
+            }
+            lanes.add(new Lane(extractor, decoder));
+            if (lanes.size() == 1 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                int max = decoder.getCodecInfo().getCapabilitiesForType(mime)
+                        .getMaxSupportedInstances();
+                if (max > 0 && max < want) {
+                    if (DEBUG) Log.d(TAG, "parallel decode: codec allows " + max + " instances");
+                    want = max;
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes one segment on a lane.
+     */
+    private void decodeSegment(Lane lane, int segment) {
+        long startUsec = mSegmentStartUsec[segment];
+        long endUsec = mSegmentEndUsec[segment];
+        MediaExtractor extractor = lane.extractor;
+        MediaCodec decoder = lane.decoder;
+        if (lane.used) {
+            decoder.flush();
+        }
+        lane.used = true;
+        extractor.seekTo(Math.max(startUsec, 0), MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        if (DEBUG) Log.d(TAG, "segment " + segment + ": " + startUsec + " to " + endUsec);
+
+        boolean inputDone = false;
+        boolean pastEnd = false;
+        while (!isStopped()) {
+            if (!inputDone) {
+                int inputBufIndex = decoder.dequeueInputBuffer(TIMEOUT_USEC);
+                if (inputBufIndex >= 0) {
+                    ByteBuffer inputBuf = decoder.getInputBuffer(inputBufIndex);
+                    int chunkSize = extractor.readSampleData(inputBuf, 0);
+                    long ptsUsec = extractor.getSampleTime();
+                    if (chunkSize >= 0 && ptsUsec >= endUsec) {
+                        if (pastEnd) {
+                            chunkSize = -1;     // caught up with the next segment
+                        } else if ((extractor.getSampleFlags() &
+                                MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                            // The next segment's sync sample; decode it anyway, for any
+                            // leading frames that follow it and refer to it.
+                            pastEnd = true;
+                        }
+                    }
+                    if (chunkSize < 0) {
+                        decoder.queueInputBuffer(inputBufIndex, 0, 0, 0L,
+                                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        inputDone = true;
+                    } else {
+                        decoder.queueInputBuffer(inputBufIndex, 0, chunkSize, ptsUsec, 0);
+                        extractor.advance();
+                    }
+                }
+            }
+
+            int decoderStatus = decoder.dequeueOutputBuffer(lane.info, TIMEOUT_USEC);
+            if (decoderStatus < 0) {
+                continue;   // try again later, or format/buffers changed
+            }
+            long ptsUsec = lane.info.presentationTimeUs;
+            if (lane.info.size != 0 && ptsUsec >= startUsec && ptsUsec < endUsec) {
+                Image image = decoder.getOutputImage(decoderStatus);
+                if (image != null) {
+                    lane.frame.set(image, decoderStatus, ptsUsec);
+                    try {
+                        deliver(segment, lane.frame);
+                    } finally {
+                        image.close();
+                        lane.frame.clear();
+                    }
+                } else {
+                    Log.w(TAG, "no image for output buffer " + decoderStatus + ", skipping frame");
+                }
+            }
+            decoder.releaseOutputBuffer(decoderStatus, false);
+            if ((lane.info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                return;
+            }
+        }
+    }
+
+    private void deliver(int segment, CpuFrame frame) {
+        if (mReorder != null) {
+            mReorder.deliver(segment, frame);
+        } else {
+            mConsumer.onFrame(frame);
+            mFramesDelivered.incrementAndGet();
+        }
+    }
+
+    /**
+     * Puts frames from all the lanes back in pts order.  Segments are consecutive in pts,
+     * so it's enough to pass through the earliest unfinished segment's frames (the "head")
+     * and hold back the rest, per segment.  A segment's held frames are only touched by its
+     * own lane until it finishes, then only by the lane that moves the head past it, so the
+     * consumer is never called by two threads at once.
+     */
+    private class ReorderBuffer {
+        private final ArrayDeque<CpuFrame>[] mHeld;
+        private final boolean[] mDone;
+        private final int mMaxHeld;
+        private final ArrayList<CpuFrame> mFreeCopies = new ArrayList<CpuFrame>();
+        private int mHeldCount;
+        private int mHead;
+
+        @SuppressWarnings("unchecked")
+        ReorderBuffer(int segmentCount, int maxHeld) {
+            mHeld = new ArrayDeque[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                mHeld[i] = new ArrayDeque<CpuFrame>();
+            }
+            mDone = new boolean[segmentCount];
+            mMaxHeld = maxHeld;
+        }
+
+        synchronized void wake() {
+            notifyAll();
+        }
+
+        /**
+         * Delivers the frame now if its segment is the head, otherwise keeps a copy, first
+         * waiting for room if the buffer is full.
+         */
+        void deliver(int segment, CpuFrame frame) {
+            CpuFrame copy;
+            synchronized (this) {
+                while (segment != mHead && mHeldCount >= mMaxHeld && !isStopped()) {
+                    waitQuietly();
+                }
+                if (isStopped()) {
+                    return;
+                }
+                if (segment == mHead) {
+                    copy = null;
+                } else {
+                    mHeldCount++;
+                    copy = mFreeCopies.isEmpty() ? new CpuFrame(mConverter) :
+                            mFreeCopies.remove(mFreeCopies.size() - 1);
+                }
+            }
+            if (copy == null) {
+                drain(segment);
+                mConsumer.onFrame(frame);
+                mFramesDelivered.incrementAndGet();
+            } else {
+                copy.copyFrom(frame);
+                synchronized (this) {
+                    mHeld[segment].addLast(copy);
+                }
+            }
+        }
+
+        /**
+         * Called by a segment's lane when it's done.  If that was the head, moves the head
+         * on past every finished segment, delivering what they held.
+         */
+        void finish(int segment) {
+            synchronized (this) {
+                mDone[segment] = true;
+                if (segment != mHead) {
+                    return;
+                }
+            }
+            while (true) {
+                drain(segment);
+                synchronized (this) {
+                    mHead = ++segment;
+                    notifyAll();
+                    if (segment == mDone.length || !mDone[segment]) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Delivers the frames held for the head segment.  Only called by the thread that
+         * currently owns the head.
+         */
+        private void drain(int segment) {
+            while (!isStopped()) {
+                CpuFrame held;
+                synchronized (this) {
+                    held = mHeld[segment].pollFirst();
+                }
+                if (held == null) {
+                    return;
+                }
+                try {
+                    mConsumer.onFrame(held);
+                    mFramesDelivered.incrementAndGet();
+                } finally {
+                    held.clear();
+                    synchronized (this) {
+                        mFreeCopies.add(held);
+                        mHeldCount--;
+                        notifyAll();
+                    }
+                }
+            }
+        }
+
+        private void waitQuietly() {
+            try {
+                wait();
+            } catch (InterruptedException ie) { /* not expected */ }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package org.learn.test.grafika.component;
+
+import java.io.IOException;
+
+/**
+ * Created by zzr on 2018/02/13.
+ * <p>
+ * Something MoviePlayer.PlayTask can run: a MoviePlayer, or a PlaylistPlayer.
+ */
+public interface Playable {
+    /**
+     * Sets the loop mode.  If true, playback will loop forever.
+     */
+    void setLoopMode(boolean loopMode);
+
+    /**
+     * Asks the player to stop.  Returns without waiting for playback to halt.
+     * Called from arbitrary thread.
+     */
+    void requestStop();
+
+    /**
+     * Plays until the end, or until requestStop().  Does not return until then.
+     */
+    void play() throws IOException;
+}
@@ -0,0 +1,185 @@
+package org.learn.test.grafika.component;
+
+import org.learn.test.grafika.util.LatencyHistogram;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Created by zzr on 2018/02/16.
+ * <p>
+ * Per-frame numbers for a MoviePlayer, the playback counterpart of EncoderMetrics:
+ * <ul>
+ * <li>decode latency: from queueInputBuffer() of a sample to its frame coming out of
+ *     dequeueOutputBuffer(), matched by pts;
+ * <li>lateness: how far past its target time the pacer (SpeedControlCallback or
+ *     VsyncPresenter) actually let each frame go, plus a count of frames that went early;
+ * <li>frames rendered, dropped for being too late, and skipped on purpose (decoded
+ *     through on the way to a seek target, or thinned out at high playback rates).
+ * </ul>
+ * The player and pacer threads record without allocating or locking, and any thread can
+ * take a {@link Snapshot} or dump one to a file.  Give the same object to
+ * MoviePlayer.setMetrics() and to the pacer's setMetrics().
+ */
+public class PlaybackMetrics {
+    // Samples in flight that we can match outputs against.  Decoders hold far fewer.
+    private static final int PENDING_SLOTS = 64;
+
+    private final LatencyHistogram mDecodeLatency = new LatencyHistogram();
+    private final LatencyHistogram mLateness = new LatencyHistogram();
+    private final AtomicLong mEarly = new AtomicLong();
+    private final AtomicLong mRendered = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mSkipped = new AtomicLong();
+
+    // Queue times of recent input samples, by pts.  Written by the thread feeding the
+    // decoder and read by the one draining it; the time goes in before the pts, so a
+    // reader that sees the pts sees its time.
+    private final AtomicLongArray mPendingPts = new AtomicLongArray(PENDING_SLOTS);
+    private final AtomicLongArray mPendingNsec = new AtomicLongArray(PENDING_SLOTS);
+    private int mNextPending;
+
+    public PlaybackMetrics() {
+        for (int i = 0; i < PENDING_SLOTS; i++) {
+            mPendingPts.set(i, -1);
+        }
+    }
+
+    /** A sample was queued to the decoder.  Called by the feeding thread only. */
+    void onInputQueued(long ptsUsec) {
+        int slot = mNextPending;
+        mNextPending = (slot + 1) % PENDING_SLOTS;
+        mPendingNsec.set(slot, System.nanoTime());
+        mPendingPts.set(slot, ptsUsec);
+    }
+
+    /** A frame came out of the decoder.  Called by the draining thread only. */
+    void onOutput(long ptsUsec) {
+        long nowNsec = System.nanoTime();
+        for (int i = 0; i < PENDING_SLOTS; i++) {
+            if (mPendingPts.get(i) == ptsUsec) {
+                long queuedNsec = mPendingNsec.get(i);
+                if (mPendingPts.compareAndSet(i, ptsUsec, -1)) {
+                    mDecodeLatency.record((nowNsec - queuedNsec) / 1000);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * The pacer released a frame.
+     *
+     * @param targetNsec When it meant to, System.nanoTime().
+     * @param actualNsec When it did.
+     */
+    void onPaced(long targetNsec, long actualNsec) {
+        long latenessNsec = actualNsec - targetNsec;
+        if (latenessNsec < 0) {
+            mEarly.incrementAndGet();
+        }
+        mLateness.record(latenessNsec / 1000);
+    }
+
+    void onRendered() {
+        mRendered.incrementAndGet();
+    }
+
+    void onDropped() {
+        mDropped.incrementAndGet();
+    }
+
+    void onSkipped() {
+        mSkipped.incrementAndGet();
+    }
+
+    /** Queue-to-output time per frame, in usec. */
+    public LatencyHistogram getDecodeLatency() {
+        return mDecodeLatency;
+    }
+
+    /** Actual minus target release time per paced frame, in usec; early counts as zero. */
+    public LatencyHistogram getLateness() {
+        return mLateness;
+    }
+
+    /** Frames the pacer released before their target time. */
+    public long getEarlyCount() {
+        return mEarly.get();
+    }
+
+    public long getRenderedCount() {
+        return mRendered.get();
+    }
+
+    /** Frames decoded in time to show but too late to be worth it. */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /** Frames decoded but deliberately not shown. */
+    public long getSkippedCount() {
+        return mSkipped.get();
+    }
+
+    /**
+     * Copies everything.  With reset, the histograms start over, for per-interval numbers;
+     * the counters always keep running.
+     */
+    public Snapshot snapshot(boolean reset) {
+        return new Snapshot(
+                reset ? mDecodeLatency.snapshotAndReset() : mDecodeLatency.snapshot(),
+                reset ? mLateness.snapshotAndReset() : mLateness.snapshot(),
+                mEarly.get(), mRendered.get(), mDropped.get(), mSkipped.get());
+    }
+
+    /**
+     * A copy of the metrics at one moment.
+     */
+    public static class Snapshot {
+        public final LatencyHistogram.Snapshot decodeLatency;
+        public final LatencyHistogram.Snapshot lateness;
+        public final long early;
+        public final long rendered;
+        public final long dropped;
+        public final long skipped;
+        public final long timeMsec = System.currentTimeMillis();
+
+        Snapshot(LatencyHistogram.Snapshot decodeLatency, LatencyHistogram.Snapshot lateness,
+                 long early, long rendered, long dropped, long skipped) {
+            this.decodeLatency = decodeLatency;
+            this.lateness = lateness;
+            this.early = early;
+            this.rendered = rendered;
+            this.dropped = dropped;
+            this.skipped = skipped;
+        }
+
+        public void writeTo(PrintWriter out) {
+            out.println("time=" + timeMsec + " rendered=" + rendered + " dropped=" + dropped +
+                    " skipped=" + skipped + " early=" + early);
+            decodeLatency.writeTo(out, "decode_latency_us");
+            lateness.writeTo(out, "lateness_us");
+        }
+
+        /**
+         * Appends the snapshot to a text file.
+         */
+        public void appendTo(File file) throws IOException {
+            PrintWriter out = new PrintWriter(new FileWriter(file, true));
+            try {
+                writeTo(out);
+                out.println();
+            } finally {
+                out.close();
+            }
+            if (out.checkError()) {
+                throw new IOException("write to " + file + " failed");
+            }
+        }
+    }
+}
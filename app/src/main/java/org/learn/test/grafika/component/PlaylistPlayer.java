@@ -0,0 +1,558 @@
+package org.learn.test.grafika.component;
+
+import android.graphics.SurfaceTexture;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import android.view.Surface;
+
+import org.learn.test.grafika.GrafikaMainActivity;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Created by zzr on 2018/02/13.
+ * <p>
+ * Plays a list of movies back to back on one Surface, with no gap between them.  Tearing
+ * down the decoder at the end of each clip and setting up the next costs a few hundred ms
+ * of frozen or black screen; here the next clip is opened on a background thread during
+ * the last {@link #PREROLL_USEC} of the current one, and switched to when its input runs
+ * out.
+ * <p>
+ * If the next clip has the same mime type and size, the decoder just keeps going: its
+ * codec-specific data is queued in-band and its samples follow straight on, with no EOS or
+ * flush in between.  That's the usual case for a kiosk playlist.  Otherwise the next clip
+ * gets its own decoder.  On API 23+ it's started ahead of time on a placeholder Surface and
+ * holds its first frame, and at the switch it's pointed at the output Surface with
+ * setOutputSurface(); before that the Surface can't change hands, so the decoder is only
+ * created early and configured at the switch.
+ * <p>
+ * Timestamps are shifted so the frame callback sees one continuous timeline across clips
+ * (and across the wrap in loop mode), so it never needs loopReset().
+ */
+public class PlaylistPlayer implements Playable {
+    private static final String TAG = GrafikaMainActivity.TAG;
+    private static final boolean DEBUG = false;
+
+    // Start preparing the next clip when this much of the current one is left to feed.
+    public static final long PREROLL_USEC = 2000000;
+    private static final long DEFAULT_FRAME_USEC = 33333;
+    private static final int TIMEOUT_USEC = 10000;
+
+    private final List<File> mFiles;
+    private final Surface mOutputSurface;
+    private final MoviePlayer.FrameCallback mFrameCallback;
+    private boolean mLoop;
+    private DecoderPool mDecoderPool;
+
+    // May be set/read by different threads.
+    private volatile boolean mIsStopRequested;
+
+    // Play thread only.
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    // The clip being fed, which owns the decoder attached to the output Surface.
+    private Item mCurrent;
+    // The next clip, once the current decoder has been sent EOS, waiting for it to drain.
+    private Item mNext;
+    private long mInputOffsetUsec;
+    private long mOutputOffsetUsec;
+    private long mMaxInputUsec;
+    private long mLastOutputUsec = -1;
+    private long mFrameUsec = DEFAULT_FRAME_USEC;
+
+    // Hand-off from the preroll thread.
+    private final Object mPrerollLock = new Object();
+    private Thread mPrerollThread;
+    private Item mPrerolled;
+    private RuntimeException mPrerollError;
+
+    // Placeholder output for decoders being prerolled.  They hold their first frame
+    // without rendering it, so nothing ever arrives here.
+    private SurfaceTexture mPrerollTexture;
+    private Surface mPrerollSurface;
+
+    /**
+     * One clip: its extractor, and its decoder once it has one.
+     */
+    private static class Item {
+        File file;
+        MediaExtractor extractor;
+        MediaFormat format;
+        long durationUsec;
+        long firstPtsUsec;
+        // Timestamp of the last sample fed, as read from the extractor.
+        long fedUsec;
+        // True if it can be fed to the current decoder in-band.
+        boolean splice;
+        MediaCodec decoder;
+        boolean configured;
+        boolean inputDone;
+        // Output buffer decoded during preroll and not yet released, or -1.
+        int heldIndex = -1;
+        final MediaCodec.BufferInfo heldInfo = new MediaCodec.BufferInfo();
+
+        void release(DecoderPool pool) {
+            if (decoder != null) {
+                if (pool != null && (configured || Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)) {
+                    pool.release(decoder);
+                } else {
+                    if (configured) {
+                        decoder.stop();
+                    }
+                    decoder.release();
+                }
+                decoder = null;
+            }
+            if (extractor != null) {
+                extractor.release();
+                extractor = null;
+            }
+        }
+    }
+
+    /**
+     * @param files The movies to play, in order.
+     * @param outputSurface The Surface where frames will be sent.
+     * @param frameCallback Callback object, used to pace output.
+     */
+    public PlaylistPlayer(List<File> files, Surface outputSurface,
+                          MoviePlayer.FrameCallback frameCallback) {
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException("empty playlist");
+        }
+        mFiles = new ArrayList<File>(files);
+        mOutputSurface = outputSurface;
+        mFrameCallback = frameCallback;
+    }
+
+    /**
+     * Sets the loop mode.  If true, the playlist starts over after the last movie, forever.
+     */
+    @Override
+    public void setLoopMode(boolean loopMode) {
+        mLoop = loopMode;
+    }
+
+    /**
+     * Sets the pool to take decoders from, or null to create them.  Must be called before
+     * play().
+     */
+    public void setDecoderPool(DecoderPool pool) {
+        mDecoderPool = pool;
+    }
+
+    @Override
+    public void requestStop() {
+        mIsStopRequested = true;
+    }
+
+    /**
+     * Plays the list, sending frames to the surface.  Does not return until the last
+     * movie is done (never, in loop mode), or we get a stop request.
+     */
+    @Override
+    public void play() throws IOException {
+        try {
+            mCurrent = openItem(mFiles.get(0));
+            mCurrent.decoder = createDecoder(mCurrent.format, mOutputSurface);
+            mCurrent.configured = true;
+            doPlay();
+        } finally {
+            // release everything we grabbed
+            Item prerolled = awaitPreroll(false);
+            if (prerolled != null) {
+                prerolled.release(mDecoderPool);
+            }
+            if (mNext != null) {
+                mNext.release(mDecoderPool);
+                mNext = null;
+            }
+            if (mCurrent != null) {
+                mCurrent.release(mDecoderPool);
+                mCurrent = null;
+            }
+            if (mPrerollSurface != null) {
+                mPrerollSurface.release();
+                mPrerollTexture.release();
+            }
+        }
+    }
+
+    /**
+     * Work loop.  Feeds the current clip, splicing in or switching to the next ones as they
+     * come up, until we run out or are told to stop.
+     */
+    private void doPlay() {
+        MediaCodec decoder = mCurrent.decoder;
+        ByteBuffer[] inputBuffers = decoder.getInputBuffers();
+        int index = 0;
+        boolean inputDone = false;
+        boolean prerollStarted = false;
+
+        while (true) {
+            if (mIsStopRequested) {
+                Log.d(TAG, "Stop requested");
+                return;
+            }
+            int nextIndex = getNextIndex(index);
+            if (!prerollStarted && nextIndex >= 0 &&
+                    mCurrent.durationUsec - mCurrent.fedUsec < PREROLL_USEC) {
+                startPreroll(mFiles.get(nextIndex), mCurrent.format);
+                prerollStarted = true;
+            }
+
+            // Feed more data to the decoder.
+            if (!inputDone) {
+                int inputBufIndex = decoder.dequeueInputBuffer(TIMEOUT_USEC);
+                if (inputBufIndex >= 0) {
+                    int chunkSize = mCurrent.extractor.readSampleData(inputBuffers[inputBufIndex], 0);
+                    if (chunkSize >= 0) {
+                        mCurrent.fedUsec = mCurrent.extractor.getSampleTime();
+                        long ptsUsec = mCurrent.fedUsec + mInputOffsetUsec;
+                        decoder.queueInputBuffer(inputBufIndex, 0, chunkSize, ptsUsec, 0);
+                        mMaxInputUsec = Math.max(mMaxInputUsec, ptsUsec);
+                        mCurrent.extractor.advance();
+                    } else {
+                        Item next = null;
+                        if (nextIndex >= 0) {
+                            if (!prerollStarted) {
+                                startPreroll(mFiles.get(nextIndex), mCurrent.format);
+                            }
+                            next = awaitPreroll(true);
+                        }
+                        if (next != null && next.splice) {
+                            // Same kind of stream: carry on in the same decoder.
+                            if (DEBUG) Log.d(TAG, "splicing in " + next.file);
+                            mInputOffsetUsec = mMaxInputUsec + mFrameUsec - next.firstPtsUsec;
+                            queueCodecConfig(decoder, inputBufIndex, next.format);
+                            next.decoder = decoder;
+                            next.configured = true;
+                            mCurrent.decoder = null;
+                            mCurrent.release(mDecoderPool);
+                            mCurrent = next;
+                            index = nextIndex;
+                            prerollStarted = false;
+                        } else {
+                            // End of stream -- send empty frame with EOS flag set.
+                            decoder.queueInputBuffer(inputBufIndex, 0, 0, 0L,
+                                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                            mNext = next;
+                            if (DEBUG) Log.d(TAG, "sent input EOS");
+                        }
+                    }
+                }
+            }
+
+            boolean outputEos = false;
+            int decoderStatus = decoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+            if (decoderStatus >= 0) {
+                outputEos = (mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                releaseFrame(decoder, decoderStatus, mBufferInfo);
+            } else if (decoderStatus != MediaCodec.INFO_TRY_AGAIN_LATER &&
+                    decoderStatus != MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED &&
+                    decoderStatus != MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                // Format changes are expected at splices; nothing else is.
+                throw new RuntimeException(
+                        "unexpected result from decoder.dequeueOutputBuffer: " + decoderStatus);
+            }
+
+            // Different kind of stream: hand the Surface to the next clip's decoder.  It
+            // loops in case that clip was so short preroll already reached its end.
+            while (outputEos && !mIsStopRequested) {
+                if (DEBUG) Log.d(TAG, "output EOS");
+                Item next = mNext;
+                mNext = null;
+                if (next == null) {
+                    return;
+                }
+                if (DEBUG) Log.d(TAG, "switching decoder for " + next.file);
+                mCurrent.release(mDecoderPool);
+                mCurrent = next;
+                attachDecoder(next);
+                decoder = next.decoder;
+                inputBuffers = decoder.getInputBuffers();
+                index = nextIndex;
+                inputDone = next.inputDone;
+                prerollStarted = false;
+                mInputOffsetUsec = 0;
+                mMaxInputUsec = next.firstPtsUsec;
+                mOutputOffsetUsec = mLastOutputUsec + mFrameUsec - next.firstPtsUsec;
+                outputEos = false;
+                if (next.heldIndex >= 0) {
+                    outputEos = (next.heldInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                    releaseFrame(decoder, next.heldIndex, next.heldInfo);
+                    next.heldIndex = -1;
+                }
+                if (inputDone) {
+                    // Preroll already sent its EOS, so line up the one after now.
+                    nextIndex = getNextIndex(index);
+                    if (nextIndex >= 0) {
+                        startPreroll(mFiles.get(nextIndex), null);
+                        mNext = awaitPreroll(true);
+                    }
+                }
+            }
+        }
+    }
+
+    private int getNextIndex(int index) {
+        if (index + 1 < mFiles.size()) {
+            return index + 1;
+        }
+        return mLoop ? 0 : -1;
+    }
+
+    /**
+     * Sends an output buffer to the Surface, paced by the frame callback, with its
+     * timestamp moved onto the playlist's timeline.
+     */
+    private void releaseFrame(MediaCodec decoder, int index, MediaCodec.BufferInfo info) {
+        boolean doRender = (info.size != 0);
+        if (doRender) {
+            long ptsUsec = info.presentationTimeUs + mOutputOffsetUsec;
+            if (mLastOutputUsec >= 0 && ptsUsec > mLastOutputUsec) {
+                mFrameUsec = ptsUsec - mLastOutputUsec;
+            }
+            mLastOutputUsec = ptsUsec;
+            if (mFrameCallback != null) {
+                mFrameCallback.preRender(ptsUsec);
+            }
+        }
+        decoder.releaseOutputBuffer(index, doRender);
+        if (doRender && mFrameCallback != null) {
+            mFrameCallback.postRender();
+        }
+    }
+
+    /**
+     * Points a prerolled decoder at the output Surface, configuring it first if that
+     * couldn't be done ahead of time.
+     */
+    private void attachDecoder(Item item) {
+        if (item.configured) {
+            item.decoder.setOutputSurface(mOutputSurface);
+        } else if (item.decoder != null) {
+            item.decoder.configure(item.format, mOutputSurface, null, 0);
+            item.decoder.start();
+            item.configured = true;
+        } else {
+            try {
+                item.decoder = createDecoder(item.format, mOutputSurface);
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+            item.configured = true;
+        }
+    }
+
+    private MediaCodec createDecoder(MediaFormat format, Surface surface) throws IOException {
+        if (mDecoderPool != null) {
+            return mDecoderPool.acquire(format, surface);
+        }
+        MediaCodec decoder = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+        decoder.configure(format, surface, null, 0);
+        decoder.start();
+        return decoder;
+    }
+
+    /**
+     * Opens a clip and leaves its extractor at the first sample.
+     */
+    private static Item openItem(File file) throws IOException {
+        // The MediaExtractor error messages aren't very useful.
+        if (!file.canRead()) {
+            throw new FileNotFoundException("Unable to read " + file);
+        }
+        Item item = new Item();
+        item.file = file;
+        item.extractor = new MediaExtractor();
+        try {
+            item.extractor.setDataSource(file.toString());
+            int trackIndex = MoviePlayer.selectTrack(item.extractor);
+            if (trackIndex < 0) {
+                throw new RuntimeException("No video track found in " + file);
+            }
+            item.extractor.selectTrack(trackIndex);
+            item.format = item.extractor.getTrackFormat(trackIndex);
+        } catch (IOException ioe) {
+            item.release(null);
+            throw ioe;
+        } catch (RuntimeException re) {
+            item.release(null);
+            throw re;
+        }
+        item.durationUsec = item.format.containsKey(MediaFormat.KEY_DURATION) ?
+                item.format.getLong(MediaFormat.KEY_DURATION) : 0;
+        item.firstPtsUsec = Math.max(item.extractor.getSampleTime(), 0);
+        return item;
+    }
+
+    /**
+     * Returns true if a decoder running the first format can take the second in-band.
+     */
+    private static boolean canSplice(MediaFormat current, MediaFormat next) {
+        return current.getString(MediaFormat.KEY_MIME).equals(next.getString(MediaFormat.KEY_MIME)) &&
+                current.getInteger(MediaFormat.KEY_WIDTH) == next.getInteger(MediaFormat.KEY_WIDTH) &&
+                current.getInteger(MediaFormat.KEY_HEIGHT) == next.getInteger(MediaFormat.KEY_HEIGHT);
+    }
+
+    /**
+     * Opens the next clip, and if needed gets its decoder ready, on a background thread.
+     */
+    private void startPreroll(final File file, final MediaFormat currentFormat) {
+        synchronized (mPrerollLock) {
+            mPrerolled = null;
+            mPrerollError = null;
+        }
+        mPrerollThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Item item = null;
+                try {
+                    long startNsec = System.nanoTime();
+                    item = openItem(file);
+                    item.splice = currentFormat != null && canSplice(currentFormat, item.format);
+                    if (!item.splice) {
+                        prerollDecoder(item);
+                    }
+                    if (DEBUG) Log.d(TAG, "prerolled " + file + " in " +
+                            ((System.nanoTime() - startNsec) / 1000000) + " ms");
+                    synchronized (mPrerollLock) {
+                        mPrerolled = item;
+                    }
+                } catch (Exception ex) {
+                    Log.w(TAG, "preroll of " + file + " failed", ex);
+                    if (item != null) {
+                        item.release(mDecoderPool);
+                    }
+                    synchronized (mPrerollLock) {
+                        mPrerollError = (ex instanceof RuntimeException) ?
+                                (RuntimeException) ex : new RuntimeException(ex);
+                    }
+                }
+            }
+        }, "PlaylistPlayer-preroll");
+        mPrerollThread.start();
+    }
+
+    /**
+     * Gets a decoder ready for a clip that can't share the current one.  On API 23+ it's
+     * started on the placeholder Surface and fed until its first frame comes out, which
+     * it holds.  Before that it's only created, and configured at the switch.
+     */
+    private void prerollDecoder(Item item) throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            if (mDecoderPool == null) {
+                item.decoder = MediaCodec.createDecoderByType(
+                        item.format.getString(MediaFormat.KEY_MIME));
+            }
+            // With a pool, the current decoder goes back to it at the switch and is
+            // configured again from there, which is about as quick.
+            return;
+        }
+        item.decoder = createDecoder(item.format, getPrerollSurface());
+        item.configured = true;
+        MediaCodec decoder = item.decoder;
+        ByteBuffer[] inputBuffers = decoder.getInputBuffers();
+        while (item.heldIndex < 0 && !mIsStopRequested) {
+            if (!item.inputDone) {
+                int inputBufIndex = decoder.dequeueInputBuffer(TIMEOUT_USEC);
+                if (inputBufIndex >= 0) {
+                    int chunkSize = item.extractor.readSampleData(inputBuffers[inputBufIndex], 0);
+                    if (chunkSize < 0) {
+                        // Too short to produce a frame before its end.
+                        decoder.queueInputBuffer(inputBufIndex, 0, 0, 0L,
+                                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        item.inputDone = true;
+                    } else {
+                        item.fedUsec = item.extractor.getSampleTime();
+                        decoder.queueInputBuffer(inputBufIndex, 0, chunkSize, item.fedUsec, 0);
+                        item.extractor.advance();
+                    }
+                }
+            }
+            int decoderStatus = decoder.dequeueOutputBuffer(item.heldInfo, TIMEOUT_USEC);
+            if (decoderStatus >= 0) {
+                if (item.heldInfo.size == 0 &&
+                        (item.heldInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0) {
+                    decoder.releaseOutputBuffer(decoderStatus, false);
+                } else {
+                    // The first frame, or EOS; either way it waits for the switch.
+                    item.heldIndex = decoderStatus;
+                    if (item.heldInfo.size != 0) {
+                        item.firstPtsUsec = item.heldInfo.presentationTimeUs;
+                    }
+                }
+            }
+        }
+    }
+
+    private synchronized Surface getPrerollSurface() {
+        if (mPrerollSurface == null) {
+            mPrerollTexture = new SurfaceTexture(0);
+            mPrerollSurface = new Surface(mPrerollTexture);
+        }
+        return mPrerollSurface;
+    }
+
+    /**
+     * Takes the prerolled clip, if any.
+     *
+     * @param rethrow If true, a preroll failure is thrown here; otherwise it's dropped
+     *     (it was already logged) and null is returned.
+     */
+    private Item awaitPreroll(boolean rethrow) {
+        Thread thread = mPrerollThread;
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            mPrerollThread = null;
+        }
+        synchronized (mPrerollLock) {
+            Item item = mPrerolled;
+            mPrerolled = null;
+            if (item == null && mPrerollError != null && rethrow) {
+                RuntimeException re = mPrerollError;
+                mPrerollError = null;
+                throw re;
+            }
+            return item;
+        }
+    }
+
+    /**
+     * Queues csd-0, csd-1, ... as codec config, the first in the input buffer we already
+     * hold.
+     */
+    private static void queueCodecConfig(MediaCodec decoder, int firstIndex, MediaFormat format) {
+        ByteBuffer[] inputBuffers = decoder.getInputBuffers();
+        int index = firstIndex;
+        for (int i = 0; format.containsKey("csd-" + i); i++) {
+            if (index < 0) {
+                index = decoder.dequeueInputBuffer(-1);
+            }
+            ByteBuffer csd = format.getByteBuffer("csd-" + i).duplicate();
+            ByteBuffer inputBuf = inputBuffers[index];
+            inputBuf.clear();
+            int size = csd.remaining();
+            inputBuf.put(csd);
+            decoder.queueInputBuffer(index, 0, size, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+            index = -1;
+        }
+        if (index >= 0) {
+            // No codec-specific data; give the buffer back empty.
+            decoder.queueInputBuffer(index, 0, 0, 0, 0);
+        }
+    }
+}
@@ -0,0 +1,465 @@
+package org.learn.test.grafika.component;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import org.learn.test.grafika.GrafikaMainActivity;
+import org.learn.test.grafika.util.LatencyHistogram;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Created by zzr on 2018/02/15.
+ * <p>
+ * Reads samples ahead of the decoder on a thread of its own, so a slow read (SD card,
+ * FUSE-backed storage, a cold page cache) stalls this thread instead of the decode loop.
+ * Samples go into a fixed pool of direct ByteBuffers, each big enough for the track's
+ * largest sample; the pool's total size is the byte budget.  The decode loop copies from
+ * the pool into codec input buffers.
+ * <p>
+ * The sample-reading methods mirror MediaExtractor's, so the decode loop doesn't change:
+ * readSampleData() and the getSample*() calls look at the oldest buffered sample, and
+ * advance() drops it.  seekTo() throws away what's buffered and restarts reading from the
+ * new position; it waits for an in-flight read to finish, but no longer.  A budget of zero
+ * turns the stage off and every call goes straight to the extractor, and so does
+ * setReadAheadEnabled(false) for as long as it lasts -- for keyframe-only playback, which
+ * seeks after every sample and would throw away most of what was read ahead.
+ * <p>
+ * If the decode loop finds nothing buffered it waits, and that counts as an underrun; the
+ * wait times go into a histogram.  Together with the depth (how much was buffered each
+ * time a sample was taken) that shows whether the budget suits the storage.  The reading
+ * methods must be called from one thread at a time; the stats can be read from any.
+ */
+public class PrefetchingExtractor {
+    private static final String TAG = GrafikaMainActivity.TAG;
+    private static final boolean DEBUG = false;
+
+    public static final long DEFAULT_BUDGET_BYTES = 4 * 1024 * 1024;
+    private static final int MIN_BUFFERS = 2;
+
+    private final MediaExtractor mExtractor;
+    private final int mBufferSize;
+    private final int mBufferCount;
+
+    // Held for every extractor call once the reader is running.
+    private final Object mExtractorLock = new Object();
+
+    // The rest is guarded by "this".
+    private final ArrayList<Sample> mFree = new ArrayList<Sample>();
+    private final ArrayDeque<Sample> mQueue = new ArrayDeque<Sample>();
+    private int mAllocated;
+    private long mQueuedBytes;
+    private int mGeneration;
+    private boolean mEos;
+    private boolean mPaused;
+    private volatile boolean mDirect;   // reads go straight to the extractor
+    private boolean mQuit;
+    private RuntimeException mReadError;
+    private Thread mThread;
+
+    // Stats.
+    private volatile long mUnderruns;
+    private volatile long mSamplesTaken;
+    private volatile long mMinDepthBytes = Long.MAX_VALUE;
+    private final LatencyHistogram mStalls = new LatencyHistogram();
+    private final LatencyHistogram mDepthSamples = new LatencyHistogram();
+
+    /**
+     * A buffered sample.
+     */
+    private static class Sample {
+        final ByteBuffer data;
+        int size;
+        long ptsUsec;
+        int flags;
+        int trackIndex;
+
+        Sample(int capacity) {
+            data = ByteBuffer.allocateDirect(capacity);
+        }
+    }
+
+    /**
+     * @param extractor Extractor with the track selected and positioned.  Don't touch it
+     *     directly until {@link #release()} (or {@link #pause()}).
+     * @param format The track's format, for the largest sample size.
+     * @param budgetBytes Memory for buffered samples, or 0 to read directly.
+     */
+    public PrefetchingExtractor(MediaExtractor extractor, MediaFormat format, long budgetBytes) {
+        mExtractor = extractor;
+        mBufferSize = getMaxSampleSize(format);
+        mBufferCount = (budgetBytes <= 0) ? 0 :
+                (int) Math.max(MIN_BUFFERS, budgetBytes / mBufferSize);
+        if (mBufferCount > 0) {
+            Log.d(TAG, "read-ahead: " + mBufferCount + " buffers of " + mBufferSize + " bytes");
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    readLoop();
+                }
+            }, "MoviePlayer-reader");
+            mThread.start();
+        }
+    }
+
+    /**
+     * Returns an upper bound on sample size.  Extractors usually report the real maximum;
+     * otherwise, assume a compressed frame is no bigger than a raw 4:2:0 one.
+     */
+    private static int getMaxSampleSize(MediaFormat format) {
+        if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+            int size = format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
+            if (size > 0) {
+                return size;
+            }
+        }
+        return format.getInteger(MediaFormat.KEY_WIDTH) *
+                format.getInteger(MediaFormat.KEY_HEIGHT) * 3 / 2;
+    }
+
+    /**
+     * Stops the reader.  The extractor is left where the reader had got to.
+     */
+    public void release() {
+        if (mThread == null) {
+            return;
+        }
+        synchronized (this) {
+            mQuit = true;
+            notifyAll();
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+        if (DEBUG) Log.d(TAG, "read-ahead: " + mSamplesTaken + " samples, " + mUnderruns +
+                " underruns, p99 stall " + mStalls.getPercentileUsec(99) + " us");
+    }
+
+    private void readLoop() {
+        while (true) {
+            Sample sample;
+            int generation;
+            synchronized (this) {
+                while (!mQuit && (mPaused || mDirect || mEos || mReadError != null ||
+                        (mFree.isEmpty() && mAllocated == mBufferCount))) {
+                    waitQuietly();
+                }
+                if (mQuit) {
+                    return;
+                }
+                if (!mFree.isEmpty()) {
+                    sample = mFree.remove(mFree.size() - 1);
+                } else {
+                    sample = null;
+                    mAllocated++;
+                }
+            }
+            if (sample == null) {
+                sample = new Sample(mBufferSize);
+            }
+
+            boolean eos;
+            try {
+                synchronized (mExtractorLock) {
+                    // Checked under the extractor lock, so a seek can't slip in between
+                    // this and the read.
+                    synchronized (this) {
+                        if (mPaused || mDirect || mEos || mQuit) {
+                            mFree.add(sample);
+                            continue;
+                        }
+                        generation = mGeneration;
+                    }
+                    sample.size = mExtractor.readSampleData(sample.data, 0);
+                    eos = sample.size < 0;
+                    if (!eos) {
+                        sample.ptsUsec = mExtractor.getSampleTime();
+                        sample.flags = mExtractor.getSampleFlags();
+                        sample.trackIndex = mExtractor.getSampleTrackIndex();
+                        mExtractor.advance();
+                    }
+                }
+            } catch (RuntimeException re) {
+                Log.w(TAG, "read-ahead: read failed", re);
+                synchronized (this) {
+                    mFree.add(sample);
+                    mReadError = re;
+                    notifyAll();
+                }
+                continue;
+            }
+
+            synchronized (this) {
+                if (generation != mGeneration) {
+                    // A seek came in while we were reading; this sample is stale.
+                    mFree.add(sample);
+                } else if (eos) {
+                    mFree.add(sample);
+                    mEos = true;
+                } else {
+                    mQueue.addLast(sample);
+                    mQueuedBytes += sample.size;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns the oldest buffered sample, waiting for one if need be, or null at the end
+     * of the stream.
+     */
+    private synchronized Sample peek() {
+        if (mQueue.isEmpty() && !mEos) {
+            if (mReadError != null) {
+                throw mReadError;
+            }
+            long startNsec = System.nanoTime();
+            while (mQueue.isEmpty() && !mEos && mReadError == null) {
+                waitQuietly();
+            }
+            mUnderruns++;
+            mStalls.record((System.nanoTime() - startNsec) / 1000);
+            if (mReadError != null && mQueue.isEmpty()) {
+                throw mReadError;
+            }
+        }
+        return mQueue.peekFirst();
+    }
+
+    /**
+     * Copies the current sample into the buffer at the offset, like
+     * MediaExtractor.readSampleData().
+     *
+     * @return the sample size, or -1 at the end of the stream.
+     */
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        if (mThread == null || mDirect) {
+            return mExtractor.readSampleData(buffer, offset);
+        }
+        Sample sample = peek();
+        if (sample == null) {
+            return -1;
+        }
+        ByteBuffer src = sample.data.duplicate();
+        src.clear();
+        src.limit(sample.size);
+        buffer.clear();
+        buffer.position(offset);
+        buffer.put(src);
+        return sample.size;
+    }
+
+    /**
+     * Returns the current sample's pts, or -1 at the end of the stream.
+     */
+    public long getSampleTime() {
+        if (mThread == null || mDirect) {
+            return mExtractor.getSampleTime();
+        }
+        Sample sample = peek();
+        return (sample == null) ? -1 : sample.ptsUsec;
+    }
+
+    /**
+     * Returns the current sample's MediaExtractor.SAMPLE_FLAG_* flags, or -1 at the end of
+     * the stream.
+     */
+    public int getSampleFlags() {
+        if (mThread == null || mDirect) {
+            return mExtractor.getSampleFlags();
+        }
+        Sample sample = peek();
+        return (sample == null) ? -1 : sample.flags;
+    }
+
+    /**
+     * Returns the current sample's track, or -1 at the end of the stream.
+     */
+    public int getSampleTrackIndex() {
+        if (mThread == null || mDirect) {
+            return mExtractor.getSampleTrackIndex();
+        }
+        Sample sample = peek();
+        return (sample == null) ? -1 : sample.trackIndex;
+    }
+
+    /**
+     * Moves on to the next sample.
+     *
+     * @return false at the end of the stream.
+     */
+    public boolean advance() {
+        if (mThread == null || mDirect) {
+            return mExtractor.advance();
+        }
+        synchronized (this) {
+            Sample sample = peek();
+            if (sample == null) {
+                return false;
+            }
+            long depth = mQueuedBytes;
+            if (depth < mMinDepthBytes) {
+                mMinDepthBytes = depth;
+            }
+            mDepthSamples.record(mQueue.size());
+            mSamplesTaken++;
+            mQueue.removeFirst();
+            mQueuedBytes -= sample.size;
+            mFree.add(sample);
+            notifyAll();
+            return !mQueue.isEmpty() || !mEos;
+        }
+    }
+
+    /**
+     * Discards the buffered samples and moves the extractor, like MediaExtractor.seekTo().
+     * Reading ahead resumes from the new position, unless it's been turned off with
+     * setReadAheadEnabled().
+     */
+    public void seekTo(long timeUs, int mode) {
+        if (mThread == null || mDirect) {
+            mExtractor.seekTo(timeUs, mode);
+            return;
+        }
+        synchronized (mExtractorLock) {
+            synchronized (this) {
+                discardLocked();
+            }
+            mExtractor.seekTo(timeUs, mode);
+            synchronized (this) {
+                mPaused = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Discards the buffered samples and stops reading ahead, so the caller can use the
+     * extractor directly (from this thread).  The next seekTo() resumes.
+     *
+     * @return the extractor.
+     */
+    public MediaExtractor pause() {
+        if (mThread != null) {
+            synchronized (mExtractorLock) {
+                synchronized (this) {
+                    discardLocked();
+                    mPaused = true;
+                }
+            }
+        }
+        return mExtractor;
+    }
+
+    /**
+     * Turns reading ahead off or on.  While it's off the buffered samples are discarded and
+     * every call goes straight to the extractor, seeks included.  The extractor is moved
+     * back to the first discarded sample, so the caller carries on where it was.  Turning
+     * read-ahead back on resumes reading from wherever the extractor is.  Call from the
+     * decode thread.
+     */
+    public void setReadAheadEnabled(boolean enabled) {
+        if (mThread == null || enabled == !mDirect) {
+            return;
+        }
+        if (!enabled) {
+            synchronized (mExtractorLock) {
+                long resumeUsec;
+                synchronized (this) {
+                    resumeUsec = mQueue.isEmpty() ? -1 : mQueue.peekFirst().ptsUsec;
+                    discardLocked();
+                    mDirect = true;
+                }
+                if (resumeUsec >= 0) {
+                    rewindTo(resumeUsec);
+                }
+            }
+        } else {
+            synchronized (this) {
+                mDirect = false;
+                mPaused = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Puts the extractor back on the sample with the given pts, which it has read past.
+     * Extractors only seek to sync samples, so we seek to the one before and step forward.
+     */
+    private void rewindTo(long ptsUsec) {
+        mExtractor.seekTo(ptsUsec, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        long sampleUsec;
+        while ((sampleUsec = mExtractor.getSampleTime()) >= 0 && sampleUsec != ptsUsec) {
+            mExtractor.advance();
+        }
+        if (sampleUsec < 0) {
+            // Not there after all (shouldn't happen); settle for the sync sample.
+            Log.w(TAG, "read-ahead: couldn't find sample at " + ptsUsec);
+            mExtractor.seekTo(ptsUsec, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        }
+    }
+
+    private void discardLocked() {
+        mGeneration++;
+        mFree.addAll(mQueue);
+        mQueue.clear();
+        mQueuedBytes = 0;
+        mEos = false;
+        mReadError = null;
+        notifyAll();
+    }
+
+    private void waitQuietly() {
+        try {
+            wait();
+        } catch (InterruptedException ie) { /* not expected */ }
+    }
+
+    /** True if samples are being read ahead, false if reads go straight to the extractor. */
+    public boolean isReadingAhead() {
+        return mBufferCount > 0;
+    }
+
+    /** Bytes currently buffered. */
+    public synchronized long getDepthBytes() {
+        return mQueuedBytes;
+    }
+
+    /** Samples currently buffered. */
+    public synchronized int getDepthSamples() {
+        return mQueue.size();
+    }
+
+    /** The fewest bytes buffered when a sample was taken; a small number means a near miss. */
+    public long getMinDepthBytes() {
+        long min = mMinDepthBytes;
+        return (min == Long.MAX_VALUE) ? 0 : min;
+    }
+
+    /** How many samples were buffered each time one was taken (counts, not usec). */
+    public LatencyHistogram getDepthHistogram() {
+        return mDepthSamples;
+    }
+
+    /** Times the decode loop found nothing buffered and had to wait. */
+    public long getUnderrunCount() {
+        return mUnderruns;
+    }
+
+    /** How long each underrun waited, in usec. */
+    public LatencyHistogram getStallHistogram() {
+        return mStalls;
+    }
+
+    public long getSamplesTaken() {
+        return mSamplesTaken;
+    }
+}
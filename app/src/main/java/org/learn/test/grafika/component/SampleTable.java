@@ -0,0 +1,147 @@
+package org.learn.test.grafika.component;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import org.learn.test.grafika.GrafikaMainActivity;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Created by zzr on 2018/02/05.
+ * <p>
+ * Every sample of one track, in decode order: pts, size, and whether it's a sync sample.
+ * Built by walking the whole track with a MediaExtractor once; after that a seek is a
+ * binary search instead of a trial-and-error walk through the file.
+ * <p>
+ * With B-frames the pts in decode order aren't sorted, so we also keep the sample
+ * indices sorted by pts for lookups by time.  Immutable once built.
+ */
+public class SampleTable {
+    private static final String TAG = GrafikaMainActivity.TAG;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int mCount;
+    private final long[] mPtsUsec;
+    private final int[] mSize;
+    private final boolean[] mSync;
+    private final int[] mByPts;
+
+    SampleTable(long[] ptsUsec, int[] size, boolean[] sync, int count) {
+        mCount = count;
+        mPtsUsec = ptsUsec;
+        mSize = size;
+        mSync = sync;
+        mByPts = sortByPts(ptsUsec, count);
+    }
+
+    /**
+     * Walks the extractor's selected track from the start to the end, recording every
+     * sample.  Leaves the extractor at the end of the track.
+     */
+    public static SampleTable build(MediaExtractor extractor, MediaFormat format) {
+        long startNsec = System.nanoTime();
+        int bufSize;
+        if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+            bufSize = format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
+        } else {
+            // Worst case for a sane video codec is less than one uncompressed frame.
+            bufSize = format.getInteger(MediaFormat.KEY_WIDTH) *
+                    format.getInteger(MediaFormat.KEY_HEIGHT) * 3 / 2;
+        }
+        ByteBuffer scratch = ByteBuffer.allocateDirect(bufSize);
+
+        long[] pts = new long[INITIAL_CAPACITY];
+        int[] size = new int[INITIAL_CAPACITY];
+        boolean[] sync = new boolean[INITIAL_CAPACITY];
+        int count = 0;
+        extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        while (true) {
+            int chunkSize = extractor.readSampleData(scratch, 0);
+            if (chunkSize < 0) {
+                break;
+            }
+            if (count == pts.length) {
+                pts = Arrays.copyOf(pts, count * 2);
+                size = Arrays.copyOf(size, count * 2);
+                sync = Arrays.copyOf(sync, count * 2);
+            }
+            pts[count] = extractor.getSampleTime();
+            size[count] = chunkSize;
+            sync[count] = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+            count++;
+            extractor.advance();
+        }
+        Log.d(TAG, "SampleTable: " + count + " samples in " +
+                ((System.nanoTime() - startNsec) / 1000000) + " ms");
+        return new SampleTable(pts, size, sync, count);
+    }
+
+    private static int[] sortByPts(final long[] ptsUsec, int count) {
+        // Decode order is nearly pts order, so an insertion sort is close to linear.
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            int j = i;
+            while (j > 0 && ptsUsec[order[j - 1]] > ptsUsec[i]) {
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = i;
+        }
+        return order;
+    }
+
+    public int getSampleCount() {
+        return mCount;
+    }
+
+    public long getPtsUsec(int index) {
+        return mPtsUsec[index];
+    }
+
+    public int getSize(int index) {
+        return mSize[index];
+    }
+
+    public boolean isSync(int index) {
+        return mSync[index];
+    }
+
+    /**
+     * Returns the index of the frame on screen at the given time: the one with the
+     * largest pts not after it.  Times before the first frame map to the first frame.
+     * Returns -1 if the table is empty.
+     */
+    public int findFrame(long timeUsec) {
+        if (mCount == 0) {
+            return -1;
+        }
+        int lo = 0;
+        int hi = mCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (mPtsUsec[mByPts[mid]] <= timeUsec) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return mByPts[lo];
+    }
+
+    /**
+     * Returns the index of the last sync sample at or before the given sample, in decode
+     * order.  Decoding from there reaches the given sample.  Returns 0 if the file has no
+     * sync flags at all.
+     */
+    public int findSyncBefore(int index) {
+        for (int i = index; i >= 0; i--) {
+            if (mSync[i]) {
+                return i;
+            }
+        }
+        return 0;
+    }
+}
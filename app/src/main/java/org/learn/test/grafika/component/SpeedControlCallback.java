@@ -3,6 +3,7 @@ package org.learn.test.grafika.component;
 import android.util.Log;
 
 import org.learn.test.grafika.GrafikaMainActivity;
+import org.learn.test.grafika.util.FramePacer;
 
 /**
  * Created by zzr on 2017/11/14.
@@ -22,6 +23,17 @@ public class SpeedControlCallback implements MoviePlayer.FrameCallback {
         mFixedFrameDurationUsec = ONE_MILLION / fps;
     }
 
+    private PlaybackMetrics mMetrics;
+
+    /**
+     * Records how late each frame woke up into the metrics.  Must be called before
+     * playback thread starts.
+     */
+    public void setMetrics(PlaybackMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    private final FramePacer mPacer = new FramePacer();
     private long mPrevPresentUsec;
     private long mPrevMonotonicUsec;
     private boolean mLoopReset;
@@ -73,34 +85,16 @@ public class SpeedControlCallback implements MoviePlayer.FrameCallback {
             }
 
             long desiredUsec = mPrevMonotonicUsec + frameDelta;  // when we want to wake up
-            long nowUsec = System.nanoTime() / 1000;
-            while (nowUsec < (desiredUsec - 100) /*&& mState == RUNNING*/) {
-                // Sleep until it's time to wake up.  To be responsive to "stop" commands
-                // we're going to wake up every half a second even if the sleep is supposed
-                // to be longer (which should be rare).  The alternative would be
-                // to interrupt the thread, but that requires more work.
-
-                // The precision of the sleep call varies widely from one device to another;
-                // we may wake early or late.  Different devices will have a minimum possible
-                // sleep time. If we're within 100us of the target time, we'll probably
-                // overshoot if we try to sleep, so just go ahead and continue on.
-                long sleepTimeUsec = desiredUsec - nowUsec;
-                //微秒单位
-                if (sleepTimeUsec > 500000) {
-                    sleepTimeUsec = 500000; //0.5s
-                }
-                try {
-                    if (CHECK_SLEEP_TIME) {
-                        long startNsec = System.nanoTime();
-                        Thread.sleep(sleepTimeUsec / 1000, (int) (sleepTimeUsec % 1000) * 1000);
-                        long actualSleepNsec = System.nanoTime() - startNsec;
-                        Log.d(TAG, "sleep=" + sleepTimeUsec + " actual=" + (actualSleepNsec/1000) +
-                                " diff=" + (Math.abs(actualSleepNsec / 1000 - sleepTimeUsec)) + " (usec)");
-                    } else {
-                        Thread.sleep(sleepTimeUsec / 1000, (int) (sleepTimeUsec % 1000) * 1000);
-                    }
-                } catch (InterruptedException ie) {}
-                nowUsec = System.nanoTime() / 1000;
+            // The pacer sleeps until just short of the deadline and spins the rest, so we
+            // don't wake early or hundreds of usec late like a bare Thread.sleep().
+            long wakeNsec = mPacer.sleepUntil(desiredUsec * 1000);
+            if (CHECK_SLEEP_TIME) {
+                Log.d(TAG, "wake error=" + (wakeNsec / 1000 - desiredUsec) + " guard=" +
+                        (mPacer.getGuardNsec() / 1000) + " mean=" +
+                        (mPacer.getMeanErrorNsec() / 1000) + " (usec)");
+            }
+            if (mMetrics != null) {
+                mMetrics.onPaced(desiredUsec * 1000, wakeNsec);
             }
 
             // Advance times using calculated time values, not the post-sleep monotonic
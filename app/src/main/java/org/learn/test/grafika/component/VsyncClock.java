@@ -0,0 +1,92 @@
+package org.learn.test.grafika.component;
+
+import android.view.Choreographer;
+
+/**
+ * Created by zzr on 2018/02/09.
+ * <p>
+ * Tracks the display's vsync from Choreographer, so other threads can work out when
+ * upcoming refreshes will happen.  Choreographer only delivers to a Looper thread, so
+ * start() and stop() must be called on one (normally the UI thread); the getters can be
+ * called from anywhere.
+ * <p>
+ * The period starts out from the display's nominal refresh rate and is refined from the
+ * intervals between callbacks.  Intervals spanning skipped frames are divided down, so a
+ * UI thread hiccup doesn't throw it off.  Times are System.nanoTime().
+ */
+public class VsyncClock implements Choreographer.FrameCallback {
+    private long mLastVsyncNsec;
+    private long mPeriodNsec;
+    private boolean mRunning;
+
+    /**
+     * @param refreshRate The display's refresh rate, from Display.getRefreshRate().
+     */
+    public VsyncClock(float refreshRate) {
+        mPeriodNsec = (long) (1000000000L / refreshRate);
+    }
+
+    /** Starts listening for vsync.  Call on a Looper thread. */
+    public void start() {
+        synchronized (this) {
+            mRunning = true;
+        }
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    /** Stops listening.  Call on the thread that called start(). */
+    public void stop() {
+        synchronized (this) {
+            mRunning = false;
+        }
+        Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        synchronized (this) {
+            if (!mRunning) {
+                return;
+            }
+            if (mLastVsyncNsec != 0) {
+                long delta = frameTimeNanos - mLastVsyncNsec;
+                long frames = (delta + mPeriodNsec / 2) / mPeriodNsec;
+                if (frames >= 1 && frames <= 4) {
+                    // Move 1/16th of the way toward the measured period.
+                    mPeriodNsec += (delta / frames - mPeriodNsec) / 16;
+                }
+            }
+            mLastVsyncNsec = frameTimeNanos;
+        }
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    public synchronized long getPeriodNsec() {
+        return mPeriodNsec;
+    }
+
+    /**
+     * Returns true once at least one vsync has been seen.
+     */
+    public synchronized boolean isValid() {
+        return mLastVsyncNsec != 0;
+    }
+
+    /**
+     * Returns the first vsync at or after the given time.
+     */
+    public synchronized long getVsyncAtOrAfter(long timeNsec) {
+        long delta = timeNsec - mLastVsyncNsec;
+        long frames = (delta <= 0) ? 0 : (delta + mPeriodNsec - 1) / mPeriodNsec;
+        return mLastVsyncNsec + frames * mPeriodNsec;
+    }
+
+    /**
+     * Returns the vsync closest to the given time.
+     */
+    public synchronized long getNearestVsync(long timeNsec) {
+        long delta = timeNsec - mLastVsyncNsec;
+        long frames = Math.round((double) delta / mPeriodNsec);
+        return mLastVsyncNsec + frames * mPeriodNsec;
+    }
+}
@@ -0,0 +1,152 @@
+package org.learn.test.grafika.component;
+
+import android.media.MediaCodec;
+import android.os.Build;
+import android.util.Log;
+
+import org.learn.test.grafika.GrafikaMainActivity;
+
+/**
+ * Created by zzr on 2018/02/09.
+ * <p>
+ * Releases decoded frames to their Surface lined up with the display's vsync, in place of
+ * SpeedControlCallback's sleep-then-release.  Each frame's pts is mapped to a target time,
+ * snapped to the nearest vsync from a {@link VsyncClock}, and handed to
+ * releaseOutputBuffer(index, renderTimestampNs), so the compositor shows it on exactly that
+ * refresh.  We only sleep to keep from queueing too far ahead.
+ * <p>
+ * A frame that missed its vsync by less than a refresh period goes out on the next one and
+ * counts as late; one that missed by more is dropped.  If playback falls more than a second
+ * behind (say the process was stalled), the timeline is shifted instead of dropping
+ * everything in between.  The counts can be read from any thread.
+ * <p>
+ * Before API 21 there's no render timestamp, so we sleep until the target vsync and
+ * release normally.
+ */
+public class VsyncPresenter {
+    private static final String TAG = GrafikaMainActivity.TAG;
+    private static final boolean DEBUG = false;
+
+    // How many refreshes ahead of now the first frame is scheduled, and how far ahead of
+    // its vsync we let a frame be queued.
+    private static final int LEAD_FRAMES = 2;
+    private static final long REBASE_LATENESS_NSEC = 1000000000L;
+    private static final long MAX_SLEEP_NSEC = 500000000L;
+
+    private final VsyncClock mClock;
+    private boolean mBaseValid;
+    private long mBaseNsec;
+
+    private volatile long mFramesPresented;
+    private volatile long mFramesLate;
+    private volatile long mFramesDropped;
+    private PlaybackMetrics mMetrics;
+
+    public VsyncPresenter(VsyncClock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Records lateness and rendered/dropped frames into the metrics.  Lateness is measured
+     * from the vsync a frame was meant for to the one it was released for (before API 21,
+     * to when it was released).  Must be called before playback starts.
+     */
+    public void setMetrics(PlaybackMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Forgets the pts-to-clock mapping; the next frame starts a new timeline.  Call after
+     * a seek or a loop.
+     */
+    public void reset() {
+        mBaseValid = false;
+    }
+
+    /**
+     * Releases the decoder's output buffer, rendered at its vsync or dropped.  May sleep
+     * until shortly before that vsync.
+     */
+    public void present(MediaCodec decoder, int index, long ptsUsec) {
+        long periodNsec = mClock.getPeriodNsec();
+        long nowNsec = System.nanoTime();
+        if (!mBaseValid) {
+            mBaseNsec = mClock.getVsyncAtOrAfter(nowNsec + LEAD_FRAMES * periodNsec) -
+                    ptsUsec * 1000;
+            mBaseValid = true;
+        }
+
+        long targetNsec = mClock.getNearestVsync(mBaseNsec + ptsUsec * 1000);
+        // The compositor needs the buffer a bit before the vsync it's shown on.
+        long latchNsec = targetNsec - periodNsec / 2;
+        long wantedLatchNsec = latchNsec;
+        if (latchNsec < nowNsec) {
+            long latenessNsec = nowNsec - latchNsec;
+            if (latenessNsec > REBASE_LATENESS_NSEC) {
+                if (DEBUG) Log.d(TAG, "VsyncPresenter: " + (latenessNsec / 1000000) +
+                        " ms behind, shifting timeline");
+                mBaseNsec += latenessNsec;
+                targetNsec = mClock.getVsyncAtOrAfter(nowNsec + periodNsec);
+            } else if (latenessNsec > periodNsec) {
+                decoder.releaseOutputBuffer(index, false);
+                mFramesDropped++;
+                if (mMetrics != null) {
+                    mMetrics.onDropped();
+                }
+                return;
+            } else {
+                targetNsec = mClock.getVsyncAtOrAfter(nowNsec + periodNsec / 2);
+                mFramesLate++;
+            }
+            latchNsec = targetNsec - periodNsec / 2;
+        }
+
+        // Don't get more than a couple of frames ahead of the display.
+        long wakeNsec = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) ?
+                latchNsec - LEAD_FRAMES * periodNsec : latchNsec;
+        sleepUntil(wakeNsec);
+
+        long releasedNsec;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            decoder.releaseOutputBuffer(index, latchNsec);
+            releasedNsec = latchNsec;
+        } else {
+            releasedNsec = System.nanoTime();
+            decoder.releaseOutputBuffer(index, true);
+        }
+        mFramesPresented++;
+        if (mMetrics != null) {
+            mMetrics.onPaced(wantedLatchNsec, releasedNsec);
+            mMetrics.onRendered();
+        }
+    }
+
+    private static void sleepUntil(long wakeNsec) {
+        long sleepNsec;
+        while ((sleepNsec = wakeNsec - System.nanoTime()) > 0) {
+            // Wake at least every half second, like SpeedControlCallback, so a stop request
+            // isn't held up by a long pts gap.
+            sleepNsec = Math.min(sleepNsec, MAX_SLEEP_NSEC);
+            try {
+                Thread.sleep(sleepNsec / 1000000, (int) (sleepNsec % 1000000));
+            } catch (InterruptedException ie) {
+                return;
+            }
+        }
+    }
+
+    /** Frames released to the Surface, including late ones. */
+    public long getFramesPresented() {
+        return mFramesPresented;
+    }
+
+    /** Frames that missed their vsync and were shown on a later one. */
+    public long getFramesLate() {
+        return mFramesLate;
+    }
+
+    /** Frames that were too late to show at all. */
+    public long getFramesDropped() {
+        return mFramesDropped;
+    }
+}
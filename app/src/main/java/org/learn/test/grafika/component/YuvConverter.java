@@ -0,0 +1,95 @@
+package org.learn.test.grafika.component;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Created by zzr on 2018/02/17.
+ * <p>
+ * YUV 4:2:0 to ARGB conversion for CpuFrame, with a pool of output arrays.  There's at most
+ * one array per frame in flight, so after the first few frames nothing is allocated; an
+ * array only gets replaced if the picture grows.
+ * <p>
+ * Conversion is BT.601 limited range in fixed point, which is what SD and most phone-made
+ * video use.  It reads the planes in place with absolute gets, so any row and pixel stride
+ * works, including the interleaved chroma most hardware decoders produce.
+ */
+class YuvConverter {
+    private final ArrayList<int[]> mFree = new ArrayList<int[]>();
+    private int mMinLength;
+
+    /**
+     * @param pixelCount Expected picture size.
+     */
+    YuvConverter(int pixelCount) {
+        mMinLength = pixelCount;
+    }
+
+    /**
+     * Returns an array with room for at least this many pixels.
+     */
+    synchronized int[] acquire(int pixelCount) {
+        for (int i = mFree.size() - 1; i >= 0; i--) {
+            if (mFree.get(i).length >= pixelCount) {
+                return mFree.remove(i);
+            }
+        }
+        if (pixelCount > mMinLength) {
+            // The picture got bigger; the arrays we have are no use now.
+            mMinLength = pixelCount;
+            mFree.clear();
+        }
+        return new int[mMinLength];
+    }
+
+    synchronized void release(int[] argb) {
+        if (argb.length >= mMinLength) {
+            mFree.add(argb);
+        }
+    }
+
+    /**
+     * Converts the frame's crop rectangle into argb, row after row.
+     */
+    static void convert(CpuFrame frame, int[] argb) {
+        ByteBuffer yBuf = frame.getPlane(0);
+        ByteBuffer uBuf = frame.getPlane(1);
+        ByteBuffer vBuf = frame.getPlane(2);
+        int yRowStride = frame.getRowStride(0);
+        int yPixelStride = frame.getPixelStride(0);
+        int uRowStride = frame.getRowStride(1);
+        int uPixelStride = frame.getPixelStride(1);
+        int vRowStride = frame.getRowStride(2);
+        int vPixelStride = frame.getPixelStride(2);
+        int left = frame.getCropLeft();
+        int top = frame.getCropTop();
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+
+        int out = 0;
+        for (int row = 0; row < height; row++) {
+            int yRow = (top + row) * yRowStride;
+            int uRow = ((top + row) >> 1) * uRowStride;
+            int vRow = ((top + row) >> 1) * vRowStride;
+            for (int col = 0; col < width; col++) {
+                int x = left + col;
+                int y = (yBuf.get(yRow + x * yPixelStride) & 0xff) - 16;
+                int u = (uBuf.get(uRow + (x >> 1) * uPixelStride) & 0xff) - 128;
+                int v = (vBuf.get(vRow + (x >> 1) * vPixelStride) & 0xff) - 128;
+                if (y < 0) {
+                    y = 0;
+                }
+                // 1.164, 1.596, 0.391, 0.813 and 2.018, times 256.
+                int c = 298 * y + 128;
+                int r = (c + 409 * v) >> 8;
+                int g = (c - 100 * u - 208 * v) >> 8;
+                int b = (c + 516 * u) >> 8;
+                argb[out++] = 0xff000000 | (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+            }
+        }
+    }
+
+    private static int clamp(int value) {
+        return (value < 0) ? 0 : (value > 255) ? 255 : value;
+    }
+}
@@ -0,0 +1,134 @@
+package org.learn.test.grafika.util;
+
+/**
+ * Created by zzr on 2018/02/10.
+ * <p>
+ * Waits until a System.nanoTime() deadline more precisely than Thread.sleep() can.
+ * Thread.sleep() wakes late by anything from tens of microseconds to a few milliseconds,
+ * depending on the device and load.  We sleep until a guard band before the deadline, then
+ * yield and finally spin for the rest.
+ * <p>
+ * The guard band is learned as we go: every coarse sleep measures how far the wakeup
+ * overshot, and the guard is kept at the average overshoot plus four times its average
+ * deviation, clamped to [{@link #MIN_GUARD_NSEC}, {@link #MAX_GUARD_NSEC}].  So a device
+ * with a sloppy timer spins a little longer, and one with a tight timer hardly spins at all.
+ * <p>
+ * Pacing error (wakeup minus deadline) is kept in a histogram, in microseconds.  No Android
+ * dependencies, so it runs in plain JVM tests.  Not thread-safe; use one per pacing thread.
+ */
+public class FramePacer {
+    public static final long MIN_GUARD_NSEC = 50000L;
+    public static final long MAX_GUARD_NSEC = 4000000L;
+    private static final long INITIAL_GUARD_NSEC = 1000000L;
+    // Below this much time left we stop yielding and spin.
+    private static final long SPIN_NSEC = 20000L;
+    // Sleeps shorter than this aren't worth it; the overshoot would eat them.
+    private static final long MIN_SLEEP_NSEC = 100000L;
+    // Long waits are broken up so an interrupt is noticed within this time.
+    private static final long MAX_SLEEP_NSEC = 500000000L;
+    // Weight of a new overshoot sample in the running averages: 1/8.
+    private static final int SMOOTHING_SHIFT = 3;
+
+    private long mOvershootNsec = INITIAL_GUARD_NSEC / 2;
+    private long mDeviationNsec = INITIAL_GUARD_NSEC / 8;
+    private long mGuardNsec = INITIAL_GUARD_NSEC;
+
+    private final LatencyHistogram mError = new LatencyHistogram();
+    private long mCount;
+    private long mSumErrorNsec;
+    private long mMaxErrorNsec;
+    private long mMissedCount;
+
+    /**
+     * Returns at, or as soon as possible after, the deadline.  Returns immediately if the
+     * deadline has passed, and early if the thread is interrupted (leaving it interrupted).
+     *
+     * @return The time we actually returned, from System.nanoTime().
+     */
+    public long sleepUntil(long deadlineNsec) {
+        long nowNsec = System.nanoTime();
+        if (nowNsec >= deadlineNsec) {
+            mMissedCount++;
+            record(nowNsec - deadlineNsec);
+            return nowNsec;
+        }
+
+        // Coarse phase.
+        long sleepNsec;
+        while ((sleepNsec = deadlineNsec - mGuardNsec - nowNsec) >= MIN_SLEEP_NSEC) {
+            sleepNsec = Math.min(sleepNsec, MAX_SLEEP_NSEC);
+            try {
+                Thread.sleep(sleepNsec / 1000000, (int) (sleepNsec % 1000000));
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return System.nanoTime();
+            }
+            long wakeNsec = System.nanoTime();
+            learnOvershoot(wakeNsec - nowNsec - sleepNsec);
+            nowNsec = wakeNsec;
+        }
+
+        // Fine phase.
+        while (nowNsec < deadlineNsec) {
+            if (deadlineNsec - nowNsec > SPIN_NSEC) {
+                Thread.yield();
+            }
+            nowNsec = System.nanoTime();
+        }
+        record(nowNsec - deadlineNsec);
+        return nowNsec;
+    }
+
+    private void learnOvershoot(long overshootNsec) {
+        if (overshootNsec < 0) {
+            overshootNsec = 0;
+        }
+        long diff = overshootNsec - mOvershootNsec;
+        mOvershootNsec += diff >> SMOOTHING_SHIFT;
+        mDeviationNsec += (Math.abs(diff) - mDeviationNsec) >> SMOOTHING_SHIFT;
+        long guard = mOvershootNsec + 4 * mDeviationNsec;
+        mGuardNsec = Math.max(MIN_GUARD_NSEC, Math.min(guard, MAX_GUARD_NSEC));
+    }
+
+    private void record(long errorNsec) {
+        mCount++;
+        mSumErrorNsec += errorNsec;
+        if (errorNsec > mMaxErrorNsec) {
+            mMaxErrorNsec = errorNsec;
+        }
+        mError.record(errorNsec / 1000);
+    }
+
+    /** The current guard band: how long before a deadline we stop sleeping. */
+    public long getGuardNsec() {
+        return mGuardNsec;
+    }
+
+    /** The running average of how late Thread.sleep() wakes up. */
+    public long getSleepOvershootNsec() {
+        return mOvershootNsec;
+    }
+
+    /** How late each sleepUntil() returned, in microseconds. */
+    public LatencyHistogram getErrorHistogram() {
+        return mError;
+    }
+
+    /** Number of sleepUntil() calls recorded. */
+    public long getCount() {
+        return mCount;
+    }
+
+    /** Number of calls where the deadline had already passed on entry. */
+    public long getMissedCount() {
+        return mMissedCount;
+    }
+
+    public long getMeanErrorNsec() {
+        return (mCount == 0) ? 0 : mSumErrorNsec / mCount;
+    }
+
+    public long getMaxErrorNsec() {
+        return mMaxErrorNsec;
+    }
+}
@@ -0,0 +1,210 @@
+package org.learn.test.grafika.util;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Created by zzr on 2018/01/26.
+ * <p>
+ * Histogram of durations in microseconds with bounded relative error, after the
+ * HdrHistogram layout: each power of two is split into {@link #SUB_BUCKETS} linear
+ * sub-buckets, so a value is known to within about 3%, from 1us to days.  That's enough
+ * to tell 17ms from 30ms, i.e. one missed vsync from two.
+ * <p>
+ * Recording never allocates or locks, so it can sit on the encoder's hot path while
+ * another thread reads it.  Reads are not atomic as a whole; a reader racing with a
+ * writer may see a count one sample ahead of the buckets.  Take a {@link Snapshot} for
+ * anything beyond the simple totals.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values up to 2^40 usec (about 12 days); bigger ones land in the last bucket.
+    private static final int MAX_VALUE_BITS = 40;
+    private static final int BUCKET_COUNT = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSumUsec = new AtomicLong();
+    private final AtomicLong mMaxUsec = new AtomicLong();
+
+    /**
+     * Returns the bucket a value goes in.  Values below SUB_BUCKETS get a bucket each;
+     * above that, bucket e * SUB_BUCKETS + s holds the values whose top SUB_BUCKET_BITS + 1
+     * bits are SUB_BUCKETS + s, shifted left by e - 1.
+     */
+    static int getBucketIndex(long usec) {
+        if (usec < SUB_BUCKETS) {
+            return (int) Math.max(usec, 0);
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(usec);
+        int exponent = msb - SUB_BUCKET_BITS + 1;
+        int sub = (int) (usec >>> (exponent - 1)) - SUB_BUCKETS;
+        return Math.min(exponent * SUB_BUCKETS + sub, BUCKET_COUNT - 1);
+    }
+
+    /** The smallest value in the bucket. */
+    static long getBucketLow(int index) {
+        int exponent = index >> SUB_BUCKET_BITS;
+        long sub = index & (SUB_BUCKETS - 1);
+        return (exponent == 0) ? sub : (sub + SUB_BUCKETS) << (exponent - 1);
+    }
+
+    /** The largest value in the bucket. */
+    static long getBucketHigh(int index) {
+        int exponent = index >> SUB_BUCKET_BITS;
+        return (exponent == 0) ? index : getBucketLow(index) + (1L << (exponent - 1)) - 1;
+    }
+
+    /**
+     * Adds one sample.  Negative values are counted as zero.
+     */
+    public void record(long usec) {
+        if (usec < 0) {
+            usec = 0;
+        }
+        mBuckets.incrementAndGet(getBucketIndex(usec));
+        mCount.incrementAndGet();
+        mSumUsec.addAndGet(usec);
+        long max;
+        while (usec > (max = mMaxUsec.get())) {
+            if (mMaxUsec.compareAndSet(max, usec)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMaxUsec() {
+        return mMaxUsec.get();
+    }
+
+    public long getMeanUsec() {
+        long count = mCount.get();
+        return (count == 0) ? 0 : mSumUsec.get() / count;
+    }
+
+    /**
+     * Returns the value at the given percentile (0-100); see
+     * {@link Snapshot#getPercentileUsec}.  Copies the buckets, so not for the hot path.
+     */
+    public long getPercentileUsec(double percentile) {
+        return snapshot().getPercentileUsec(percentile);
+    }
+
+    /**
+     * Copies the current state.
+     */
+    public Snapshot snapshot() {
+        return takeSnapshot(false);
+    }
+
+    /**
+     * Copies the current state and starts over from empty, for per-interval numbers.
+     * Samples recorded during the call end up in one interval or the other, not both.
+     */
+    public Snapshot snapshotAndReset() {
+        return takeSnapshot(true);
+    }
+
+    private Snapshot takeSnapshot(boolean reset) {
+        long[] buckets = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = reset ? mBuckets.getAndSet(i, 0) : mBuckets.get(i);
+            total += buckets[i];
+        }
+        long sum;
+        long max;
+        if (reset) {
+            mCount.getAndAdd(-total);
+            sum = mSumUsec.getAndSet(0);
+            max = mMaxUsec.getAndSet(0);
+        } else {
+            sum = mSumUsec.get();
+            max = mMaxUsec.get();
+        }
+        return new Snapshot(buckets, total, sum, max);
+    }
+
+    /**
+     * An immutable copy of a histogram.
+     */
+    public static class Snapshot {
+        private final long[] mBuckets;
+        private final long mCount;
+        private final long mSumUsec;
+        private final long mMaxUsec;
+
+        Snapshot(long[] buckets, long count, long sumUsec, long maxUsec) {
+            mBuckets = buckets;
+            mCount = count;
+            mSumUsec = sumUsec;
+            mMaxUsec = maxUsec;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMaxUsec() {
+            return mMaxUsec;
+        }
+
+        public long getMeanUsec() {
+            return (mCount == 0) ? 0 : mSumUsec / mCount;
+        }
+
+        /**
+         * Returns the value at the given percentile (0-100), as the top of its bucket but
+         * no more than the max.  Zero if empty.
+         */
+        public long getPercentileUsec(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(mCount * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    return Math.min(getBucketHigh(i), mMaxUsec);
+                }
+            }
+            return mMaxUsec;
+        }
+
+        /**
+         * Returns the number of samples at or above the value, give or take the bucket the
+         * value falls in (counted as above).
+         */
+        public long getCountAtOrAbove(long usec) {
+            long count = 0;
+            for (int i = getBucketIndex(usec); i < mBuckets.length; i++) {
+                count += mBuckets[i];
+            }
+            return count;
+        }
+
+        /**
+         * Writes a one-line summary followed by one "low high count" line per non-empty
+         * bucket.
+         */
+        public void writeTo(PrintWriter out, String name) {
+            out.println(name + ": count=" + mCount + " mean=" + getMeanUsec() +
+                    " p50=" + getPercentileUsec(50) + " p90=" + getPercentileUsec(90) +
+                    " p99=" + getPercentileUsec(99) + " p99.9=" + getPercentileUsec(99.9) +
+                    " max=" + mMaxUsec);
+            for (int i = 0; i < mBuckets.length; i++) {
+                if (mBuckets[i] != 0) {
+                    out.println("  " + getBucketLow(i) + " " + getBucketHigh(i) + " " +
+                            mBuckets[i]);
+                }
+            }
+        }
+    }
+}
@@ -12,6 +12,8 @@ import android.view.MotionEvent;
 import android.view.View;
 import android.widget.MediaController;
 
+import org.learn.test.grafika.util.FramePacer;
+
 import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.FileReader;
@@ -19,8 +21,6 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
-import java.util.Timer;
-import java.util.TimerTask;
 
 /**
  * Created by zzr on 2017/9/22.
@@ -30,11 +30,26 @@ public class RgbPlayerActivity extends Activity {
 
     private static final String TAG = "RgbView";
 
+    private RgbView mRgbView;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        setContentView(new RgbView(this));
+        mRgbView = new RgbView(this);
+        setContentView(mRgbView);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mRgbView.startImageThread();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mRgbView.stopImageThread();
     }
 
 
@@ -58,17 +73,11 @@ public class RgbPlayerActivity extends Activity {
 
         private MediaController mMediaController;
         private boolean mMediaControllerAttached;
-        private Timer mTimer;
-        private TimerTask mImageTask = new TimerTask() {
-            @Override
-            public void run() {
-                if (mIsPlaying) {
-                    mImageIndex++;
-                    LoadImage();
-                    Log.w(TAG, "mImageTask run : "+mImageIndex);
-                }
-            }
-        };
+        // Advances the image at the movie's frame rate.  A Timer only takes whole
+        // milliseconds, which drifts at most frame rates, so we pace against absolute
+        // deadlines instead.  Runs while the controller is attached and we're in the
+        // foreground; interrupted on pause and on detach.
+        private Thread mImageThread;
         private Handler mHandler = new Handler() {
             @Override
             public void handleMessage(Message msg) {
@@ -118,7 +127,6 @@ public class RgbPlayerActivity extends Activity {
             }
 
             mMediaController = new MediaController(context);
-            mTimer = new Timer();
             LoadImage();
         }
 
@@ -149,6 +157,49 @@ public class RgbPlayerActivity extends Activity {
             mHandler.sendEmptyMessage(0);
         }
 
+        void startImageThread() {
+            if (!mMediaControllerAttached || mImageThread != null) {
+                return;
+            }
+            mImageThread = new Thread("RgbPlayer-image") {
+                @Override
+                public void run() {
+                    FramePacer pacer = new FramePacer();
+                    long frameNsec = 1000000000L / mFrameRate;
+                    long deadlineNsec = System.nanoTime();
+                    while (!isInterrupted()) {
+                        if (mIsPlaying) {
+                            mImageIndex++;
+                            LoadImage();
+                            Log.w(TAG, "mImageThread run : "+mImageIndex);
+                        }
+                        deadlineNsec += frameNsec;
+                        pacer.sleepUntil(deadlineNsec);
+                    }
+                }
+            };
+            mImageThread.start();
+        }
+
+        void stopImageThread() {
+            if (mImageThread == null) {
+                return;
+            }
+            mImageThread.interrupt();
+            try {
+                mImageThread.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            mImageThread = null;
+        }
+
+        @Override
+        protected void onDetachedFromWindow() {
+            stopImageThread();
+            super.onDetachedFromWindow();
+        }
+
         @Override
         protected void onDraw(Canvas canvas) {
             canvas.drawBitmap(mBitmap, mStartX, mStartY, null);
@@ -170,7 +221,7 @@ public class RgbPlayerActivity extends Activity {
                     mMediaController.setEnabled(true);
                     mMediaControllerAttached = true;
                     //mIsPlaying = true;
-                    mTimer.scheduleAtFixedRate(mImageTask, 0, 1000 / mFrameRate);
+                    startImageThread();
                 } else {
                     mMediaController.show(5000);
                 }
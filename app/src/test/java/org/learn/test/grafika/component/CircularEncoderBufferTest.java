@@ -0,0 +1,174 @@
+package org.learn.test.grafika.component;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local tests for {@link CircularEncoderBuffer}, with the heap-backed ring.
+ */
+public class CircularEncoderBufferTest {
+    private static final long FRAME_USEC = 33333;
+    private static final int GOP_FRAMES = 10;
+    private static final int VIDEO_SIZE = 500;
+    private static final int AUDIO_SIZE = 100;
+
+    private final ByteBuffer mPacket = ByteBuffer.allocate(VIDEO_SIZE);
+    private long mNextPtsUsec;
+
+    // About 100KB of data: a couple hundred packets, a few seconds.
+    private static CircularEncoderBuffer newBuffer() {
+        return new CircularEncoderBuffer(80000, 30, 10);
+    }
+
+    // Adds one GOP of video, with an audio packet after every frame if withAudio is set.
+    private void addGop(CircularEncoderBuffer buffer, boolean withAudio) {
+        for (int i = 0; i < GOP_FRAMES; i++) {
+            long ptsUsec = mNextPtsUsec;
+            mNextPtsUsec += FRAME_USEC;
+            add(buffer, VIDEO_SIZE, (i == 0) ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0, ptsUsec,
+                    CircularEncoderBuffer.TRACK_VIDEO);
+            if (withAudio) {
+                add(buffer, AUDIO_SIZE, 0, ptsUsec, CircularEncoderBuffer.TRACK_AUDIO);
+            }
+        }
+    }
+
+    private void add(CircularEncoderBuffer buffer, int size, int flags, long ptsUsec, int track) {
+        mPacket.clear();
+        mPacket.limit(size);
+        buffer.add(mPacket, flags, ptsUsec, track);
+    }
+
+    @Test
+    public void trackGapLongerThanRing() throws Exception {
+        CircularEncoderBuffer buffer = newBuffer();
+        addGop(buffer, true);
+        addGop(buffer, true);
+        // Audio stops (e.g. its encoder failed) while video wraps the ring many times over.
+        int gops = 4 * buffer.getMetaCapacity() / GOP_FRAMES;
+        for (int i = 0; i < gops; i++) {
+            addGop(buffer, false);
+        }
+
+        CircularEncoderBuffer.Snapshot snapshot = buffer.acquireSnapshot();
+        assertNotNull(snapshot);
+        assertFalse(snapshot.hasTrack(CircularEncoderBuffer.TRACK_AUDIO));
+        snapshot.release();
+
+        // Audio comes back.
+        long restartUsec = mNextPtsUsec;
+        addGop(buffer, true);
+        addGop(buffer, true);
+        long lastUsec = mNextPtsUsec - FRAME_USEC;
+
+        // The whole ring, so the slot audio last used before the gap is in it.
+        snapshot = buffer.acquireSnapshot();
+        assertNotNull(snapshot);
+        assertTrue(snapshot.hasTrack(CircularEncoderBuffer.TRACK_AUDIO));
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        snapshot.getChunk(snapshot.getFirstIndex(), info);
+        long firstUsec = info.presentationTimeUs;
+        HashSet<Integer> seen = new HashSet<Integer>();
+        long[] expectUsec = { firstUsec, restartUsec };
+        for (int index = snapshot.getFirstIndex(); index >= 0;
+             index = snapshot.getNextIndex(index)) {
+            assertTrue("packet " + index + " handed out twice", seen.add(index));
+            int track = snapshot.getTrack(index);
+            snapshot.getChunk(index, info);
+            // Each track comes out whole and in order, with no packets of the other.
+            assertEquals("track " + track, expectUsec[track], info.presentationTimeUs);
+            assertEquals((track == CircularEncoderBuffer.TRACK_VIDEO) ? VIDEO_SIZE : AUDIO_SIZE,
+                    info.size);
+            expectUsec[track] += FRAME_USEC;
+        }
+        assertFalse(snapshot.isOverrun());
+        snapshot.release();
+        assertEquals(lastUsec + FRAME_USEC, expectUsec[CircularEncoderBuffer.TRACK_VIDEO]);
+        assertEquals(lastUsec + FRAME_USEC, expectUsec[CircularEncoderBuffer.TRACK_AUDIO]);
+        assertEquals((lastUsec - firstUsec) / FRAME_USEC + 1 + 2 * GOP_FRAMES, seen.size());
+    }
+
+    @Test
+    public void slowReaderIsOverrun() throws Exception {
+        CircularEncoderBuffer buffer = newBuffer();
+        addGop(buffer, true);
+        addGop(buffer, true);
+        CircularEncoderBuffer.Snapshot snapshot = buffer.acquireSnapshot();
+        assertNotNull(snapshot);
+        int index = snapshot.getFirstIndex();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        snapshot.getChunk(index, info);
+        assertFalse(snapshot.isOverrun());
+
+        // The reader stalls on its first packet while the ring wraps; add() evicts anyway.
+        int gops = 2 * buffer.getMetaCapacity() / GOP_FRAMES;
+        for (int i = 0; i < gops; i++) {
+            addGop(buffer, true);
+        }
+
+        assertTrue(snapshot.isOverrun());
+        assertEquals(-1, snapshot.getNextIndex(index));
+        snapshot.release();
+    }
+
+    @Test
+    public void resizeWhilePremuxing() throws Exception {
+        CircularEncoderBuffer buffer = newBuffer();
+        buffer.setFragmentPool(true);
+        // Half again the bit rate we asked for, so it wants to grow.
+        buffer.setAdaptiveSizing(10, 0, 4 * 1024 * 1024);
+        int initialCapacity = buffer.getDataCapacity();
+
+        // Like the fragment thread: at every GOP boundary, hold a snapshot of the GOP that
+        // just closed while the sync frame is added.
+        long gopStartUsec = -1;
+        for (int gop = 0; gop < 100 && buffer.getDataCapacity() == initialCapacity; gop++) {
+            for (int i = 0; i < GOP_FRAMES; i++) {
+                long ptsUsec = mNextPtsUsec;
+                mNextPtsUsec += FRAME_USEC;
+                CircularEncoderBuffer.Snapshot premux = null;
+                if (i == 0 && gopStartUsec >= 0) {
+                    premux = buffer.acquireSnapshot(gopStartUsec, ptsUsec - FRAME_USEC);
+                    assertNotNull(premux);
+                }
+                add(buffer, VIDEO_SIZE, (i == 0) ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0,
+                        ptsUsec, CircularEncoderBuffer.TRACK_VIDEO);
+                if (premux != null) {
+                    premux.release();
+                }
+                if (i == 0) {
+                    gopStartUsec = ptsUsec;
+                }
+                // Give the resize thread a chance to catch up.
+                Thread.sleep(2);
+            }
+        }
+        assertTrue("never resized", buffer.getDataCapacity() > initialCapacity);
+
+        // Everything from the oldest sync frame on survived the move, in order.
+        long lastUsec = mNextPtsUsec - FRAME_USEC;
+        CircularEncoderBuffer.Snapshot snapshot = buffer.acquireSnapshot();
+        assertNotNull(snapshot);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        snapshot.getChunk(snapshot.getFirstIndex(), info);
+        long expectUsec = info.presentationTimeUs;
+        assertEquals(0, expectUsec % (GOP_FRAMES * FRAME_USEC));
+        for (int index = snapshot.getFirstIndex(); index >= 0;
+             index = snapshot.getNextIndex(index)) {
+            snapshot.getChunk(index, info);
+            assertEquals(expectUsec, info.presentationTimeUs);
+            assertEquals(VIDEO_SIZE, info.size);
+            expectUsec += FRAME_USEC;
+        }
+        assertFalse(snapshot.isOverrun());
+        snapshot.release();
+        assertEquals(lastUsec + FRAME_USEC, expectUsec);
+        buffer.release();
+    }
+}
@@ -0,0 +1,45 @@
+package org.learn.test.grafika.util;
+
+/**
+ * Compares FramePacer with a bare Thread.sleep() at a fixed frame rate, on whatever JVM
+ * runs it.  Not a unit test; run it by hand from the unit test classpath:
+ * <pre>
+ * java -cp app/build/intermediates/classes/debug:app/build/intermediates/classes/test/debug \
+ *     org.learn.test.grafika.util.FramePacerBenchmark [fps] [frames]
+ * </pre>
+ */
+public class FramePacerBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        int fps = (args.length > 0) ? Integer.parseInt(args[0]) : 60;
+        int frames = (args.length > 1) ? Integer.parseInt(args[1]) : 600;
+        long frameNsec = 1000000000L / fps;
+
+        LatencyHistogram sleepError = new LatencyHistogram();
+        long deadlineNsec = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            deadlineNsec += frameNsec;
+            long sleepNsec = deadlineNsec - System.nanoTime();
+            if (sleepNsec > 0) {
+                Thread.sleep(sleepNsec / 1000000, (int) (sleepNsec % 1000000));
+            }
+            sleepError.record((System.nanoTime() - deadlineNsec) / 1000);
+        }
+        report("Thread.sleep", sleepError);
+
+        FramePacer pacer = new FramePacer();
+        deadlineNsec = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            deadlineNsec += frameNsec;
+            pacer.sleepUntil(deadlineNsec);
+        }
+        report("FramePacer", pacer.getErrorHistogram());
+        System.out.println("  guard=" + pacer.getGuardNsec() / 1000 + "us overshoot=" +
+                pacer.getSleepOvershootNsec() / 1000 + "us missed=" + pacer.getMissedCount());
+    }
+
+    private static void report(String name, LatencyHistogram hist) {
+        System.out.println(name + ": n=" + hist.getCount() + " mean=" + hist.getMeanUsec() +
+                "us p50<=" + hist.getPercentileUsec(50) + "us p99<=" +
+                hist.getPercentileUsec(99) + "us max=" + hist.getMaxUsec() + "us");
+    }
+}
@@ -0,0 +1,73 @@
+package org.learn.test.grafika.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local tests for {@link FramePacer}.  Timing bounds are loose so they hold on a loaded
+ * build machine; {@link FramePacerBenchmark} gives the real numbers.
+ */
+public class FramePacerTest {
+    private static final long FRAME_NSEC = 1000000000L / 60;
+
+    @Test
+    public void neverReturnsBeforeDeadline() throws Exception {
+        FramePacer pacer = new FramePacer();
+        long deadlineNsec = System.nanoTime();
+        for (int i = 0; i < 60; i++) {
+            deadlineNsec += FRAME_NSEC;
+            long wakeNsec = pacer.sleepUntil(deadlineNsec);
+            assertTrue("woke " + (deadlineNsec - wakeNsec) + " ns early",
+                    wakeNsec >= deadlineNsec);
+            assertTrue(System.nanoTime() >= deadlineNsec);
+        }
+        assertEquals(60, pacer.getCount());
+    }
+
+    @Test
+    public void pastDeadlineReturnsImmediately() throws Exception {
+        FramePacer pacer = new FramePacer();
+        long startNsec = System.nanoTime();
+        pacer.sleepUntil(startNsec - 1000000L);
+        assertTrue(System.nanoTime() - startNsec < 1000000L);
+        assertEquals(1, pacer.getMissedCount());
+    }
+
+    @Test
+    public void guardStaysInRange() throws Exception {
+        FramePacer pacer = new FramePacer();
+        long deadlineNsec = System.nanoTime();
+        for (int i = 0; i < 30; i++) {
+            deadlineNsec += FRAME_NSEC;
+            pacer.sleepUntil(deadlineNsec);
+            assertTrue(pacer.getGuardNsec() >= FramePacer.MIN_GUARD_NSEC);
+            assertTrue(pacer.getGuardNsec() <= FramePacer.MAX_GUARD_NSEC);
+        }
+    }
+
+    @Test
+    public void errorIsSmall() throws Exception {
+        FramePacer pacer = new FramePacer();
+        long deadlineNsec = System.nanoTime();
+        for (int i = 0; i < 120; i++) {
+            deadlineNsec += FRAME_NSEC;
+            pacer.sleepUntil(deadlineNsec);
+        }
+        // Thread.sleep() alone typically averages 50-1000us late; the pacer should be well
+        // under a millisecond on average even on a busy machine.
+        assertTrue("mean error " + pacer.getMeanErrorNsec() + " ns",
+                pacer.getMeanErrorNsec() < 1000000L);
+        assertEquals(120, pacer.getErrorHistogram().getCount());
+    }
+
+    @Test
+    public void interruptReturnsEarly() throws Exception {
+        FramePacer pacer = new FramePacer();
+        Thread.currentThread().interrupt();
+        long startNsec = System.nanoTime();
+        pacer.sleepUntil(startNsec + 1000000000L);
+        assertTrue(Thread.interrupted());
+        assertTrue(System.nanoTime() - startNsec < 500000000L);
+    }
+}